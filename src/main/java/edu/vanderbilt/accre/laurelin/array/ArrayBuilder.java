@@ -1,20 +1,19 @@
 package edu.vanderbilt.accre.laurelin.array;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.common.collect.ImmutableRangeMap;
-import com.google.common.collect.ImmutableRangeMap.Builder;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Range;
-
+import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
 import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
 
 public class ArrayBuilder {
@@ -55,6 +54,28 @@ public class ArrayBuilder {
          * @return a RawArray with the decompressed bytes
          */
         public RawArray dataWithoutKey(int basketid);   // length must be fObjlen - fKeylen
+
+        /**
+         * Read the basket's bytes from storage without decompressing them,
+         * so reading and decompressing can be done by different threads.
+         * @param basketid the zero-indexed basket index for the given branch
+         * @return the (possibly compressed) bytes, or null if there's
+         *          nothing to read (e.g. the basket is already cached)
+         */
+        public default ByteBuffer fetch(int basketid) {
+            return null;
+        }
+
+        /**
+         * Decompress the bytes returned by fetch()
+         * @param basketid the zero-indexed basket index for the given branch
+         * @param fetched the value fetch() returned, possibly null
+         * @return a RawArray with the decompressed bytes, like
+         *          dataWithoutKey()
+         */
+        public default RawArray decompress(int basketid, ByteBuffer fetched) {
+            return dataWithoutKey(basketid);
+        }
     }
 
     /**
@@ -67,39 +88,73 @@ public class ArrayBuilder {
     private Array array;
     Array output_relative;
     Array output_whole;
-    ArrayList<FutureTask<Array>> tasks = new ArrayList<FutureTask<Array>>();
+    /**
+     * The decode of each basket, until they've all been waited for or the
+     * builder is cancelled. Volatile since either can happen on any thread
+     * reading the builder
+     */
+    private volatile ArrayList<Future<Array>> tasks = new ArrayList<Future<Array>>();
+    /**
+     * The (exclusive) last entry of output_whole each task fills, in the same
+     * order as tasks
+     */
+    private long[] taskEntryStops;
+    private volatile boolean tasksDone = false;
     private long[] basketEntryOffsets;
     int global_offset_whole;
+    private long basketBytes;
+    /**
+     * Number of entries in the output
+     */
+    private int numRows;
+
+    /**
+     * Decode a whole basket into an array of its own. Where no conversion is
+     * needed, this is a view over the (possibly cached) basket buffer
+     */
+    private Array decodeBasket(int basketId, GetBasket basketCallback, RawArray basketdata) {
+        int entries = (int) (basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId]);
+        BasketKey basketKey = basketCallback.basketkey(basketId);
 
-    private Array processBasket(long entryOffset, long itemOffset, Range<Long> entryRange, int basketId, GetBasket basketCallback, Array output) {
-        // Put entryRange from the given basketId into output, starting at entry/itemoffset in the destination
-        int entryStart = Math.toIntExact(entryRange.lowerEndpoint());
-        int entryStop = Math.toIntExact(entryRange.upperEndpoint());
-        int entries = entryStop - entryStart;
+        int border = basketKey.fLast - basketKey.fKeylen;
+        if (basketKey.fObjlen == border) {
+            basketdata = interpretation.convertBufferDiskToMemory(basketdata);
+            return interpretation.fromroot(basketdata, null, 0, entries);
+        } else {
+            return decodeJaggedBasket(basketKey, basketdata, entries);
+        }
+    }
+
+    private Array decodeJaggedBasket(BasketKey basketKey, RawArray basketdata, int entries) {
+        int border = basketKey.fLast - basketKey.fKeylen;
+        RawArray content = basketdata.slice(0, border);
+        RawArray offsets = basketdata.slice(border + 4, basketKey.fObjlen);
+        PrimitiveArray.Int4 byteoffsets = new PrimitiveArray.Int4(offsets).add(true, -basketKey.fKeylen);
+        byteoffsets.put(byteoffsets.length() - 1, border);
+        content = interpretation.subarray().convertBufferDiskToMemory(content);
+        byteoffsets = interpretation.subarray().convertOffsetDiskToMemory(byteoffsets);
+        return interpretation.fromroot(content, byteoffsets, 0, entries);
+    }
+
+    private Array processBasket(long entryOffset, long itemOffset, int basketId, GetBasket basketCallback, RawArray basketdata, Array output) {
+        // Put the whole of basketId into output, starting at entry/itemoffset in the destination
+        int entries = (int) (basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId]);
         BasketKey basketKey = basketCallback.basketkey(basketId);;
         int bytes = basketKey.fLast - basketKey.fKeylen;
         int items = interpretation.numitems(bytes, entries);
 
-        RawArray basketdata = basketCallback.dataWithoutKey(basketId);
         Array source = null;
 
-
         int border = basketKey.fLast - basketKey.fKeylen;
-        if (basketKey.fObjlen == border) {
+        if ((basketKey.fObjlen == border) && (interpretation instanceof AsDtype)) {
+            // fixed-size items can be decoded straight into the output
+            ((AsDtype) interpretation).fillFromRoot(basketdata, output, (int) itemOffset, (int) (itemOffset + items));
+            return output;
+        } else if (basketKey.fObjlen == border) {
             basketdata = interpretation.convertBufferDiskToMemory(basketdata);
-            source = interpretation.fromroot(basketdata, null, 0, entryStop - entryStart);
+            source = interpretation.fromroot(basketdata, null, 0, entries);
         } else {
-            RawArray content = basketdata.slice(0, border);
-            RawArray offsets = basketdata.slice(border + 4, basketKey.fObjlen);
-            PrimitiveArray.Int4 testcontent = new PrimitiveArray.Int4(content);
-            PrimitiveArray.Int4 testoffsets = new PrimitiveArray.Int4(offsets);
-            PrimitiveArray.Int4 byteoffsets = new PrimitiveArray.Int4(offsets).add(true, -basketKey.fKeylen);
-            byteoffsets.put(byteoffsets.length() - 1, border);
-            content = interpretation.subarray().convertBufferDiskToMemory(content);
-            byteoffsets = interpretation.subarray().convertOffsetDiskToMemory(byteoffsets);
-            int start = (0);
-            int stop = (entryStop - entryStart);
-            source = interpretation.fromroot(content, byteoffsets, start, stop);
+            source = decodeJaggedBasket(basketKey, basketdata, entries);
         }
 
         interpretation.fill(source,
@@ -111,10 +166,56 @@ public class ArrayBuilder {
         return output;
     }
 
+    /**
+     * Queue a basket to be read, decompressed and then handed to decode.
+     * Without io and decompress executors, all three steps run as one task
+     * on the interpret executor
+     */
+    private static Future<Array> submitBasket(int basketId, GetBasket getbasket, Executor ioExecutor, Executor decompressExecutor, Executor executor, Function<RawArray, Array> decode) {
+        if (ioExecutor == null) {
+            FutureTask<Array> task = new FutureTask<Array>(() -> decode.apply(getbasket.dataWithoutKey(basketId)));
+            executor.execute(task);
+            return task;
+        }
+        return CompletableFuture.supplyAsync(() -> getbasket.fetch(basketId), ioExecutor)
+                .thenApplyAsync(fetched -> getbasket.decompress(basketId, fetched), decompressExecutor)
+                .thenApplyAsync(decode, executor);
+    }
+
     public ArrayBuilder(GetBasket getbasket, Interpretation interpretation, long[] basketEntryOffsets, Executor executor, long entrystart, long entrystop) {
+        this(getbasket, interpretation, basketEntryOffsets, null, null, executor, entrystart, entrystop);
+    }
+
+    /**
+     * Decode the baskets holding the given entries. Reading a basket waits
+     * on storage, decompressing it on the CPU and interpreting it into the
+     * output on memory, so each step can be given its own, separately sized,
+     * executor and a slow read won't hold a thread the other steps could use
+     *
+     * @param getbasket callbacks to read the baskets
+     * @param interpretation how to interpret the basket contents
+     * @param basketEntryOffsets first entry of each basket, followed by the
+     *          end of the final basket
+     * @param ioExecutor executor reading the baskets, or null to read them
+     *          on the interpret executor
+     * @param decompressExecutor executor decompressing the baskets, or null
+     *          to decompress them on the interpret executor
+     * @param executor executor interpreting the baskets into the output, or
+     *          null to decode everything in the constructor
+     * @param entrystart first entry to decode
+     * @param entrystop one past the last entry to decode
+     */
+    public ArrayBuilder(GetBasket getbasket, Interpretation interpretation, long[] basketEntryOffsets, Executor ioExecutor, Executor decompressExecutor, Executor executor, long entrystart, long entrystop) {
+        if ((ioExecutor == null) != (decompressExecutor == null)) {
+            throw new IllegalArgumentException("io and decompress executors must be given together");
+        }
+        if ((ioExecutor != null) && (executor == null)) {
+            throw new IllegalArgumentException("io and decompress executors need an interpret executor");
+        }
         this.basketEntryOffsets = basketEntryOffsets;
         this.interpretation = interpretation;
         this.global_offset_whole = -1;
+        this.numRows = (int) Math.max(0, entrystop - entrystart);
 
         if (basketEntryOffsets.length == 0  ||  basketEntryOffsets[0] != 0) {
             throw new IllegalArgumentException("basketEntryOffsets must start with zero");
@@ -128,63 +229,84 @@ public class ArrayBuilder {
                                 + " offsets: " + Arrays.toString(basketEntryOffsets));
             }
         }
-        Builder<Long, Integer> rangeBuilder = ImmutableRangeMap.builder();
-        for (int i = 1; i < basketEntryOffsets.length; i += 1) {
-            rangeBuilder = rangeBuilder.put(Range.closedOpen(basketEntryOffsets[i - 1], basketEntryOffsets[i]), i - 1);
-        }
-        rangeBuilder = rangeBuilder.put(Range.atLeast(basketEntryOffsets[basketEntryOffsets.length - 1]), basketEntryOffsets.length - 1);
-        ImmutableRangeMap<Long, Integer> entryRangeMap = rangeBuilder.build();
 
-        ImmutableRangeMap<Long, Integer> intersection = entryRangeMap.subRangeMap(Range.closedOpen(entrystart, entrystop));
-        // This emits the entryRange and associated basketid we need to process
-        ImmutableSet<Entry<Range<Long>, Integer>> intersectionEntries = intersection.asMapOfRanges().entrySet();
+        // The baskets holding [entrystart, entrystop), inclusive on both ends
+        int firstBasket = 0;
+        int lastBasket = -1;
+        if (entrystart < entrystop) {
+            firstBasket = BasketEntryOffsets.findBasket(basketEntryOffsets, entrystart);
+            lastBasket = BasketEntryOffsets.findBasket(basketEntryOffsets, entrystop - 1);
+            if ((firstBasket == -1) || (lastBasket == -1)) {
+                throw new IllegalArgumentException("Entries " + entrystart + "-" + entrystop
+                        + " are outside of the baskets: " + Arrays.toString(basketEntryOffsets));
+            }
+        }
         long entryOffset_whole = 0;
         long itemOffset_whole = 0;
+        int basketCount = 0;
 
         // Loop once to calculate the length of the output buffer
-        for (Entry<Range<Long>, Integer> entry: intersectionEntries) {
-            Range<Long> entryRange = entry.getKey();
-            Integer basketId = entry.getValue();
+        for (int basketId = firstBasket; basketId <= lastBasket; basketId += 1) {
+            long entries_whole = basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId];
+            if (entries_whole == 0) {
+                continue;
+            }
             BasketKey key = getbasket.basketkey(basketId);
             int bytes = key.fLast - key.fKeylen;
-
-            // whole basket
-            long entries_whole = basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId];
-            Range<Long> entryRange_whole = Range.closedOpen(basketEntryOffsets[basketId], basketEntryOffsets[basketId + 1]);
             long items_whole = interpretation.numitems(bytes, (int)entries_whole);
 
             // postlogue
             entryOffset_whole += entries_whole;
             itemOffset_whole += items_whole;
+            basketBytes += key.fObjlen;
+            basketCount += 1;
+        }
+        if (basketCount == 1) {
+            /*
+             * Nothing needs to be stitched together, so use the decoded
+             * basket as the output instead of copying it into a new array
+             */
+            int basketId = firstBasket;
+            global_offset_whole = (int) (entrystart - basketEntryOffsets[basketId]);
+            if (executor == null) {
+                output_whole = decodeBasket(basketId, getbasket, getbasket.dataWithoutKey(basketId));
+            } else {
+                taskEntryStops = new long[] { entryOffset_whole };
+                tasks.add(submitBasket(basketId, getbasket, ioExecutor, decompressExecutor, executor, basketdata -> {
+                    output_whole = decodeBasket(basketId, getbasket, basketdata);
+                    return output_whole;
+                }));
+            }
+            return;
         }
         output_whole = interpretation.destination((int)itemOffset_whole, (int)entryOffset_whole);
+        if (executor != null) {
+            taskEntryStops = new long[basketCount];
+        }
         entryOffset_whole = 0;
         itemOffset_whole = 0;
         // Now loop again to do the actual filling
-        for (Entry<Range<Long>, Integer> entry: intersectionEntries) {
-            Range<Long> entryRange = entry.getKey();
-            Integer basketId = entry.getValue();
+        for (int basketId = firstBasket; basketId <= lastBasket; basketId += 1) {
+            long entries_whole = basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId];
+            if (entries_whole == 0) {
+                continue;
+            }
             BasketKey key = getbasket.basketkey(basketId);
             int bytes = key.fLast - key.fKeylen;
-
-
-            // whole basket
-            long entries_whole = basketEntryOffsets[basketId + 1] - basketEntryOffsets[basketId];
-            Range<Long> entryRange_whole = Range.closedOpen(basketEntryOffsets[basketId], basketEntryOffsets[basketId + 1]);
             long items_whole = interpretation.numitems(bytes, (int)entries_whole);
 
             if (global_offset_whole == -1) {
                 global_offset_whole = (int) (entrystart - basketEntryOffsets[basketId]);
             }
             if (executor == null) {
-                processBasket(entryOffset_whole, itemOffset_whole, entryRange_whole, basketId, getbasket, output_whole);
+                processBasket(entryOffset_whole, itemOffset_whole, basketId, getbasket, getbasket.dataWithoutKey(basketId), output_whole);
             } else {
                 final long entryOffset_tmp = entryOffset_whole;
                 final long itemOffset_tmp = itemOffset_whole;
-                FutureTask<Array> task = new FutureTask<Array>(() ->
-                    processBasket(entryOffset_tmp, itemOffset_tmp, entryRange_whole, basketId, getbasket, output_whole));
-                executor.execute(task);
-                tasks.add(task);
+                final int basketId_tmp = basketId;
+                taskEntryStops[tasks.size()] = entryOffset_whole + entries_whole;
+                tasks.add(submitBasket(basketId, getbasket, ioExecutor, decompressExecutor, executor, basketdata ->
+                    processBasket(entryOffset_tmp, itemOffset_tmp, basketId_tmp, getbasket, basketdata, output_whole)));
             }
             // postlogue
             entryOffset_whole += entries_whole;
@@ -192,15 +314,119 @@ public class ArrayBuilder {
         }
     }
 
-    public Array getArray(int rowId, int count) {
-        for (FutureTask<Array> task : tasks) {
+    /**
+     * The uncompressed size of the baskets this builder decodes, which
+     * approximates the memory held while (and after) they are decoded
+     *
+     * @return size in bytes
+     */
+    public long getBasketBytes() {
+        return basketBytes;
+    }
+
+    /**
+     * Block until the baskets overlapping the given entries of output_whole
+     * have been decoded, so early rows can be read while later baskets are
+     * still being decoded. Once every basket has been waited for, this is a
+     * single volatile read
+     *
+     * @param entrystart first entry of output_whole
+     * @param entrystop last entry of output_whole (exclusive)
+     * @return the last entry of output_whole (exclusive) filled by the
+     *          baskets waited for, or Long.MAX_VALUE if every basket is done
+     */
+    private long waitForTasks(long entrystart, long entrystop) {
+        if (tasksDone) {
+            return Long.MAX_VALUE;
+        }
+        ArrayList<Future<Array>> pending = tasks;
+        if (pending == null) {
+            return Long.MAX_VALUE;
+        }
+        // the first task ending after entrystart
+        int low = 0;
+        int high = pending.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (taskEntryStops[mid] <= entrystart) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int first = low;
+        int last = first;
+        for (; last < pending.size(); last += 1) {
             try {
-                task.get();
+                pending.get(last).get();
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             } catch (ExecutionException e) {
                 throw new RuntimeException(e);
             }
+            if (taskEntryStops[last] >= entrystop) {
+                break;
+            }
+        }
+        if ((first == 0) && (last >= pending.size() - 1)) {
+            tasksDone = true;
+            tasks = null;
+            return Long.MAX_VALUE;
+        }
+        return taskEntryStops[Math.min(last, pending.size() - 1)];
+    }
+
+    /**
+     * Block until the baskets holding the rows up to and including rowId
+     * have been decoded, so rows read one at a time only wait for the
+     * basket they are in
+     *
+     * @param rowId row of the output
+     * @return the number of leading rows of the output which have been
+     *          decoded, more than rowId unless rowId is past the end
+     */
+    public int waitForRow(int rowId) {
+        if (numRows == 0) {
+            return 0;
+        }
+        long stop = waitForTasks(global_offset_whole, global_offset_whole + (long) rowId + 1);
+        return (int) Math.min(numRows, stop - global_offset_whole);
+    }
+
+    /**
+     * Stop decoding, for when the output is no longer wanted. Baskets which
+     * haven't started decoding are skipped, and the output is dropped so
+     * it can be garbage collected once the running ones finish
+     */
+    public void cancel() {
+        ArrayList<Future<Array>> pending = tasks;
+        if (pending != null) {
+            for (Future<Array> task: pending) {
+                task.cancel(false);
+            }
+        }
+        tasksDone = true;
+        tasks = null;
+        output_whole = null;
+        output_relative = null;
+    }
+
+    public Array getArray(int rowId, int count) {
+        waitForTasks(global_offset_whole + rowId, global_offset_whole + rowId + count);
+        return getArrayNoWait(rowId, count);
+    }
+
+    /**
+     * Get a view of the output without waiting for it to be decoded. Only
+     * the rows waitForRow() reported as decoded may be read from it
+     *
+     * @param rowId first row of the view
+     * @param count number of rows in the view
+     * @return a view of the output
+     */
+    public Array getArrayNoWait(int rowId, int count) {
+        if (output_whole == null) {
+            throw new IllegalStateException("ArrayBuilder was cancelled");
         }
         Array x = output_whole.clip(global_offset_whole + rowId, global_offset_whole + rowId + count);
         return x;
@@ -0,0 +1,42 @@
+package edu.vanderbilt.accre.laurelin.array;
+
+/**
+ * Lookups into basketEntryOffsets arrays, which hold the first entry of each
+ * basket followed by one past the last entry of the final basket.
+ *
+ * <p>These are binary searches over the primitive array, so finding the
+ * baskets that hold a range of entries doesn't box anything per basket or
+ * per lookup.
+ */
+public final class BasketEntryOffsets {
+    private BasketEntryOffsets() {
+    }
+
+    /**
+     * Find the basket holding an entry. If several baskets start at the same
+     * entry (i.e. all but the last are empty), the last one is returned
+     *
+     * @param basketEntryOffsets first entry of each basket, followed by the
+     *          end of the final basket
+     * @param entry the entry to look up
+     * @return the index of the basket holding entry, or -1 if the entry is
+     *          before the first or past the last basket
+     */
+    public static int findBasket(long[] basketEntryOffsets, long entry) {
+        int basketCount = basketEntryOffsets.length - 1;
+        if ((basketCount < 1) || (entry < basketEntryOffsets[0]) || (entry >= basketEntryOffsets[basketCount])) {
+            return -1;
+        }
+        int low = 0;
+        int high = basketCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (basketEntryOffsets[mid] <= entry) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -1,22 +1,52 @@
 package edu.vanderbilt.accre.laurelin.array;
 
-import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
 
+/**
+ * An array of variable-length arrays, stored as a flat content array and the
+ * offsets of each entry into it. Entry i spans items [offsets[i],
+ * offsets[i + 1]) of the content. Clipping only clips the offsets, so the
+ * first offset is not necessarily zero.
+ */
 public class JaggedArray extends Array {
-    PrimitiveArray.Int4 counts;
     PrimitiveArray.Int4 offsets;
+    PrimitiveArray.Int4 counts;
     Array content;
 
-    public JaggedArray(Interpretation interpretation, int length, PrimitiveArray.Int4 counts, Array content) {
+    /**
+     * @param interpretation interpretation of the array
+     * @param length number of entries
+     * @param offsets length + 1 item offsets into content
+     * @param content the items of all the entries
+     */
+    public JaggedArray(Interpretation interpretation, int length, PrimitiveArray.Int4 offsets, Array content) {
         super(interpretation, length);
-        this.counts = counts;
+        this.offsets = offsets;
         this.content = content;
-        this.offsets = null;
+        this.counts = null;
     }
 
+    public PrimitiveArray.Int4 offsets() {
+        return this.offsets;
+    }
+
+    /**
+     * The number of items in each entry. These aren't needed to read the
+     * array, so they are only computed if asked for
+     *
+     * @return the counts
+     */
     public PrimitiveArray.Int4 counts() {
+        if (this.counts == null) {
+            int[] offsetsarr = (int[]) this.offsets.toArray();
+            int[] countsarr = new int[this.length];
+            for (int i = 0; i < this.length; i += 1) {
+                countsarr[i] = offsetsarr[i + 1] - offsetsarr[i];
+            }
+            this.counts = new PrimitiveArray.Int4(countsarr, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+        }
         return this.counts;
     }
 
@@ -24,27 +54,9 @@ public class JaggedArray extends Array {
         return this.content;
     }
 
-    private void allocateOffsets() {
-        ByteBuffer offsetsbuf = ByteBuffer.allocate((this.counts.length() + 1) * 4);
-        int last = 0;
-        int startpos = this.counts.get(0);
-        offsetsbuf.putInt(last);
-        for (int i = 0; i < this.counts.length(); i++) {
-            last += this.counts.get(i);
-            offsetsbuf.putInt(last);
-        }
-        offsetsbuf.flip();
-        this.offsets = new PrimitiveArray.Int4(new RawArray(offsetsbuf));
-    }
-
     @Override
     public Array clip(int start, int stop) {
-        if (this.offsets == null) {
-            allocateOffsets();
-        }
-        int itemstart = this.offsets.get(start);
-        int itemstop = this.offsets.get(stop);
-        return new JaggedArray(this.interpretation, stop - start, (PrimitiveArray.Int4)this.counts.clip(start, stop), this.content.clip(itemstart, itemstop));
+        return new JaggedArray(this.interpretation, stop - start, (PrimitiveArray.Int4)this.offsets.clip(start, stop + 1), this.content);
     }
 
     @Override
@@ -55,9 +67,6 @@ public class JaggedArray extends Array {
 
     @Override
     public Array subarray() {
-        if (this.offsets == null) {
-            allocateOffsets();
-        }
         int low = this.offsets.get(0);
         int high = this.offsets.get(1);
         Array ret = this.content.clip(low, high);
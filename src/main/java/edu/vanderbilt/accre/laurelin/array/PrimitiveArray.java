@@ -15,9 +15,16 @@ import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
 public abstract class PrimitiveArray extends Array {
     ByteBuffer buffer;
 
+    /*
+     * Arrays allocated here are destinations, which are filled from baskets
+     * by copyitems(). They are kept in native order so the byteswap from
+     * ROOT's big-endian layout happens once, during that copy, instead of on
+     * every read
+     */
     PrimitiveArray(Interpretation interpretation, int length) {
         super(interpretation, length);
         this.buffer = ByteBuffer.allocate(length * ((interpretation == null) ? 1 : ((AsDtype)interpretation).memory_itemsize() * ((AsDtype)interpretation).multiplicity()));
+        this.buffer.order(ByteOrder.nativeOrder());
     }
 
     PrimitiveArray(Interpretation interpretation, RawArray rawarray) {
@@ -47,14 +54,137 @@ public abstract class PrimitiveArray extends Array {
         int bytestop = itemstop * this.memory_itemsize();
         /*
          * This code takes advantage of the fact that tmp and this.buffer share
-         * the same backing array after duplicate()
+         * the same backing array after duplicate(). The source buffer may be
+         * shared (e.g. with the basket cache), so only its duplicate is
+         * touched
          */
-        ByteBuffer tmp = this.buffer.duplicate();
+        ByteBuffer tmp = this.view();
         tmp.position(bytestart);
         tmp.limit(bytestop);
-        ByteBuffer srctmp = source.buffer.duplicate();
+        ByteBuffer srctmp = source.view();
         srctmp.position(0);
-        tmp.put(srctmp);
+        copyswapped(tmp, srctmp, this.memory_itemsize());
+    }
+
+    /**
+     * Decodes items straight from a basket into [itemstart, itemstop) of
+     * this array. Unsigned items narrower than the items of this array are
+     * zero-extended, so byte-order conversion and widening happen in the same
+     * pass as the copy, without intermediate buffers
+     *
+     * @param source the basket's bytes, in the order of its buffer
+     * @param disk_itemsize the size of each item in source
+     * @param itemstart first destination item
+     * @param itemstop last destination item (exclusive)
+     */
+    public void decodeitems(RawArray source, int disk_itemsize, int itemstart, int itemstop) {
+        int itemsize = this.memory_itemsize();
+        int count = itemstop - itemstart;
+        ByteBuffer tmp = this.view();
+        tmp.position(itemstart * itemsize);
+        tmp.limit(itemstop * itemsize);
+        ByteBuffer srctmp = source.view();
+        srctmp.position(0);
+        if (disk_itemsize == itemsize) {
+            srctmp.limit(count * itemsize);
+            copyswapped(tmp, srctmp, itemsize);
+            return;
+        }
+        switch (disk_itemsize) {
+            case 1: {
+                ShortBuffer dst = tmp.asShortBuffer();
+                for (int i = 0; i < count; i += 1) {
+                    dst.put(i, (short) (srctmp.get(i) & 0xff));
+                }
+                break;
+            }
+            case 2: {
+                ShortBuffer src = srctmp.asShortBuffer();
+                IntBuffer dst = tmp.asIntBuffer();
+                for (int i = 0; i < count; i += 1) {
+                    dst.put(i, src.get(i) & 0xffff);
+                }
+                break;
+            }
+            case 4: {
+                IntBuffer src = srctmp.asIntBuffer();
+                LongBuffer dst = tmp.asLongBuffer();
+                for (int i = 0; i < count; i += 1) {
+                    dst.put(i, src.get(i) & 0xffffffffL);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Can't widen " + disk_itemsize + "-byte items to " + itemsize + " bytes");
+        }
+    }
+
+    private static void copyswapped(ByteBuffer dst, ByteBuffer src, int itemsize) {
+        if (src.order() == dst.order()) {
+            dst.put(src);
+            return;
+        }
+        /*
+         * The typed views byteswap in bulk while copying, which is what
+         * converts big-endian basket contents to the native order of the
+         * destination
+         */
+        switch (itemsize) {
+            case 2:
+                dst.asShortBuffer().put(src.asShortBuffer());
+                break;
+            case 4:
+                dst.asIntBuffer().put(src.asIntBuffer());
+                break;
+            case 8:
+                dst.asLongBuffer().put(src.asLongBuffer());
+                break;
+            default:
+                dst.put(src);
+                break;
+        }
+    }
+
+    /**
+     * Returns an independent view of the buffer with the same position, limit
+     * and byte order. duplicate() and slice() reset the order to big-endian,
+     * so every derived buffer must go through here (or restore the order)
+     *
+     * @return the view
+     */
+    ByteBuffer view() {
+        return this.buffer.duplicate().order(this.buffer.order());
+    }
+
+    /**
+     * Returns a view of the items' bytes in the order they're stored in,
+     * native for decoded arrays and big-endian for arrays viewing a basket,
+     * so they can be copied out without converting to a Java array first
+     *
+     * @return the view, positioned at the first item
+     */
+    public ByteBuffer byteView() {
+        return this.view();
+    }
+
+    /**
+     * Returns a view of the buffer that reads in the requested order without
+     * modifying the order of this array, which may be shared between threads
+     *
+     * @param bigEndian true to read big-endian, false to read little-endian
+     * @return the view
+     */
+    ByteBuffer view(boolean bigEndian) {
+        return this.buffer.duplicate().order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts to a Java array, reading the buffer in the order it is stored
+     * in
+     */
+    @Override
+    public Object toArray() {
+        return this.toArray(this.buffer.order() == ByteOrder.BIG_ENDIAN);
     }
 
     @Override
@@ -62,10 +192,10 @@ public abstract class PrimitiveArray extends Array {
         int mult = this.multiplicity();
         int bytestart = start * mult * this.memory_itemsize();
         int bytestop = stop * mult * this.memory_itemsize();
-        ByteBuffer out = this.buffer.duplicate();
+        ByteBuffer out = this.view();
         out.position(bytestart);
         out.limit(bytestop);
-        return this.make(out.slice());
+        return this.make(out.slice().order(this.buffer.order()));
     }
 
     public RawArray rawarray() {
@@ -98,7 +228,6 @@ public abstract class PrimitiveArray extends Array {
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
             ByteBuffer buf = this.buffer.duplicate();
             byte[] out = new byte[buf.limit() - buf.position()];
             buf.get(out);
@@ -142,7 +271,6 @@ public abstract class PrimitiveArray extends Array {
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
             ByteBuffer buf = this.buffer.duplicate();
             byte[] out = new byte[buf.limit() - buf.position()];
             buf.get(out);
@@ -186,8 +314,7 @@ public abstract class PrimitiveArray extends Array {
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-            ShortBuffer buf = this.buffer.asShortBuffer();
+            ShortBuffer buf = this.view(bigEndian).asShortBuffer();
             short[] out = new short[buf.limit() - buf.position()];
             buf.get(out);
             return out;
@@ -204,7 +331,8 @@ public abstract class PrimitiveArray extends Array {
         }
 
         public short toShort(int index) {
-            return this.buffer.asShortBuffer().get(index);
+            // absolute get, so no view buffer is allocated per value
+            return this.buffer.getShort(this.buffer.position() + index * 2);
         }
 
         @Override
@@ -242,15 +370,13 @@ public abstract class PrimitiveArray extends Array {
 
         public Int4(int[] data, boolean bigEndian) {
             super(new AsDtype(AsDtype.Dtype.INT4), data.length);
-            this.buffer = ByteBuffer.allocate(data.length * this.memory_itemsize());
             this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
             this.buffer.asIntBuffer().put(data, 0, data.length);
         }
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-            IntBuffer buf = this.buffer.asIntBuffer();
+            IntBuffer buf = this.view(bigEndian).asIntBuffer();
             int[] out = new int[buf.limit() - buf.position()];
             buf.get(out);
             return out;
@@ -267,7 +393,8 @@ public abstract class PrimitiveArray extends Array {
         }
 
         public int toInt(int index) {
-            return this.buffer.asIntBuffer().get(index);
+            // absolute get, so no view buffer is allocated per value
+            return this.buffer.getInt(this.buffer.position() + index * 4);
         }
 
         @Override
@@ -278,9 +405,8 @@ public abstract class PrimitiveArray extends Array {
         public Int4 add(boolean bigEndian, int value) {
             ByteBuffer out = ByteBuffer.allocate(length * 4);
             out.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
             IntBuffer outint = out.asIntBuffer();
-            IntBuffer thisint = this.buffer.asIntBuffer();
+            IntBuffer thisint = this.view(bigEndian).asIntBuffer();
             for (int i = 0;  i < this.length;  i++) {
                 outint.put(i, thisint.get(i) + value);
             }
@@ -291,6 +417,26 @@ public abstract class PrimitiveArray extends Array {
             return this.buffer.getInt(i * 4);
         }
 
+        /**
+         * Copy the offsets of the entries [0, entrystop - entrystart] of
+         * source to the entries [entrystart, entrystop] of this array,
+         * shifting them by itemstart. The leading offset is also the trailing
+         * offset of the previous range, which writes the same value, but
+         * writing it here lets each range be read as soon as it is filled
+         *
+         * @param source offsets starting at zero
+         * @param entrystart first destination entry
+         * @param entrystop last destination entry (exclusive)
+         * @param itemstart the amount to shift each offset by
+         */
+        public void copyoffsets(Int4 source, int entrystart, int entrystop, int itemstart) {
+            IntBuffer src = source.view().asIntBuffer();
+            IntBuffer dst = this.view().asIntBuffer();
+            for (int i = 0;  i <= entrystop - entrystart;  i += 1) {
+                dst.put(entrystart + i, src.get(i) + itemstart);
+            }
+        }
+
         public void put(int i, int value) {
             this.buffer.putInt(i * 4, value);
         }
@@ -314,8 +460,7 @@ public abstract class PrimitiveArray extends Array {
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-            LongBuffer buf = this.buffer.asLongBuffer();
+            LongBuffer buf = this.view(bigEndian).asLongBuffer();
             long[] out = new long[buf.limit() - buf.position()];
             buf.get(out);
             return out;
@@ -332,7 +477,8 @@ public abstract class PrimitiveArray extends Array {
         }
 
         public long toLong(int index) {
-            return this.buffer.asLongBuffer().get(index);
+            // absolute get, so no view buffer is allocated per value
+            return this.buffer.getLong(this.buffer.position() + index * 8);
         }
 
         @Override
@@ -358,8 +504,7 @@ public abstract class PrimitiveArray extends Array {
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-            FloatBuffer buf = this.buffer.asFloatBuffer();
+            FloatBuffer buf = this.view(bigEndian).asFloatBuffer();
             float[] out = new float[buf.limit() - buf.position()];
             buf.get(out);
             return out;
@@ -376,7 +521,8 @@ public abstract class PrimitiveArray extends Array {
         }
 
         public float toFloat(int index) {
-            return this.buffer.asFloatBuffer().get(index);
+            // absolute get, so no view buffer is allocated per value
+            return this.buffer.getFloat(this.buffer.position() + index * 4);
         }
 
         @Override
@@ -402,8 +548,7 @@ public abstract class PrimitiveArray extends Array {
 
         @Override
         public Object toArray(boolean bigEndian) {
-            this.buffer.order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
-            DoubleBuffer buf = this.buffer.asDoubleBuffer();
+            DoubleBuffer buf = this.view(bigEndian).asDoubleBuffer();
             double[] out = new double[buf.limit() - buf.position()];
             buf.get(out);
             return out;
@@ -420,7 +565,8 @@ public abstract class PrimitiveArray extends Array {
         }
 
         public double toDouble(int index) {
-            return this.buffer.asDoubleBuffer().get(index);
+            // absolute get, so no view buffer is allocated per value
+            return this.buffer.getDouble(this.buffer.position() + index * 8);
         }
 
         @Override
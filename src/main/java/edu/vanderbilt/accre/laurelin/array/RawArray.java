@@ -1,6 +1,7 @@
 package edu.vanderbilt.accre.laurelin.array;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class RawArray extends PrimitiveArray {
     RawArray(int length) {
@@ -24,15 +25,15 @@ public class RawArray extends PrimitiveArray {
     }
 
     public RawArray slice(int start, int stop) {
-        ByteBuffer tmp = buffer.duplicate();
+        ByteBuffer tmp = this.view();
         tmp.position(start);
         tmp.limit(stop);
-        return new RawArray(tmp.slice());
+        return new RawArray(tmp.slice().order(this.buffer.order()));
     }
 
     @Override
     public Array clip(int start, int stop) {
-        ByteBuffer out = this.buffer.duplicate();
+        ByteBuffer out = this.view();
         out.position(start);
         out.limit(stop);
         return this.make(out);
@@ -40,31 +41,82 @@ public class RawArray extends PrimitiveArray {
 
     public RawArray compact(PrimitiveArray.Int4 byteoffsets, int skipbytes, int local_entrystart, int local_entrystop) {
         if (skipbytes == 0) {
-            ByteBuffer out = this.buffer.duplicate();
+            ByteBuffer out = this.view();
             out.position(byteoffsets.get(local_entrystart));
             out.limit(byteoffsets.get(local_entrystop));
             return new RawArray(out);
         } else {
             ByteBuffer out = ByteBuffer.allocate(byteoffsets.get(local_entrystop) - byteoffsets.get(local_entrystart) - skipbytes * (local_entrystop - local_entrystart));
-            this.buffer.position(0);
-            for (int i = local_entrystart;  i < local_entrystop;  i++) {
-                int start = byteoffsets.get(i) + skipbytes;
-                int count = byteoffsets.get(i + 1) - start;
-                byte[] copy = new byte[count];
-                this.buffer.position(start);
-                this.buffer.get(copy);
-                out.put(copy);
+            out.order(this.buffer.order());
+            byte[] dst = out.array();
+            int dstpos = out.arrayOffset();
+            if (this.buffer.hasArray()) {
+                // copy each entry's payload straight out of the backing array
+                byte[] src = this.buffer.array();
+                int srcbase = this.buffer.arrayOffset();
+                for (int i = local_entrystart;  i < local_entrystop;  i++) {
+                    int start = byteoffsets.get(i) + skipbytes;
+                    int count = byteoffsets.get(i + 1) - start;
+                    System.arraycopy(src, srcbase + start, dst, dstpos, count);
+                    dstpos += count;
+                }
+            } else {
+                // the basket buffer may be shared, so read from a private view
+                ByteBuffer in = this.view();
+                for (int i = local_entrystart;  i < local_entrystop;  i++) {
+                    int start = byteoffsets.get(i) + skipbytes;
+                    int count = byteoffsets.get(i + 1) - start;
+                    in.position(start);
+                    in.get(dst, dstpos, count);
+                    dstpos += count;
+                }
             }
-            this.buffer.position(0);
             out.position(0);
             return new RawArray(out);
         }
     }
 
+    /**
+     * Zero-extends the unsigned integers in this array to signed integers of
+     * twice the width, which can hold their full range. Each integer is read
+     * in the order of this array and written in native order in a single
+     * pass, so filling a destination from the output is a plain copy.
+     *
+     * @param itemsize the size of the unsigned integers: 1, 2 or 4 bytes
+     * @return the widened integers
+     */
+    public RawArray widenUnsigned(int itemsize) {
+        ByteBuffer in = this.view();
+        int pos = in.position();
+        int count = in.remaining() / itemsize;
+        ByteBuffer out = ByteBuffer.allocate(count * itemsize * 2);
+        out.order(ByteOrder.nativeOrder());
+        switch (itemsize) {
+            case 1:
+                for (int i = 0; i < count; i += 1) {
+                    out.putShort(2 * i, (short) (in.get(pos + i) & 0xff));
+                }
+                break;
+            case 2:
+                for (int i = 0; i < count; i += 1) {
+                    out.putInt(4 * i, in.getShort(pos + 2 * i) & 0xffff);
+                }
+                break;
+            case 4:
+                for (int i = 0; i < count; i += 1) {
+                    out.putLong(8 * i, in.getInt(pos + 4 * i) & 0xffffffffL);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Can't widen " + itemsize + "-byte integers");
+        }
+        return new RawArray(out);
+    }
+
     @Override
     public Object toArray(boolean bigEndian) {
         byte[] out = new byte[this.buffer.limit() - this.buffer.position()];
-        this.buffer.get(out);
+        this.view().get(out);
         return out;
     }
 
@@ -1,6 +1,6 @@
 package edu.vanderbilt.accre.laurelin.interpretation;
 
-import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -232,62 +232,28 @@ public class AsDtype implements Interpretation {
 
     @Override
     public RawArray convertBufferDiskToMemory(RawArray source) {
-        ByteBuffer converted;
         switch (this.dtype) {
             case UINT1:
                 /*
-                 * Conveniently both Java and ROOT are big-endian, to convert
-                 * the following unsigned 8-bit int into a signed 16-bit int,
-                 * add zeros like the following
+                 * Java has no unsigned types, so zero-extend each value into
+                 * the next larger signed type, e.g. for UINT2 (big-endian)
                  *
-                 * index:  0  1  2  3  4  5  6  7  8  9
-                 * src:   11 22 33 44
-                 * dest:  00 11 00 22 00 33 00 44
-                 *
-                 * ByteBuffers are always initialized to zero
-                 */
-                converted = ByteBuffer.allocate(source.length() * 2);
-                for (int i = 0; i < source.length(); i += 1) {
-                    converted.put((i * 2) + 1, source.getByte(i));
-                }
-                return new RawArray(converted);
-            case UINT2:
-                /*
                  * index:  0  1  2  3  4  5  6  7  8  9
                  * src:   11 22 33 44
                  * dest:  00 00 11 22 00 00 33 44
                  */
-                converted = ByteBuffer.allocate(source.length() * 2);
-                for (int i = 0; i < source.length(); i += 2) {
-                    converted.put((i * 2) + 2, source.getByte(i));
-                    converted.put((i * 2) + 3, source.getByte(i + 1));
-                }
-                return new RawArray(converted);
+                return source.widenUnsigned(1);
+            case UINT2:
+                return source.widenUnsigned(2);
             case UINT4:
-                /*
-                 * index:  0  1  2  3  4  5  6  7  8  9
-                 * src:   11 22 33 44
-                 * dest:  00 00 00 00 11 22 33 44
-                 */
-                converted = ByteBuffer.allocate(source.length() * 2);
-                for (int i = 0; i < source.length(); i += 4) {
-                    converted.put((i * 2) + 4, source.getByte(i));
-                    converted.put((i * 2) + 5, source.getByte(i + 1));
-                    converted.put((i * 2) + 6, source.getByte(i + 2));
-                    converted.put((i * 2) + 7, source.getByte(i + 3));
-                }
-                return new RawArray(converted);
+                return source.widenUnsigned(4);
             case UINT8:
                 /*
                  * There is no type in Spark that can represent the full range
                  * of 8-byte unsigned integers, so we need to cast it to a
-                 * long
+                 * long, which needs no conversion
                  */
-                converted = ByteBuffer.allocate(source.length());
-                for (int i = 0; i < source.length(); i += 1) {
-                    converted.put(source.getByte(i));
-                }
-                return new RawArray(converted);
+                return source;
             default:
                 break;
         }
@@ -296,7 +262,6 @@ public class AsDtype implements Interpretation {
 
     @Override
     public PrimitiveArray.Int4 convertOffsetDiskToMemory(PrimitiveArray.Int4 source) {
-        PrimitiveArray.Int4 converted;
         switch (this.dtype) {
             case UINT1:
             case UINT2:
@@ -305,17 +270,32 @@ public class AsDtype implements Interpretation {
                  * The offsets are byte-indexed so if we make the type larger,
                  * we need to also re-point the offsets
                  */
-                converted = new PrimitiveArray.Int4(source.length());
-                for (int i = 0; i < source.length(); i += 1) {
-                    converted.put(i, source.get(i) * 2);
+                int[] offsets = (int[]) source.toArray();
+                for (int i = 0; i < offsets.length; i += 1) {
+                    offsets[i] *= 2;
                 }
-                return converted;
+                return new PrimitiveArray.Int4(offsets, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
             default:
                 break;
         }
         return source;
     }
 
+    /**
+     * Decodes a basket without offsets straight into the destination. This
+     * fuses convertBufferDiskToMemory(), fromroot() and fill(), so the
+     * basket's bytes are byteswapped and widened in the same pass that copies
+     * them into place
+     *
+     * @param bytedata the basket's bytes
+     * @param destination the array to fill
+     * @param itemstart first destination item
+     * @param itemstop last destination item (exclusive)
+     */
+    public void fillFromRoot(RawArray bytedata, Array destination, int itemstart, int itemstop) {
+        ((PrimitiveArray) destination).decodeitems(bytedata, this.disk_itemsize(), itemstart, itemstop);
+    }
+
     @Override
     public void fill(Array source, Array destination, int itemstart, int itemstop, int entrystart, int entrystop) {
         ((PrimitiveArray) destination).copyitems((PrimitiveArray) source, itemstart, itemstop);
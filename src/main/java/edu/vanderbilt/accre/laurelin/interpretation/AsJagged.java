@@ -1,6 +1,6 @@
 package edu.vanderbilt.accre.laurelin.interpretation;
 
-import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.apache.logging.log4j.LogManager;
 
@@ -42,7 +42,7 @@ public class AsJagged implements Interpretation {
 
     @Override
     public Array empty() {
-        return new JaggedArray(this, 0, new PrimitiveArray.Int4(new AsDtype(AsDtype.Dtype.INT4), 0), this.content.empty());
+        return new JaggedArray(this, 0, new PrimitiveArray.Int4(new AsDtype(AsDtype.Dtype.INT4), 1), this.content.empty());
     }
 
     @Override
@@ -60,17 +60,23 @@ public class AsJagged implements Interpretation {
         RawArray compact = bytedata.compact(byteoffsets, this.skipbytes, local_entrystart, local_entrystop);
 
         int innersize_memory = ((AsDtype)this.content).memory_itemsize() * ((AsDtype)this.content).multiplicity();
-        ByteBuffer countsbuf = ByteBuffer.allocate((local_entrystop - local_entrystart) * 4);
 
         int start = (byteoffsets.get(local_entrystart) - local_entrystart * this.skipbytes) / innersize_memory;
         int stop = (byteoffsets.get(local_entrystop) - local_entrystop * this.skipbytes) / innersize_memory;
 
-        for (int i = local_entrystart;  i < local_entrystop;  ++i) {
-            int count = ((byteoffsets.get(i + 1) - byteoffsets.get(i)) - this.skipbytes) / innersize_memory;
-            countsbuf.putInt(count);
+        /*
+         * The item offsets follow directly from ROOT's byte offsets, so read
+         * those in bulk and rescale them instead of going through per-entry
+         * counts
+         */
+        int numentries = local_entrystop - local_entrystart;
+        int[] bytes = (int[]) byteoffsets.clip(local_entrystart, local_entrystop + 1).toArray();
+        int[] items = new int[numentries + 1];
+        int base = bytes[0];
+        for (int i = 1;  i <= numentries;  i += 1) {
+            items[i] = (bytes[i] - base - i * this.skipbytes) / innersize_memory;
         }
-        countsbuf.position(0);
-        PrimitiveArray.Int4 counts = new PrimitiveArray.Int4(new RawArray(countsbuf));
+        PrimitiveArray.Int4 offsets = new PrimitiveArray.Int4(items, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
 
         Array content;
         // Array content = this.content.fromroot(compact, null, start, stop);
@@ -79,28 +85,25 @@ public class AsJagged implements Interpretation {
         } else {
             content = this.content.fromroot(compact, null, start, stop);
         }
-        return new JaggedArray(this, local_entrystop - local_entrystart, counts, content);
+        return new JaggedArray(this, numentries, offsets, content);
     }
 
     @Override
     public Array destination(int numitems, int numentries) {
-        PrimitiveArray.Int4 counts = new PrimitiveArray.Int4(new AsDtype(AsDtype.Dtype.INT4), numentries);
+        PrimitiveArray.Int4 offsets = new PrimitiveArray.Int4(new AsDtype(AsDtype.Dtype.INT4), numentries + 1);
         Array content = this.content.destination(numitems, numentries);
-        return new JaggedArray(this, numentries, counts, content);
+        return new JaggedArray(this, numentries, offsets, content);
     }
 
     @Override
     public void fill(Array source, Array destination, int itemstart, int itemstop, int entrystart, int entrystop) {
         this.content.fill(((JaggedArray)source).content(), ((JaggedArray)destination).content(), itemstart, itemstop, entrystart, entrystop);
-        ((JaggedArray)destination).counts().copyitems(((JaggedArray)source).counts(), entrystart, entrystop);
+        ((JaggedArray)destination).offsets().copyoffsets(((JaggedArray)source).offsets(), entrystart, entrystop, itemstart);
     }
 
     @Override
     public Array clip(Array destination, int entrystart, int entrystop) {
-        PrimitiveArray.Int4 counts = (PrimitiveArray.Int4)(((JaggedArray)destination).counts().clip(entrystart, entrystop));
-        // FIXME: does the content need to be explicitly clipped? Does that involve a cumsum?
-        Array content = ((JaggedArray)destination).content();
-        return new JaggedArray(this, counts.length(), counts, content);
+        return destination.clip(entrystart, entrystop);
     }
 
     @Override
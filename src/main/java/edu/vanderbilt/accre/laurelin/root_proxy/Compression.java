@@ -49,7 +49,16 @@ public class Compression {
         return ret;
     }
 
-    static ByteBuffer decompressBytes(ByteBuffer in, int compressedSize, int decompressedSize) throws IOException {
+    /**
+     * Decompress a ROOT object, which is a sequence of compression frames
+     *
+     * @param in the compressed bytes, starting at the first frame
+     * @param compressedSize number of compressed bytes
+     * @param decompressedSize number of bytes after decompression
+     * @return the decompressed bytes
+     * @throws IOException if the frames are corrupt
+     */
+    public static ByteBuffer decompressBytes(ByteBuffer in, int compressedSize, int decompressedSize) throws IOException {
         //CHECKSTYLE:OFF
         int HDRSIZE = 9;
         int L4CSUMSIZE = 8;
@@ -61,9 +70,18 @@ public class Compression {
         // not possible if we need to support random access into the unpacked array.
         // try
         // {
-        byte[] buf = new byte[compressedSize];
-        in.position(0);
-        in.get(buf, 0, compressedSize);
+        byte[] buf;
+        int bufOffset;
+        if (in.hasArray()) {
+            // decompress straight out of the buffer read from the file
+            buf = in.array();
+            bufOffset = in.arrayOffset();
+        } else {
+            buf = new byte[compressedSize];
+            bufOffset = 0;
+            in.position(0);
+            in.get(buf, 0, compressedSize);
+        }
         byte[] out = new byte[decompressedSize];
         // byte[] out = new byte[decompressedSize];
         int frameOffset = 0;
@@ -88,7 +106,7 @@ public class Compression {
                 frameOffset += L4CSUMSIZE;
             }
             try {
-                decompressFrame(buf, out, algo, frameOffset, outOffset, frameCompressedSize, frameDecompressedSize);
+                decompressFrame(buf, out, algo, bufOffset + frameOffset, outOffset, frameCompressedSize, frameDecompressedSize);
             } catch (DataFormatException e) {
                 // TODO Auto-generated catch block
                 e.printStackTrace();
@@ -53,6 +53,20 @@ public class IOFactory {
         return ret;
     }
 
+    /**
+     * Get the hadoop configuration from the active spark session, falling
+     * back to the defaults if there is no session (e.g. unit tests)
+     *
+     * @return Configuration to use to instantiate hadoop FileSystems
+     */
+    public static Configuration getHadoopConfiguration() {
+        try {
+            return SparkSession.active().sparkContext().hadoopConfiguration();
+        } catch (IllegalStateException e) {
+            return new Configuration();
+        }
+    }
+
     /**
      * Perform glob-expansion on a list of paths, then recursively expand any
      * directories listed in the list.
@@ -62,12 +76,7 @@ public class IOFactory {
      * @throws IOException If any globs don't resolve or paths don't exist
      */
     public static List<Path> resolvePathList(List<String> paths) throws IOException {
-        Configuration hadoopConf;
-        try {
-            hadoopConf = SparkSession.active().sparkContext().hadoopConfiguration();
-        } catch (IllegalStateException e) {
-            hadoopConf = new Configuration();
-        }
+        Configuration hadoopConf = getHadoopConfiguration();
 
         List<Path> globResolved = new ArrayList<Path>(paths.size());
         // First perform any globbing
@@ -176,12 +185,7 @@ public class IOFactory {
      * @throws IOException Nothing matches the given glob
      */
     private static List<Path> resolveGlob(String path) throws IOException {
-        Configuration hadoopConf;
-        try {
-            hadoopConf = SparkSession.active().sparkContext().hadoopConfiguration();
-        } catch (IllegalStateException e) {
-            hadoopConf = new Configuration();
-        }
+        Configuration hadoopConf = getHadoopConfiguration();
 
         Path hdfsPath = new Path(path);
         FileSystem fs = hdfsPath.getFileSystem(hadoopConf);
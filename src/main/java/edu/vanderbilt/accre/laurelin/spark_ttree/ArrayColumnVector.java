@@ -20,7 +20,7 @@ public class ArrayColumnVector extends ColumnVector {
 
     @Override
     public void close() {
-        // TODO Auto-generated method stub
+        array = null;
     }
 
     @Override
@@ -118,37 +118,41 @@ public class ArrayColumnVector extends ColumnVector {
 
     @Override
     public boolean[] getBooleans(int rowId, int count) {
-        return (boolean[])array.toArray();
+        byte[] tmp = (byte[])array.clip(rowId, rowId + count).toArray();
+        boolean[] ret = new boolean[count];
+        for (int i = 0; i < count; i += 1) {
+            ret[i] = (tmp[i] != 0);
+        }
+        return ret;
     }
 
     @Override
     public byte[] getBytes(int rowId, int count) {
-        return (byte[])array.toArray();
+        return (byte[])array.clip(rowId, rowId + count).toArray();
     }
 
     @Override
     public short[] getShorts(int rowId, int count) {
-        return (short[])array.toArray();
+        return (short[])array.clip(rowId, rowId + count).toArray();
     }
 
     @Override
     public int[] getInts(int rowId, int count) {
-        return (int[])array.toArray();
+        return (int[])array.clip(rowId, rowId + count).toArray();
     }
 
     @Override
     public long[] getLongs(int rowId, int count) {
-        return (long[])array.toArray();
+        return (long[])array.clip(rowId, rowId + count).toArray();
     }
 
     @Override
     public float[] getFloats(int rowId, int count) {
-        return (float[])array.toArray();
+        return (float[])array.clip(rowId, rowId + count).toArray();
     }
 
     @Override
     public double[] getDoubles(int rowId, int count) {
-        // TODO Auto-generated method stub
-        return super.getDoubles(rowId, count);
+        return (double[])array.clip(rowId, rowId + count).toArray();
     }
 }
@@ -0,0 +1,339 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.complex.StructVector;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.BooleanType;
+import org.apache.spark.sql.types.ByteType;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DoubleType;
+import org.apache.spark.sql.types.FloatType;
+import org.apache.spark.sql.types.IntegerType;
+import org.apache.spark.sql.types.LongType;
+import org.apache.spark.sql.types.ShortType;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.vectorized.ArrowColumnVector;
+import org.apache.spark.sql.vectorized.ColumnVector;
+import org.apache.spark.sql.vectorized.ColumnarBatch;
+
+import edu.vanderbilt.accre.laurelin.array.Array;
+import edu.vanderbilt.accre.laurelin.array.JaggedArray;
+import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
+import io.netty.buffer.ArrowBuf;
+
+/**
+ * Copies the decoded baskets of a batch into Arrow vectors, wrapped in
+ * Spark's ArrowColumnVector. Jagged and fixed-length arrays become
+ * ListVectors. This only changes the vectors the columns are exposed as,
+ * Spark 2.4 still converts rows to Arrow itself when it sends them to
+ * Python.
+ */
+final class ArrowVectorConverter {
+    /**
+     * Parent of the allocators of each batch, which are bounded. Arrow
+     * buffers are allocated off-heap
+     */
+    private static final BufferAllocator rootAllocator = new RootAllocator(Long.MAX_VALUE);
+
+    private ArrowVectorConverter() { }
+
+    /**
+     * Make the allocator a converted batch is allocated from, which is
+     * closed along with the batch
+     *
+     * @param name name of the allocator, shown if it leaks
+     * @param limit the most it may allocate, see {@link #getBufferBytes}
+     * @return the allocator
+     */
+    static BufferAllocator newAllocator(String name, long limit) {
+        return rootAllocator.newChildAllocator(name, 0, limit);
+    }
+
+    /**
+     * Find an upper bound on the memory converting a batch allocates. Each
+     * buffer is sized for the rows it holds, and Arrow rounds it up to a
+     * power of two
+     *
+     * @param batch batch returned by PartitionReader.makeBatch
+     * @return size in bytes
+     */
+    static long getBufferBytes(ColumnarBatch batch) {
+        long ret = 0;
+        for (int i = 0; i < batch.numCols(); i += 1) {
+            ret += getBufferBytes(batch.column(i), batch.numRows());
+        }
+        return ret;
+    }
+
+    private static long getBufferBytes(ColumnVector src, int numRows) {
+        if (src instanceof StructColumnVector) {
+            // allocating the struct allocates each field, which is then
+            // allocated again when it's copied
+            long ret = roundUp(getValidityBytes(numRows));
+            for (ColumnVector field: ((StructColumnVector) src).fields) {
+                ret += getInitialBytes(field, numRows) + getBufferBytes(field, numRows);
+            }
+            return ret;
+        }
+        Array array = ((TTreeColumnVector) src).getBatchArray();
+        if (array instanceof JaggedArray) {
+            PrimitiveArray.Int4 offsets = ((JaggedArray) array).offsets();
+            int total = offsets.get(numRows) - offsets.get(0);
+            return getListBytes(numRows) + getPrimitiveBytes((PrimitiveArray) ((JaggedArray) array).content(), total);
+        } else if (src.dataType() instanceof ArrayType) {
+            PrimitiveArray fixed = (PrimitiveArray) array;
+            return getListBytes(numRows) + getPrimitiveBytes((PrimitiveArray) fixed.subarray(), numRows * fixed.multiplicity());
+        } else {
+            return getPrimitiveBytes((PrimitiveArray) array, numRows);
+        }
+    }
+
+    /**
+     * The memory a vector holds after its parent struct allocates it for
+     * numRows rows. Lists size their values for 5 per row
+     */
+    private static long getInitialBytes(ColumnVector src, int numRows) {
+        if (src instanceof StructColumnVector) {
+            long ret = roundUp(getValidityBytes(numRows));
+            for (ColumnVector field: ((StructColumnVector) src).fields) {
+                ret += getInitialBytes(field, numRows);
+            }
+            return ret;
+        }
+        Array array = ((TTreeColumnVector) src).getBatchArray();
+        if (array instanceof JaggedArray) {
+            return getListBytes(numRows) + getPrimitiveBytes((PrimitiveArray) ((JaggedArray) array).content(), 5 * numRows);
+        } else if (src.dataType() instanceof ArrayType) {
+            return getListBytes(numRows) + getPrimitiveBytes((PrimitiveArray) ((PrimitiveArray) array).subarray(), 5 * numRows);
+        } else {
+            return getPrimitiveBytes((PrimitiveArray) array, numRows);
+        }
+    }
+
+    private static long getListBytes(int numRows) {
+        return roundUp(getValidityBytes(numRows)) + roundUp(4L * (numRows + 1));
+    }
+
+    private static long getPrimitiveBytes(PrimitiveArray array, int count) {
+        int itemsize = getItemSize(array);
+        long values = (itemsize == 0) ? getValidityBytes(count) : ((long) count * itemsize);
+        return roundUp(values) + roundUp(getValidityBytes(count));
+    }
+
+    private static long getValidityBytes(int count) {
+        return (count + 7) / 8;
+    }
+
+    private static long roundUp(long bytes) {
+        return (bytes <= 1) ? bytes : Long.highestOneBit(bytes - 1) << 1;
+    }
+
+    /**
+     * @return the bytes per value in Arrow, 0 for bits
+     */
+    private static int getItemSize(PrimitiveArray array) {
+        if (array instanceof PrimitiveArray.Bool) {
+            return 0;
+        } else if (array instanceof PrimitiveArray.Int1) {
+            return 1;
+        } else if (array instanceof PrimitiveArray.Int2) {
+            return 2;
+        } else if ((array instanceof PrimitiveArray.Int4) || (array instanceof PrimitiveArray.Float4)) {
+            return 4;
+        } else if ((array instanceof PrimitiveArray.Int8) || (array instanceof PrimitiveArray.Float8)) {
+            return 8;
+        } else {
+            throw new IllegalArgumentException("Unknown array type: " + array.getClass());
+        }
+    }
+
+    /**
+     * Convert a batch of TTreeColumnVectors. The input batch is closed.
+     *
+     * @param batch batch returned by PartitionReader.makeBatch
+     * @param allocator allocator for the Arrow buffers, which the caller
+     *          closes after the returned batch
+     * @return a batch of ArrowColumnVectors with the same contents
+     */
+    static ColumnarBatch convert(ColumnarBatch batch, BufferAllocator allocator) {
+        int numRows = batch.numRows();
+        ColumnVector[] vecs = new ColumnVector[batch.numCols()];
+        try {
+            for (int i = 0; i < batch.numCols(); i += 1) {
+                ColumnVector src = batch.column(i);
+                FieldVector dst = toField("col" + i, src.dataType()).createVector(allocator);
+                vecs[i] = new ArrowColumnVector(dst);
+                copy(src, dst, numRows);
+            }
+        } catch (RuntimeException e) {
+            for (ColumnVector vec: vecs) {
+                if (vec != null) {
+                    vec.close();
+                }
+            }
+            throw e;
+        } finally {
+            batch.close();
+        }
+        ColumnarBatch ret = new ColumnarBatch(vecs);
+        ret.setNumRows(numRows);
+        return ret;
+    }
+
+    private static Field toField(String name, DataType type) {
+        List<Field> children = Collections.emptyList();
+        ArrowType arrowType;
+        if (type instanceof StructType) {
+            arrowType = new ArrowType.Struct();
+            children = new ArrayList<Field>();
+            for (StructField field: ((StructType) type).fields()) {
+                children.add(toField(field.name(), field.dataType()));
+            }
+        } else if (type instanceof ArrayType) {
+            arrowType = new ArrowType.List();
+            children = Collections.singletonList(toField("element", ((ArrayType) type).elementType()));
+        } else if (type instanceof BooleanType) {
+            arrowType = new ArrowType.Bool();
+        } else if (type instanceof ByteType) {
+            arrowType = new ArrowType.Int(8, true);
+        } else if (type instanceof ShortType) {
+            arrowType = new ArrowType.Int(16, true);
+        } else if (type instanceof IntegerType) {
+            arrowType = new ArrowType.Int(32, true);
+        } else if (type instanceof LongType) {
+            arrowType = new ArrowType.Int(64, true);
+        } else if (type instanceof FloatType) {
+            arrowType = new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+        } else if (type instanceof DoubleType) {
+            arrowType = new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+        } else {
+            throw new IllegalArgumentException("Unsupported type for arrow: " + type);
+        }
+        return new Field(name, FieldType.nullable(arrowType), children);
+    }
+
+    private static void copy(ColumnVector src, FieldVector dst, int numRows) {
+        if (src instanceof StructColumnVector) {
+            StructVector struct = (StructVector) dst;
+            struct.setInitialCapacity(numRows);
+            struct.allocateNew();
+            List<FieldVector> children = struct.getChildrenFromFields();
+            int idx = 0;
+            for (ColumnVector field: ((StructColumnVector) src).fields) {
+                copy(field, children.get(idx), numRows);
+                idx += 1;
+            }
+            for (int i = 0; i < numRows; i += 1) {
+                struct.setIndexDefined(i);
+            }
+            struct.setValueCount(numRows);
+        } else if (src instanceof TTreeColumnVector) {
+            copyArray(((TTreeColumnVector) src).getBatchArray(), dst, numRows);
+        } else {
+            throw new IllegalArgumentException("Unknown column vector: " + src.getClass());
+        }
+    }
+
+    private static void copyArray(Array array, FieldVector dst, int numRows) {
+        if (dst instanceof ListVector) {
+            ListVector list = (ListVector) dst;
+            list.setInitialCapacity(numRows);
+            list.allocateNew();
+            PrimitiveArray content;
+            int total;
+            if (array instanceof JaggedArray) {
+                JaggedArray jagged = (JaggedArray) array;
+                PrimitiveArray.Int4 offsets = jagged.offsets();
+                int base = offsets.get(0);
+                int start = base;
+                for (int i = 0; i < numRows; i += 1) {
+                    int stop = offsets.get(i + 1);
+                    list.startNewValue(i);
+                    list.endValue(i, stop - start);
+                    start = stop;
+                }
+                total = start - base;
+                content = (PrimitiveArray) jagged.content().clip(base, start);
+            } else {
+                // Fixed-length arrays are stored contiguously
+                PrimitiveArray fixed = (PrimitiveArray) array;
+                int multiplicity = fixed.multiplicity();
+                for (int i = 0; i < numRows; i += 1) {
+                    list.startNewValue(i);
+                    list.endValue(i, multiplicity);
+                }
+                total = numRows * multiplicity;
+                content = (PrimitiveArray) fixed.subarray();
+            }
+            copyPrimitive(content, list.getDataVector(), total);
+            list.setValueCount(numRows);
+        } else {
+            copyPrimitive((PrimitiveArray) array, dst, numRows);
+        }
+    }
+
+    /**
+     * Copy the items straight from the decoded buffer into the vector's data
+     * buffer. Arrow is little-endian, so buffers in that order (anything
+     * decoded from more than one basket) are copied in bulk, and others
+     * (views of a single basket) are byteswapped item by item
+     */
+    private static void copyPrimitive(PrimitiveArray src, FieldVector dst, int count) {
+        dst.setInitialCapacity(count);
+        dst.allocateNew();
+        ByteBuffer buf = src.byteView();
+        int pos = buf.position();
+        int itemsize = getItemSize(src);
+        if (itemsize == 0) {
+            BitVector vec = (BitVector) dst;
+            for (int i = 0; i < count; i += 1) {
+                vec.set(i, buf.get(pos + i) != 0 ? 1 : 0);
+            }
+            dst.setValueCount(count);
+            return;
+        }
+        ArrowBuf data = dst.getDataBuffer();
+        if (buf.hasArray() && ((itemsize == 1) || (buf.order() == ByteOrder.LITTLE_ENDIAN))) {
+            data.setBytes(0, buf.array(), buf.arrayOffset() + pos, count * itemsize);
+        } else if (itemsize == 1) {
+            for (int i = 0; i < count; i += 1) {
+                data.setByte(i, buf.get(pos + i));
+            }
+        } else if (itemsize == 2) {
+            for (int i = 0; i < count; i += 1) {
+                data.setShort(2 * i, buf.getShort(pos + 2 * i));
+            }
+        } else if (itemsize == 4) {
+            // floats are copied by their bits
+            for (int i = 0; i < count; i += 1) {
+                data.setInt(4 * i, buf.getInt(pos + 4 * i));
+            }
+        } else {
+            for (int i = 0; i < count; i += 1) {
+                data.setLong(8 * i, buf.getLong(pos + 8 * i));
+            }
+        }
+        // nothing is null
+        ArrowBuf validity = dst.getValidityBuffer();
+        long validityBytes = getValidityBytes(count);
+        for (int i = 0; i < validityBytes; i += 1) {
+            validity.setByte(i, 0xff);
+        }
+        dst.setValueCount(count);
+    }
+}
@@ -0,0 +1,108 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.spark.sql.sources.And;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.v2.DataSourceOptions;
+import org.apache.spark.sql.types.StructType;
+
+/**
+ * Uses the basket statistics of the branches named by the "statsBranches"
+ * and "bloomFilterBranches" options to find the entries of each file which
+ * may match the filters Spark pushed, so partitions (and the baskets
+ * within them) which can't match are never planned.
+ */
+class BasketPruner implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String treeName;
+    private String metadataCacheDir;
+    private int threadCount;
+    private Set<String> statsBranches;
+    private Set<String> bloomFilterBranches;
+    private Filter[] filters = new Filter[0];
+
+    BasketPruner(DataSourceOptions options, String treeName, String metadataCacheDir, int threadCount) {
+        this.treeName = treeName;
+        this.metadataCacheDir = metadataCacheDir;
+        this.threadCount = threadCount;
+        bloomFilterBranches = parseBranches(options.get("bloomFilterBranches").orElse(""));
+        statsBranches = parseBranches(options.get("statsBranches").orElse(""));
+        statsBranches.addAll(bloomFilterBranches);
+    }
+
+    private static Set<String> parseBranches(String option) {
+        Set<String> ret = new HashSet<String>();
+        for (String branch: option.split(",")) {
+            if (!branch.trim().isEmpty()) {
+                ret.add(branch.trim());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if any branch has statistics to prune with
+     */
+    boolean isEnabled() {
+        return !statsBranches.isEmpty();
+    }
+
+    /**
+     * @param filter the filter Spark pushed
+     * @param schema the columns which are read
+     * @return true if the filter compares against a branch with statistics
+     */
+    boolean canPrune(Filter filter, StructType schema) {
+        for (String column: BatchFilter.getColumns(filter, schema)) {
+            if (statsBranches.contains(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void setFilters(Filter[] filters) {
+        this.filters = filters;
+    }
+
+    /**
+     * Find the entries of a file which may match every filter, building or
+     * loading the statistics of the branches the filters compare against
+     *
+     * @param path ROOT file to check
+     * @param index metadata of the tree in the file
+     * @param schema the columns which are read
+     * @return the [start, end) ranges of entries which may match, flattened
+     *          into pairs, or null if every entry may match
+     */
+    long[] selectEntries(String path, TTreeIndex index, StructType schema) {
+        List<Filter> pruning = new ArrayList<Filter>();
+        Map<String, BasketStats> stats = new HashMap<String, BasketStats>();
+        for (Filter filter: filters) {
+            if (!canPrune(filter, schema)) {
+                continue;
+            }
+            pruning.add(filter);
+            for (String column: BatchFilter.getColumns(filter, schema)) {
+                if (statsBranches.contains(column) && !stats.containsKey(column)) {
+                    stats.put(column, BasketStats.getCachedStats(path, treeName, index.getBranch(column), schema.apply(column).dataType(), bloomFilterBranches.contains(column), metadataCacheDir, threadCount));
+                }
+            }
+        }
+        if (pruning.isEmpty()) {
+            return null;
+        }
+        Filter combined = pruning.get(0);
+        for (int i = 1; i < pruning.size(); i += 1) {
+            combined = new And(combined, pruning.get(i));
+        }
+        return BatchFilter.selectEntries(combined, schema, stats::get, index.getEntries());
+    }
+}
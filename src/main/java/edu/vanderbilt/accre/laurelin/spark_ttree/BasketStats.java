@@ -0,0 +1,451 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.sql.types.BooleanType;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DoubleType;
+import org.apache.spark.sql.types.FloatType;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import edu.vanderbilt.accre.laurelin.array.Array;
+import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+import edu.vanderbilt.accre.laurelin.cache.BasketCache;
+import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
+import edu.vanderbilt.accre.laurelin.interpretation.Interpretation;
+import edu.vanderbilt.accre.laurelin.root_proxy.IOFactory;
+import edu.vanderbilt.accre.laurelin.root_proxy.SimpleType;
+
+/**
+ * The smallest and largest value in each basket of a scalar branch, and
+ * optionally a Bloom filter of the values in each basket of an integer
+ * branch, used to skip the baskets a filter can't match at planning time.
+ *
+ * <p>Unlike the TTreeIndex, these can only be computed by decoding every
+ * basket of the branch, so they are only built for the branches the user
+ * asks for. Like the TTreeIndex, they can be persisted as sidecar files in
+ * the metadata cache directory, so only the first job over a file pays for
+ * the decoding. Min/max ranges suit branches which are (mostly) sorted such
+ * as run and luminosity block numbers, while Bloom filters let lookups of
+ * unsorted IDs such as event numbers skip most baskets.
+ */
+public class BasketStats {
+    private static final Logger logger = LogManager.getLogger();
+
+    /**
+     * Marks the beginning of a sidecar file, "LRST"
+     */
+    private static final int MAGIC = 0x4c525354;
+
+    /**
+     * Bump whenever the on-disk format changes, stale versions are rebuilt
+     */
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".stats";
+
+    /**
+     * False positive rate of the per-basket Bloom filters
+     */
+    private static final double BLOOM_FPP = 0.01;
+
+    private long[] basketEntryOffsets;
+
+    /**
+     * Per-basket bounds, the long ones are used for integer (and boolean)
+     * branches and the double ones for floating point branches. Empty
+     * baskets have min > max
+     */
+    private long[] minLong;
+    private long[] maxLong;
+    private double[] minDouble;
+    private double[] maxDouble;
+
+    /**
+     * Per-basket Bloom filters of integer branches, or null
+     */
+    private BloomFilter<Long>[] blooms;
+
+    /**
+     * Executor-wide cache of statistics, keyed by (path, size, modification
+     * time, tree name, branch name, bloom), so a file rewritten in place is
+     * decoded again. Soft values let the GC reclaim them if memory gets tight.
+     */
+    private static Cache<List<Object>, BasketStats> statsCache = CacheBuilder.newBuilder()
+                                                                    .softValues()
+                                                                    .build();
+
+    private BasketStats() { }
+
+    /**
+     * Decode every basket of a branch to compute its statistics
+     *
+     * @param path ROOT file holding the branch
+     * @param branch index of the branch
+     * @param type Spark type of the branch, which must be a boolean or
+     *             numeric scalar
+     * @param bloom true to also build Bloom filters, which is only allowed
+     *              for integer branches
+     * @param threadCount baskets decompressed or scanned at once on the
+     *              shared pools, 0 to decode them on this thread
+     * @return the statistics of each basket
+     */
+    public static BasketStats build(String path, TTreeIndex.BranchIndex branch, DataType type, boolean bloom, int threadCount) {
+        boolean integral = BatchFilter.isIntegral(type);
+        if (!integral && !(type instanceof FloatType) && !(type instanceof DoubleType)) {
+            throw new IllegalArgumentException("Basket statistics need a numeric or boolean branch, " + branch.getName() + " is " + type);
+        }
+        if ((branch.getArrayDesc() != null) || (branch.getRootType() == null)) {
+            throw new IllegalArgumentException("Basket statistics need a scalar branch: " + branch.getName());
+        }
+        if (bloom && (!integral || (type instanceof BooleanType))) {
+            throw new IllegalArgumentException("Bloom filters need an integer branch, " + branch.getName() + " is " + type);
+        }
+
+        BasketStats ret = new BasketStats();
+        ret.basketEntryOffsets = branch.getBasketEntryOffsets();
+        int basketCount = ret.basketEntryOffsets.length - 1;
+        if (integral) {
+            ret.minLong = new long[basketCount];
+            ret.maxLong = new long[basketCount];
+        } else {
+            ret.minDouble = new double[basketCount];
+            ret.maxDouble = new double[basketCount];
+        }
+        if (bloom) {
+            ret.blooms = newBloomArray(basketCount);
+        }
+
+        Interpretation interpretation = new AsDtype(SimpleType.dtypeFromString(branch.getRootType()));
+        ArrayBuilder.GetBasket getbasket = branch.toSlimTBranch(path).getArrayBranchCallback(BasketCache.getCache(), null);
+        if (threadCount <= 0) {
+            for (int i = 0; i < basketCount; i += 1) {
+                ret.fillBasket(i, type, interpretation, getbasket, getbasket.dataWithoutKey(i));
+            }
+            return ret;
+        }
+
+        /*
+         * Like ArrayBuilder, each basket is read on the IO pool and
+         * decompressed on the decompress pool, and only the pass over its
+         * values runs on the interpret pool. Each basket fills its own
+         * slots, so they can finish in any order
+         */
+        DecodeScheduler.TaskQueue ioQueue = DecodeScheduler.getInstance(DecodeScheduler.Stage.IO).newQueue(DecodeScheduler.getInstance(DecodeScheduler.Stage.IO).getParallelism());
+        DecodeScheduler.TaskQueue decompressQueue = DecodeScheduler.getInstance(DecodeScheduler.Stage.DECOMPRESS).newQueue(threadCount);
+        DecodeScheduler.TaskQueue interpretQueue = DecodeScheduler.getInstance(DecodeScheduler.Stage.INTERPRET).newQueue(threadCount);
+        // bounds the baskets held in memory at once
+        int maxInFlight = 4 * threadCount;
+        List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>(basketCount);
+        try {
+            for (int i = 0; i < basketCount; i += 1) {
+                if (i >= maxInFlight) {
+                    tasks.get(i - maxInFlight).get();
+                }
+                final int basket = i;
+                tasks.add(CompletableFuture.supplyAsync(() -> getbasket.fetch(basket), ioQueue)
+                        .thenApplyAsync(fetched -> getbasket.decompress(basket, fetched), decompressQueue)
+                        .thenAcceptAsync(data -> ret.fillBasket(basket, type, interpretation, getbasket, data), interpretQueue));
+            }
+            for (CompletableFuture<Void> task: tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building statistics for " + branch.getName(), e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            ioQueue.cancel();
+            decompressQueue.cancel();
+            interpretQueue.cancel();
+            for (CompletableFuture<Void> task: tasks) {
+                task.cancel(false);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Compute the statistics of one decompressed basket
+     */
+    private void fillBasket(int i, DataType type, Interpretation interpretation, ArrayBuilder.GetBasket getbasket, RawArray data) {
+        long start = basketEntryOffsets[i];
+        int count = Math.toIntExact(basketEntryOffsets[i + 1] - start);
+        ArrayBuilder.GetBasket decompressed = new ArrayBuilder.GetBasket() {
+            @Override
+            public ArrayBuilder.BasketKey basketkey(int basketid) {
+                return getbasket.basketkey(basketid);
+            }
+
+            @Override
+            public RawArray dataWithoutKey(int basketid) {
+                return data;
+            }
+        };
+        Array values = new ArrayBuilder(decompressed, interpretation, basketEntryOffsets, null, start, start + count).getArray(0, count);
+        ArrayColumnVector vec = new ArrayColumnVector(type, values);
+        if (minLong != null) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            BloomFilter<Long> filter = (blooms != null) ? BloomFilter.create(Funnels.longFunnel(), Math.max(1, count), BLOOM_FPP) : null;
+            for (int j = 0; j < count; j += 1) {
+                long val = BatchFilter.getLong(vec, type, j);
+                min = Math.min(min, val);
+                max = Math.max(max, val);
+                if (filter != null) {
+                    filter.put(val);
+                }
+            }
+            minLong[i] = min;
+            maxLong[i] = max;
+            if (filter != null) {
+                blooms[i] = filter;
+            }
+        } else {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < count; j += 1) {
+                double val = (type instanceof FloatType) ? vec.getFloat(j) : vec.getDouble(j);
+                if (Double.isNaN(val)) {
+                    // NaN compares to nothing, so the basket can't be
+                    // bounded
+                    min = Double.NEGATIVE_INFINITY;
+                    max = Double.POSITIVE_INFINITY;
+                    break;
+                }
+                min = Math.min(min, val);
+                max = Math.max(max, val);
+            }
+            if (count == 0) {
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+            }
+            minDouble[i] = min;
+            maxDouble[i] = max;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BloomFilter<Long>[] newBloomArray(int length) {
+        return (BloomFilter<Long>[]) new BloomFilter[length];
+    }
+
+    /**
+     * Get the statistics of a branch, consulting (and populating) the
+     * sidecar cache if a cache directory is given
+     *
+     * @param path ROOT file holding the branch
+     * @param treeName name of the TTree within the file
+     * @param branch index of the branch
+     * @param type Spark type of the branch
+     * @param bloom true to also build Bloom filters
+     * @param cacheDir directory holding the sidecar files, or null to always
+     *                 decode the branch
+     * @param threadCount baskets decoded at once if the statistics are
+     *                 built, 0 to decode them on this thread
+     * @return statistics of the branch
+     */
+    public static BasketStats getStats(String path, String treeName, TTreeIndex.BranchIndex branch, DataType type, boolean bloom, String cacheDir, int threadCount) {
+        Path sidecar = null;
+        FileSystem cacheFS = null;
+        if (cacheDir != null) {
+            try {
+                Configuration hadoopConf = IOFactory.getHadoopConfiguration();
+                String key = String.format("%s|%s|%b|%d", treeName, branch.getName(), bloom, VERSION);
+                sidecar = TTreeIndex.getSidecarPath(path, key, cacheDir, SUFFIX, hadoopConf);
+                cacheFS = sidecar.getFileSystem(hadoopConf);
+                if (cacheFS.exists(sidecar)) {
+                    try (DataInputStream in = new DataInputStream(cacheFS.open(sidecar))) {
+                        BasketStats ret = read(in);
+                        logger.debug("Loaded basket statistics for {} in {} from {}", branch.getName(), path, sidecar);
+                        return ret;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // A broken cache should never break the read
+                logger.warn("Unable to load basket statistics for " + branch.getName() + " in " + path + ", decoding branch instead", e);
+            }
+        }
+
+        BasketStats ret = build(path, branch, type, bloom, threadCount);
+
+        if (cacheFS != null) {
+            try {
+                // Write to a temporary file and rename it into place so
+                // concurrent readers never see partial statistics
+                Path tmp = new Path(sidecar.getParent(), sidecar.getName() + "." + UUID.randomUUID() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(cacheFS.create(tmp, true))) {
+                    ret.write(out);
+                }
+                if (!cacheFS.rename(tmp, sidecar)) {
+                    cacheFS.delete(tmp, false);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to store basket statistics for " + branch.getName() + " in " + path, e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the statistics of a branch, only loading them once per JVM
+     *
+     * @param path ROOT file holding the branch
+     * @param treeName name of the TTree within the file
+     * @param branch index of the branch
+     * @param type Spark type of the branch
+     * @param bloom true to also build Bloom filters
+     * @param cacheDir directory holding the sidecar files, or null
+     * @param threadCount baskets decoded at once if the statistics are
+     *                 built, 0 to decode them on this thread
+     * @return statistics of the branch
+     */
+    public static BasketStats getCachedStats(String path, String treeName, TTreeIndex.BranchIndex branch, DataType type, boolean bloom, String cacheDir, int threadCount) {
+        try {
+            List<Object> key = TTreeIndex.getFileKey(path);
+            key.addAll(Arrays.asList(treeName, branch.getName(), bloom));
+            return statsCache.get(key, () -> getStats(path, treeName, branch, type, bloom, cacheDir, threadCount));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public long[] getBasketEntryOffsets() {
+        return basketEntryOffsets;
+    }
+
+    /**
+     * @return true if the bounds are longs, false if they are doubles
+     */
+    public boolean isIntegral() {
+        return minLong != null;
+    }
+
+    public long getMinLong(int basket) {
+        return minLong[basket];
+    }
+
+    public long getMaxLong(int basket) {
+        return maxLong[basket];
+    }
+
+    public double getMinDouble(int basket) {
+        return minDouble[basket];
+    }
+
+    public double getMaxDouble(int basket) {
+        return maxDouble[basket];
+    }
+
+    public boolean hasBloomFilters() {
+        return blooms != null;
+    }
+
+    /**
+     * @param basket the basket to check
+     * @param value the value to look up
+     * @return false if the basket certainly doesn't hold value
+     */
+    public boolean mightContain(int basket, long value) {
+        if ((value < minLong[basket]) || (value > maxLong[basket])) {
+            return false;
+        }
+        return (blooms == null) || blooms[basket].mightContain(value);
+    }
+
+    /**
+     * Serialize these statistics to the sidecar format
+     *
+     * @param out destination
+     * @throws IOException on failure
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(basketEntryOffsets.length);
+        for (long val: basketEntryOffsets) {
+            out.writeLong(val);
+        }
+        out.writeBoolean(isIntegral());
+        int basketCount = basketEntryOffsets.length - 1;
+        for (int i = 0; i < basketCount; i += 1) {
+            if (isIntegral()) {
+                out.writeLong(minLong[i]);
+                out.writeLong(maxLong[i]);
+            } else {
+                out.writeDouble(minDouble[i]);
+                out.writeDouble(maxDouble[i]);
+            }
+        }
+        out.writeBoolean(blooms != null);
+        if (blooms != null) {
+            for (BloomFilter<Long> filter: blooms) {
+                filter.writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * Deserialize statistics from the sidecar format
+     *
+     * @param in source
+     * @return the stored statistics
+     * @throws IOException on failure or if the format is unknown
+     */
+    public static BasketStats read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a basket statistics file");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported basket statistics version: " + version);
+        }
+        BasketStats ret = new BasketStats();
+        ret.basketEntryOffsets = new long[in.readInt()];
+        for (int i = 0; i < ret.basketEntryOffsets.length; i += 1) {
+            ret.basketEntryOffsets[i] = in.readLong();
+        }
+        int basketCount = ret.basketEntryOffsets.length - 1;
+        if (in.readBoolean()) {
+            ret.minLong = new long[basketCount];
+            ret.maxLong = new long[basketCount];
+            for (int i = 0; i < basketCount; i += 1) {
+                ret.minLong[i] = in.readLong();
+                ret.maxLong[i] = in.readLong();
+            }
+        } else {
+            ret.minDouble = new double[basketCount];
+            ret.maxDouble = new double[basketCount];
+            for (int i = 0; i < basketCount; i += 1) {
+                ret.minDouble[i] = in.readDouble();
+                ret.maxDouble[i] = in.readDouble();
+            }
+        }
+        if (in.readBoolean()) {
+            ret.blooms = newBloomArray(basketCount);
+            for (int i = 0; i < basketCount; i += 1) {
+                ret.blooms[i] = BloomFilter.readFrom(in, Funnels.longFunnel());
+            }
+        }
+        return ret;
+    }
+}
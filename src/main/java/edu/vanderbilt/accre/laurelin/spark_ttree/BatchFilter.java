@@ -0,0 +1,526 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.apache.spark.sql.sources.And;
+import org.apache.spark.sql.sources.EqualNullSafe;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.GreaterThanOrEqual;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.LessThanOrEqual;
+import org.apache.spark.sql.sources.Not;
+import org.apache.spark.sql.sources.Or;
+import org.apache.spark.sql.types.BooleanType;
+import org.apache.spark.sql.types.ByteType;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DoubleType;
+import org.apache.spark.sql.types.FloatType;
+import org.apache.spark.sql.types.IntegerType;
+import org.apache.spark.sql.types.LongType;
+import org.apache.spark.sql.types.ShortType;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.vectorized.ColumnVector;
+
+import edu.vanderbilt.accre.laurelin.array.BasketEntryOffsets;
+
+/**
+ * Evaluates filters Spark pushed down against the decoded columns of a
+ * batch, to find the rows which may match them.
+ *
+ * <p>Only comparisons between a top-level numeric or boolean column and a
+ * literal are understood, anything else is assumed to match every row. The
+ * result is therefore a superset of the matching rows (floating point
+ * comparisons keep NaNs and signed zeros for the same reason), and Spark
+ * still evaluates the filters itself on the rows we return.
+ *
+ * <p>The same filters can be evaluated against the per-basket statistics of
+ * the columns to find, at planning time, the entries which may match.
+ */
+public final class BatchFilter {
+    private BatchFilter() {
+    }
+
+    private enum Op {
+        EQ, GT, GE, LT, LE
+    }
+
+    /**
+     * @param filter the filter Spark pushed
+     * @param schema the columns which are read
+     * @return true if evaluating the filter could reject any rows
+     */
+    public static boolean canEvaluate(Filter filter, StructType schema) {
+        if (filter instanceof And) {
+            return canEvaluate(((And) filter).left(), schema) || canEvaluate(((And) filter).right(), schema);
+        } else if (filter instanceof Or) {
+            return canEvaluate(((Or) filter).left(), schema) && canEvaluate(((Or) filter).right(), schema);
+        } else if (filter instanceof Not) {
+            return isExact(((Not) filter).child(), schema);
+        }
+        String attribute = getAttribute(filter);
+        if (attribute == null) {
+            return false;
+        }
+        DataType type = getColumnType(attribute, schema);
+        if (type == null) {
+            return false;
+        }
+        for (Object value: getValues(filter)) {
+            if (!isComparable(type, value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param filter the filter Spark pushed
+     * @param schema the columns which are read
+     * @return the names of the columns evaluating the filter reads
+     */
+    public static Set<String> getColumns(Filter filter, StructType schema) {
+        Set<String> ret = new HashSet<String>();
+        addColumns(filter, schema, ret);
+        return ret;
+    }
+
+    private static void addColumns(Filter filter, StructType schema, Set<String> ret) {
+        if (!canEvaluate(filter, schema)) {
+            return;
+        } else if (filter instanceof And) {
+            addColumns(((And) filter).left(), schema, ret);
+            addColumns(((And) filter).right(), schema, ret);
+        } else if (filter instanceof Or) {
+            addColumns(((Or) filter).left(), schema, ret);
+            addColumns(((Or) filter).right(), schema, ret);
+        } else if (filter instanceof Not) {
+            addColumns(((Not) filter).child(), schema, ret);
+        } else {
+            ret.add(getAttribute(filter));
+        }
+    }
+
+    /**
+     * Find the rows of a batch which may match a filter. The columns are
+     * only read when needed, e.g. the right side of an AND isn't read if no
+     * row matches the left side
+     *
+     * @param filter the filter Spark pushed
+     * @param schema the columns which are read
+     * @param columns looks up the vector of a top-level column by name
+     * @param numRows the number of rows in the batch
+     * @return which rows may match, or null if every row may
+     */
+    public static boolean[] evaluate(Filter filter, StructType schema, Function<String, ColumnVector> columns, int numRows) {
+        if (!canEvaluate(filter, schema)) {
+            return null;
+        } else if (filter instanceof And) {
+            boolean[] left = evaluate(((And) filter).left(), schema, columns, numRows);
+            if ((left != null) && (countSelected(left) == 0)) {
+                return left;
+            }
+            boolean[] right = evaluate(((And) filter).right(), schema, columns, numRows);
+            if (left == null) {
+                return right;
+            } else if (right != null) {
+                for (int i = 0; i < numRows; i += 1) {
+                    left[i] &= right[i];
+                }
+            }
+            return left;
+        } else if (filter instanceof Or) {
+            boolean[] left = evaluate(((Or) filter).left(), schema, columns, numRows);
+            if (countSelected(left) == numRows) {
+                return left;
+            }
+            boolean[] right = evaluate(((Or) filter).right(), schema, columns, numRows);
+            for (int i = 0; i < numRows; i += 1) {
+                left[i] |= right[i];
+            }
+            return left;
+        } else if (filter instanceof Not) {
+            boolean[] ret = evaluate(((Not) filter).child(), schema, columns, numRows);
+            for (int i = 0; i < numRows; i += 1) {
+                ret[i] = !ret[i];
+            }
+            return ret;
+        }
+
+        String attribute = getAttribute(filter);
+        DataType type = getColumnType(attribute, schema);
+        ColumnVector vec = columns.apply(attribute);
+        Object[] values = getValues(filter);
+        Op op = getOp(filter);
+        boolean[] ret = new boolean[numRows];
+        if (isIntegral(type)) {
+            long[] literals = new long[values.length];
+            for (int j = 0; j < values.length; j += 1) {
+                literals[j] = toLong(values[j]);
+            }
+            for (int i = 0; i < numRows; i += 1) {
+                long row = getLong(vec, type, i);
+                for (int j = 0; j < literals.length; j += 1) {
+                    if (compare(op, Long.compare(row, literals[j]))) {
+                        ret[i] = true;
+                        break;
+                    }
+                }
+            }
+        } else {
+            double[] literals = new double[values.length];
+            for (int j = 0; j < values.length; j += 1) {
+                literals[j] = ((Number) values[j]).doubleValue();
+            }
+            for (int i = 0; i < numRows; i += 1) {
+                double row = (type instanceof FloatType) ? vec.getFloat(i) : vec.getDouble(i);
+                for (int j = 0; j < literals.length; j += 1) {
+                    if (mayMatch(op, row, literals[j])) {
+                        ret[i] = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Find the entries of a tree which may match a filter, from the
+     * statistics of the baskets of the columns it compares against
+     *
+     * @param filter the filter Spark pushed
+     * @param schema the columns which are read
+     * @param stats looks up the statistics of a top-level column by name,
+     *          returning null if it has none
+     * @param entries the number of entries in the tree
+     * @return the [start, end) ranges of entries which may match, in
+     *          increasing order and flattened into pairs, or null if every
+     *          entry may match
+     */
+    public static long[] selectEntries(Filter filter, StructType schema, Function<String, BasketStats> stats, long entries) {
+        // Split the entries wherever a basket of any of the columns starts,
+        // so each segment is within a single basket of every column
+        Set<Long> boundSet = new TreeSet<Long>();
+        boundSet.add(0L);
+        boundSet.add(entries);
+        for (String column: getColumns(filter, schema)) {
+            BasketStats columnStats = stats.apply(column);
+            if (columnStats != null) {
+                for (long offset: columnStats.getBasketEntryOffsets()) {
+                    if ((offset > 0) && (offset < entries)) {
+                        boundSet.add(offset);
+                    }
+                }
+            }
+        }
+        long[] bounds = new long[boundSet.size()];
+        int idx = 0;
+        for (long bound: boundSet) {
+            bounds[idx] = bound;
+            idx += 1;
+        }
+
+        boolean[] selected = evaluateStats(filter, schema, stats, bounds);
+        if (selected == null) {
+            return null;
+        }
+        long[] ret = new long[bounds.length * 2];
+        int count = 0;
+        for (int i = 0; i < selected.length; i += 1) {
+            if (!selected[i]) {
+                continue;
+            } else if ((count > 0) && (ret[count - 1] == bounds[i])) {
+                ret[count - 1] = bounds[i + 1];
+            } else {
+                ret[count] = bounds[i];
+                ret[count + 1] = bounds[i + 1];
+                count += 2;
+            }
+        }
+        return Arrays.copyOf(ret, count);
+    }
+
+    /**
+     * Find the segments between bounds which may match a filter. Statistics
+     * only bound the values of a basket, so unlike evaluate(), NOT can't be
+     * applied to them
+     *
+     * @return which segments may match, or null if every segment may
+     */
+    private static boolean[] evaluateStats(Filter filter, StructType schema, Function<String, BasketStats> stats, long[] bounds) {
+        int segments = bounds.length - 1;
+        if (!canEvaluate(filter, schema) || (filter instanceof Not)) {
+            return null;
+        } else if (filter instanceof And) {
+            boolean[] left = evaluateStats(((And) filter).left(), schema, stats, bounds);
+            boolean[] right = evaluateStats(((And) filter).right(), schema, stats, bounds);
+            if (left == null) {
+                return right;
+            } else if (right != null) {
+                for (int i = 0; i < segments; i += 1) {
+                    left[i] &= right[i];
+                }
+            }
+            return left;
+        } else if (filter instanceof Or) {
+            boolean[] left = evaluateStats(((Or) filter).left(), schema, stats, bounds);
+            boolean[] right = evaluateStats(((Or) filter).right(), schema, stats, bounds);
+            if ((left == null) || (right == null)) {
+                return null;
+            }
+            for (int i = 0; i < segments; i += 1) {
+                left[i] |= right[i];
+            }
+            return left;
+        }
+
+        String attribute = getAttribute(filter);
+        BasketStats columnStats = stats.apply(attribute);
+        if (columnStats == null) {
+            return null;
+        }
+        DataType type = getColumnType(attribute, schema);
+        Object[] values = getValues(filter);
+        Op op = getOp(filter);
+        boolean[] ret = new boolean[segments];
+        for (int i = 0; i < segments; i += 1) {
+            int basket = BasketEntryOffsets.findBasket(columnStats.getBasketEntryOffsets(), bounds[i]);
+            if ((basket == -1) || (columnStats.isIntegral() != isIntegral(type))) {
+                ret[i] = true;
+                continue;
+            }
+            for (int j = 0; j < values.length; j += 1) {
+                if (mayMatch(op, columnStats, basket, values[j])) {
+                    ret[i] = true;
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * True unless the statistics of a basket show none of its values
+     * compare to the literal
+     */
+    private static boolean mayMatch(Op op, BasketStats stats, int basket, Object value) {
+        if (stats.isIntegral()) {
+            long literal = toLong(value);
+            long min = stats.getMinLong(basket);
+            long max = stats.getMaxLong(basket);
+            switch (op) {
+                case EQ:
+                    return stats.mightContain(basket, literal);
+                case GT:
+                    return max > literal;
+                case GE:
+                    return max >= literal;
+                case LT:
+                    return min < literal;
+                default:
+                    return min <= literal;
+            }
+        } else {
+            double literal = ((Number) value).doubleValue();
+            double min = stats.getMinDouble(basket);
+            double max = stats.getMaxDouble(basket);
+            if (Double.isNaN(literal)) {
+                return true;
+            }
+            switch (op) {
+                case EQ:
+                    return (min <= literal) && (literal <= max);
+                case GT:
+                case GE:
+                    return max >= literal;
+                default:
+                    return min <= literal;
+            }
+        }
+    }
+
+    /**
+     * @param selected the output of evaluate()
+     * @return the number of rows which may match
+     */
+    public static int countSelected(boolean[] selected) {
+        int ret = 0;
+        for (int i = 0; i < selected.length; i += 1) {
+            if (selected[i]) {
+                ret += 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * True if evaluate() returns exactly the matching rows, which is needed
+     * to negate the result
+     */
+    private static boolean isExact(Filter filter, StructType schema) {
+        if (filter instanceof And) {
+            return isExact(((And) filter).left(), schema) && isExact(((And) filter).right(), schema);
+        } else if (filter instanceof Or) {
+            return isExact(((Or) filter).left(), schema) && isExact(((Or) filter).right(), schema);
+        } else if (filter instanceof Not) {
+            return isExact(((Not) filter).child(), schema);
+        }
+        return canEvaluate(filter, schema) && isIntegral(getColumnType(getAttribute(filter), schema));
+    }
+
+    private static String getAttribute(Filter filter) {
+        if (filter instanceof EqualTo) {
+            return ((EqualTo) filter).attribute();
+        } else if (filter instanceof EqualNullSafe) {
+            return ((EqualNullSafe) filter).attribute();
+        } else if (filter instanceof GreaterThan) {
+            return ((GreaterThan) filter).attribute();
+        } else if (filter instanceof GreaterThanOrEqual) {
+            return ((GreaterThanOrEqual) filter).attribute();
+        } else if (filter instanceof LessThan) {
+            return ((LessThan) filter).attribute();
+        } else if (filter instanceof LessThanOrEqual) {
+            return ((LessThanOrEqual) filter).attribute();
+        } else if (filter instanceof In) {
+            return ((In) filter).attribute();
+        }
+        return null;
+    }
+
+    private static Object[] getValues(Filter filter) {
+        if (filter instanceof EqualTo) {
+            return new Object[] {((EqualTo) filter).value()};
+        } else if (filter instanceof EqualNullSafe) {
+            return new Object[] {((EqualNullSafe) filter).value()};
+        } else if (filter instanceof GreaterThan) {
+            return new Object[] {((GreaterThan) filter).value()};
+        } else if (filter instanceof GreaterThanOrEqual) {
+            return new Object[] {((GreaterThanOrEqual) filter).value()};
+        } else if (filter instanceof LessThan) {
+            return new Object[] {((LessThan) filter).value()};
+        } else if (filter instanceof LessThanOrEqual) {
+            return new Object[] {((LessThanOrEqual) filter).value()};
+        } else {
+            return ((In) filter).values();
+        }
+    }
+
+    private static Op getOp(Filter filter) {
+        if (filter instanceof GreaterThan) {
+            return Op.GT;
+        } else if (filter instanceof GreaterThanOrEqual) {
+            return Op.GE;
+        } else if (filter instanceof LessThan) {
+            return Op.LT;
+        } else if (filter instanceof LessThanOrEqual) {
+            return Op.LE;
+        } else {
+            // EqualTo, EqualNullSafe (our columns have no nulls) and In
+            return Op.EQ;
+        }
+    }
+
+    /**
+     * @return the type of a top-level scalar column, or null if there's no
+     *          such column
+     */
+    private static DataType getColumnType(String attribute, StructType schema) {
+        for (StructField field: schema.fields()) {
+            if (field.name().equals(attribute)) {
+                DataType type = field.dataType();
+                if (isIntegral(type) || (type instanceof FloatType) || (type instanceof DoubleType)) {
+                    return type;
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    static boolean isIntegral(DataType type) {
+        return (type instanceof BooleanType)
+                || (type instanceof ByteType)
+                || (type instanceof ShortType)
+                || (type instanceof IntegerType)
+                || (type instanceof LongType);
+    }
+
+    /**
+     * True if the literal can be compared to the column without losing
+     * precision
+     */
+    private static boolean isComparable(DataType type, Object value) {
+        if (type instanceof BooleanType) {
+            return value instanceof Boolean;
+        } else if (isIntegral(type)) {
+            return (value instanceof Byte) || (value instanceof Short) || (value instanceof Integer) || (value instanceof Long);
+        } else {
+            return (value instanceof Number) && !(value instanceof BigDecimal) && !(value instanceof BigInteger);
+        }
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        return ((Number) value).longValue();
+    }
+
+    static long getLong(ColumnVector vec, DataType type, int rowId) {
+        if (type instanceof BooleanType) {
+            return vec.getBoolean(rowId) ? 1 : 0;
+        } else if (type instanceof ByteType) {
+            return vec.getByte(rowId);
+        } else if (type instanceof ShortType) {
+            return vec.getShort(rowId);
+        } else if (type instanceof IntegerType) {
+            return vec.getInt(rowId);
+        } else {
+            return vec.getLong(rowId);
+        }
+    }
+
+    private static boolean compare(Op op, int cmp) {
+        switch (op) {
+            case EQ:
+                return cmp == 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            case LT:
+                return cmp < 0;
+            default:
+                return cmp <= 0;
+        }
+    }
+
+    /**
+     * Floating point comparisons which never reject a row Spark would keep,
+     * whichever way it orders NaN and -0.0
+     */
+    private static boolean mayMatch(Op op, double row, double literal) {
+        if (Double.isNaN(row) || Double.isNaN(literal)) {
+            return true;
+        }
+        switch (op) {
+            case EQ:
+                return row == literal;
+            case GT:
+            case GE:
+                return row >= literal;
+            default:
+                return row <= literal;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.SparkContext;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.scheduler.SparkListener;
+import org.apache.spark.scheduler.SparkListenerEvent;
+import org.apache.spark.sql.execution.SQLExecution;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionEnd;
+
+/**
+ * Unpersists the broadcast variables planned for a scan once the SQL
+ * execution running the scan ends. DataSourceReader has no hook for the end
+ * of a scan, and otherwise the executors' copies of the basket metadata are
+ * kept until the driver garbage collects the plan.
+ *
+ * <p>The broadcasts are unpersisted, not destroyed, so a plan executed again
+ * later (e.g. recomputing a cached Dataset) fetches them from the driver
+ * instead of failing. Spark's ContextCleaner destroys them with the plan.
+ * One listener is registered per SparkContext and never removed, since
+ * removing a listener from its own callback can stop (and join) the
+ * listener bus thread it's running on.
+ */
+public final class BroadcastCleaner extends SparkListener {
+    private static final Logger logger = LogManager.getLogger();
+    private static BroadcastCleaner instance;
+    private static SparkContext registeredWith;
+
+    private final Map<Long, List<Broadcast<?>>> pending = new ConcurrentHashMap<Long, List<Broadcast<?>>>();
+
+    public BroadcastCleaner() { }
+
+    /**
+     * @param sparkContext the context to listen to
+     * @return the cleaner registered with the context
+     */
+    public static synchronized BroadcastCleaner getInstance(SparkContext sparkContext) {
+        if ((instance == null) || (registeredWith != sparkContext)) {
+            instance = new BroadcastCleaner();
+            sparkContext.addSparkListener(instance);
+            registeredWith = sparkContext;
+        }
+        return instance;
+    }
+
+    /**
+     * Unpersist a broadcast when the SQL execution planning it on this
+     * thread ends. Outside of a SQL execution (e.g. when only explaining a
+     * plan), it is left to the ContextCleaner
+     *
+     * @param sparkContext the context the broadcast belongs to
+     * @param broadcast the broadcast to unpersist
+     */
+    public static void unpersistAfterExecution(SparkContext sparkContext, Broadcast<?> broadcast) {
+        String executionId = sparkContext.getLocalProperty(SQLExecution.EXECUTION_ID_KEY());
+        if (executionId == null) {
+            logger.debug("Planned outside of a SQL execution, not unpersisting broadcast " + broadcast.id());
+            return;
+        }
+        getInstance(sparkContext).unpersistAfter(Long.parseLong(executionId), broadcast);
+    }
+
+    /**
+     * @param executionId the SQL execution the broadcast is used by
+     * @param broadcast the broadcast to unpersist when it ends
+     */
+    public void unpersistAfter(long executionId, Broadcast<?> broadcast) {
+        pending.computeIfAbsent(executionId, k -> new CopyOnWriteArrayList<Broadcast<?>>()).add(broadcast);
+    }
+
+    @Override
+    public void onOtherEvent(SparkListenerEvent event) {
+        if (!(event instanceof SparkListenerSQLExecutionEnd)) {
+            return;
+        }
+        List<Broadcast<?>> broadcasts = pending.remove(((SparkListenerSQLExecutionEnd) event).executionId());
+        if (broadcasts == null) {
+            return;
+        }
+        for (Broadcast<?> broadcast: broadcasts) {
+            try {
+                broadcast.unpersist(false);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to unpersist broadcast " + broadcast.id(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import org.apache.spark.memory.MemoryConsumer;
+import org.apache.spark.memory.TaskMemoryManager;
+
+/**
+ * Accounts the baskets a PartitionReader decodes against its Spark task's
+ * execution memory, so the unified memory manager sees them when deciding
+ * whether to spill other operators or grant memory to other tasks.
+ *
+ * <p>Decoded baskets back the batches handed to Spark and can't be written
+ * out, so spilling never frees anything. Instead, the reader reserves each
+ * batch's memory before committing to more work, and backs off (no
+ * prefetch, fewer baskets decoding at once) while its reservations aren't
+ * granted in full.
+ */
+final class DecodeMemoryConsumer extends MemoryConsumer {
+    DecodeMemoryConsumer(TaskMemoryManager taskMemoryManager) {
+        super(taskMemoryManager);
+    }
+
+    /**
+     * Reserve as much of the requested memory as Spark will grant. The
+     * grant is held, even if short, since the batch is decoded regardless
+     *
+     * @param bytes size of the reservation
+     * @return the number of bytes granted, which the caller must release
+     */
+    long reserve(long bytes) {
+        if (bytes <= 0) {
+            return 0;
+        }
+        return acquireMemory(bytes);
+    }
+
+    /**
+     * Reserve memory only if it's all available
+     *
+     * @param bytes size of the reservation
+     * @return true if the whole reservation was granted
+     */
+    boolean tryReserve(long bytes) {
+        long granted = reserve(bytes);
+        if (granted < bytes) {
+            release(granted);
+            return false;
+        }
+        return true;
+    }
+
+    void release(long bytes) {
+        if (bytes > 0) {
+            freeMemory(bytes);
+        }
+    }
+
+    @Override
+    public long spill(long size, MemoryConsumer trigger) {
+        // the decoded baskets are in use by Spark, there's nothing to spill
+        return 0;
+    }
+}
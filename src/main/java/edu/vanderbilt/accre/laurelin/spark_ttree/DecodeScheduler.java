@@ -0,0 +1,449 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinPool.ManagedBlocker;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executor-wide pools which decode the baskets of every Spark task running
+ * in this JVM.
+ *
+ * <p>Decoding a basket is split into stages: reading it (waits on storage),
+ * decompressing it (waits on the CPU) and interpreting it into the output
+ * (waits on memory). Each {@link Stage} has its own scheduler and pool, so a
+ * slow read doesn't hold a thread decompression could use. The CPU stages
+ * run on work-stealing pools sized to the executor's cores, while reads use
+ * many lightweight threads (virtual threads where the JDK has them).
+ *
+ * <p>Tasks don't submit to the pools directly, instead each task gets its
+ * own {@link TaskQueue} for each stage holding its pending work. The pool's
+ * threads take work from the queues round-robin, so a task with thousands
+ * of baskets queued can't starve the tasks that arrived after it. Each
+ * queue also limits how many of its items run at once and how many may
+ * wait, and submitting to a full queue blocks the submitter until the pool
+ * catches up. This bounds the queues between the stages, since each stage
+ * submits to the next one.
+ *
+ * <p>The pools are sized by the following Spark configuration values:
+ * <ul>
+ * <li>spark.laurelin.ioThreads - reads running at once per task, and the
+ * number of reading threads without virtual threads (default: 64)
+ * <li>spark.laurelin.decompressThreads - decompression threads (default:
+ * spark.executor.cores)
+ * <li>spark.laurelin.interpretThreads - interpretation threads (default:
+ * spark.executor.cores)
+ * </ul>
+ */
+public class DecodeScheduler {
+    private static final Logger logger = LogManager.getLogger();
+
+    public enum Stage {
+        IO("spark.laurelin.ioThreads"),
+        DECOMPRESS("spark.laurelin.decompressThreads"),
+        INTERPRET("spark.laurelin.interpretThreads");
+
+        private final String confKey;
+
+        Stage(String confKey) {
+            this.confKey = confKey;
+        }
+    }
+
+    /**
+     * Number of items each task may have waiting for the pool before
+     * submitting more blocks
+     */
+    static final int DEFAULT_MAX_PENDING = 1024;
+
+    static final int DEFAULT_IO_THREADS = 64;
+
+    private static EnumMap<Stage, DecodeScheduler> singletons = new EnumMap<Stage, DecodeScheduler>(Stage.class);
+
+    private final Executor pool;
+    private final int parallelism;
+
+    /**
+     * Queues which have an item that can be started. Guarded by this
+     */
+    private final ArrayDeque<TaskQueue> ready = new ArrayDeque<TaskQueue>();
+
+    public static synchronized DecodeScheduler getInstance(Stage stage) {
+        DecodeScheduler ret = singletons.get(stage);
+        if (ret == null) {
+            SparkConf conf = (SparkEnv.get() == null) ? null : SparkEnv.get().conf();
+            if (stage == Stage.IO) {
+                int threads = getConf(conf, stage.confKey, DEFAULT_IO_THREADS);
+                ret = new DecodeScheduler(newIOPool(threads), threads);
+            } else {
+                int cores = getConf(conf, "spark.executor.cores", Runtime.getRuntime().availableProcessors());
+                ret = new DecodeScheduler(getConf(conf, stage.confKey, cores), "laurelin-" + stage.name().toLowerCase() + "-");
+            }
+            singletons.put(stage, ret);
+        }
+        return ret;
+    }
+
+    private static int getConf(SparkConf conf, String key, int defaultValue) {
+        int ret = (conf == null) ? defaultValue : conf.getInt(key, defaultValue);
+        if (ret < 1) {
+            throw new IllegalArgumentException(key + " must be positive, got " + ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Reads mostly wait, so use virtual threads if this JDK has them (found
+     * by reflection, since we're built for Java 8), otherwise a fixed pool
+     * of ordinary threads
+     */
+    private static Executor newIOPool(int threads) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            logger.trace("No virtual threads, reading baskets with " + threads + " threads");
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Couldn't make virtual threads, reading baskets with " + threads + " threads", e);
+        }
+        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("laurelin-io-%d").setDaemon(true).build();
+        ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads,
+                                                        5L, TimeUnit.SECONDS,
+                                                        new LinkedBlockingQueue<Runnable>(),
+                                                        factory);
+        ret.allowCoreThreadTimeOut(true);
+        return ret;
+    }
+
+    /**
+     * Make a standalone scheduler with a work-stealing pool. Readers should
+     * share the ones from {@link #getInstance(Stage)}
+     *
+     * @param parallelism number of threads running at once
+     */
+    public DecodeScheduler(int parallelism) {
+        this(parallelism, "laurelin-decode-");
+    }
+
+    private DecodeScheduler(int parallelism, String threadPrefix) {
+        /*
+         * The pool's threads are daemons and time out when idle, so unlike a
+         * static ThreadPoolExecutor they don't keep the JVM from shutting
+         * down
+         */
+        ForkJoinWorkerThreadFactory factory = p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(threadPrefix + thread.getPoolIndex());
+            return thread;
+        };
+        // asyncMode, since nothing joins the submitted items
+        this.pool = new ForkJoinPool(parallelism, factory, null, true);
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Make a standalone scheduler running its items on the given executor
+     *
+     * @param pool the executor running the items
+     * @param parallelism how many items pool runs at once
+     */
+    public DecodeScheduler(Executor pool, int parallelism) {
+        this.pool = pool;
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Run an item directly on the pool, outside of any task's queue. This is
+     * meant for work which itself submits to a queue (e.g. building a
+     * prefetched batch), so it doesn't hold one of the slots its own items
+     * are waiting for
+     *
+     * @param command the work to run
+     */
+    public void executeUnqueued(Runnable command) {
+        pool.execute(command);
+    }
+
+    /**
+     * Make a queue for one Spark task
+     *
+     * @param maxRunning the maximum number of the queue's items running at
+     *          once
+     * @return the queue
+     */
+    public TaskQueue newQueue(int maxRunning) {
+        return newQueue(maxRunning, DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * Make a queue for one Spark task
+     *
+     * @param maxRunning the maximum number of the queue's items running at
+     *          once
+     * @param maxPending the maximum number of the queue's items waiting to
+     *          start before submitting more blocks
+     * @return the queue
+     */
+    public TaskQueue newQueue(int maxRunning, int maxPending) {
+        return new TaskQueue(maxRunning, maxPending);
+    }
+
+    /**
+     * Start the next item of the queue at the front of the ready list. The
+     * pool runs one of these for every item that becomes startable, so each
+     * call either finds an item or another call already started it
+     */
+    private void runNext() {
+        TaskQueue queue;
+        Runnable command;
+        synchronized (this) {
+            queue = ready.poll();
+            if (queue == null) {
+                return;
+            }
+            command = queue.pending.poll();
+            queue.running += 1;
+            if (queue.startable() > 0) {
+                // back of the line, so the other queues get their turn
+                ready.add(queue);
+            }
+            // there's room in the queue now
+            notifyAll();
+        }
+        try {
+            command.run();
+        } catch (RuntimeException e) {
+            logger.error("Decode task failed", e);
+        } finally {
+            synchronized (this) {
+                int before = queue.startable();
+                queue.running -= 1;
+                scheduleIfStartable(queue, before);
+            }
+        }
+    }
+
+    /**
+     * Called with the lock held after a queue changed, to put it on the
+     * ready list and start an item for each one the change made startable
+     */
+    private void scheduleIfStartable(TaskQueue queue, int before) {
+        int after = queue.startable();
+        if (after > before) {
+            if (before == 0) {
+                ready.add(queue);
+            }
+            for (int i = before; i < after; i += 1) {
+                pool.execute(this::runNext);
+            }
+        }
+    }
+
+    /**
+     * The decode work of one Spark task. Items run in the order they were
+     * submitted, but may finish in any order
+     */
+    public class TaskQueue implements Executor {
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<Runnable>();
+        private int maxRunning;
+        private final int maxPending;
+        private int running = 0;
+        private boolean cancelled = false;
+
+        private TaskQueue(int maxRunning, int maxPending) {
+            if (maxRunning < 1) {
+                throw new IllegalArgumentException("maxRunning must be positive, got " + maxRunning);
+            }
+            if (maxPending < 1) {
+                throw new IllegalArgumentException("maxPending must be positive, got " + maxPending);
+            }
+            this.maxRunning = maxRunning;
+            this.maxPending = maxPending;
+        }
+
+        /**
+         * Number of pending items which could be started now. Needs the lock
+         */
+        private int startable() {
+            return Math.min(pending.size(), maxRunning - running);
+        }
+
+        private boolean offer(Runnable command) {
+            if (cancelled) {
+                throw new RejectedExecutionException("Decode queue was cancelled");
+            }
+            if (pending.size() >= maxPending) {
+                return false;
+            }
+            int before = startable();
+            pending.add(command);
+            scheduleIfStartable(this, before);
+            return true;
+        }
+
+        /**
+         * Queue an item, blocking while the queue is full. If called from
+         * one of the pool's threads, the pool starts another thread to make
+         * up for the blocked one
+         *
+         * @throws RejectedExecutionException if the queue is (or while
+         *          waiting becomes) cancelled
+         */
+        @Override
+        public void execute(Runnable command) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+            ManagedBlocker submit = new ManagedBlocker() {
+                private boolean done = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    synchronized (DecodeScheduler.this) {
+                        while (!offer(command)) {
+                            DecodeScheduler.this.wait();
+                        }
+                        done = true;
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    synchronized (DecodeScheduler.this) {
+                        if (!done) {
+                            done = offer(command);
+                        }
+                        return done;
+                    }
+                }
+            };
+            try {
+                ForkJoinPool.managedBlock(submit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the decode queue", e);
+            }
+        }
+
+        /**
+         * Drop the items which haven't started and reject any submitted
+         * later, for when the Spark task owning the queue ends. Items which
+         * are Futures are cancelled, which wakes anything waiting on a
+         * queued FutureTask. The stages of a CompletableFuture chain are
+         * only marked cancelled, and the futures depending on them never
+         * complete, so whoever waits on those must cancel them itself (as
+         * ArrayBuilder.cancel() does). A stage submitted after the cancel
+         * completes its future exceptionally instead. Items already running
+         * are left to finish
+         */
+        public void cancel() {
+            ArrayList<Runnable> dropped;
+            synchronized (DecodeScheduler.this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                ready.remove(this);
+                dropped = new ArrayList<Runnable>(pending);
+                pending.clear();
+                // wake submitters blocked on a full queue so they see the
+                // cancellation
+                DecodeScheduler.this.notifyAll();
+            }
+            for (Runnable command: dropped) {
+                if (command instanceof Future) {
+                    ((Future<?>) command).cancel(false);
+                }
+            }
+            if (!dropped.isEmpty()) {
+                logger.trace("Dropped " + dropped.size() + " queued decode items");
+            }
+        }
+
+        /**
+         * Change how many of the queue's items may run at once. Lowering it
+         * doesn't stop items already running, but no more start until the
+         * queue is back under the new limit
+         *
+         * @param maxRunning the maximum number of the queue's items running
+         *          at once
+         */
+        public void setMaxRunning(int maxRunning) {
+            if (maxRunning < 1) {
+                throw new IllegalArgumentException("maxRunning must be positive, got " + maxRunning);
+            }
+            synchronized (DecodeScheduler.this) {
+                int before = startable();
+                this.maxRunning = maxRunning;
+                if (cancelled) {
+                    return;
+                }
+                if ((before > 0) && (startable() == 0)) {
+                    ready.remove(this);
+                } else {
+                    scheduleIfStartable(this, before);
+                }
+            }
+        }
+
+        /**
+         * @return the maximum number of the queue's items running at once
+         */
+        public int getMaxRunning() {
+            synchronized (DecodeScheduler.this) {
+                return maxRunning;
+            }
+        }
+
+        /**
+         * @return true if cancel() was called
+         */
+        public boolean isCancelled() {
+            synchronized (DecodeScheduler.this) {
+                return cancelled;
+            }
+        }
+
+        /**
+         * @return the number of items waiting to be started
+         */
+        public int getPendingCount() {
+            synchronized (DecodeScheduler.this) {
+                return pending.size();
+            }
+        }
+
+        /**
+         * @return the number of items currently running
+         */
+        public int getRunningCount() {
+            synchronized (DecodeScheduler.this) {
+                return running;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.HashMap;
+
+import org.apache.spark.serializer.KryoRegistrator;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
+
+/**
+ * Registers Laurelin's partitions and basket metadata with Kryo, using
+ * compact serializers that varint- and delta-encode the offsets.
+ *
+ * <p>This only affects what Spark serializes with spark.serializer: task
+ * results (such as the partitions collected from the executors during
+ * planning) and broadcast variables (the metadata broadcast in the
+ * "broadcast" metadataMode). Tasks, and the partitions inside them, are
+ * always serialized with Java serialization. Enable it by adding the
+ * following to the Spark configuration:
+ * <pre>
+ * spark.serializer=org.apache.spark.serializer.KryoSerializer
+ * spark.kryo.registrator=edu.vanderbilt.accre.laurelin.spark_ttree.LaurelinKryoRegistrator
+ * </pre>
+ */
+public class LaurelinKryoRegistrator implements KryoRegistrator {
+    @Override
+    public void registerClasses(Kryo kryo) {
+        kryo.register(Partition.class);
+        kryo.register(ReadOptions.class);
+        kryo.register(SlimTBranchProvider.Eager.class);
+        kryo.register(SlimTBranchProvider.Executor.class);
+        kryo.register(SlimTBranchProvider.Broadcasted.class);
+        kryo.register(SlimTBranch.class);
+        kryo.register(SlimTBranch.SlimTBasket.class);
+        kryo.register(TTreeIndex.class);
+        kryo.register(TTreeIndex.BranchIndex.class);
+        kryo.register(TBranch.ArrayDescriptor.class, new ArrayDescriptorSerializer());
+        kryo.register(HashMap.class);
+        kryo.register(long[].class);
+        kryo.register(int[].class);
+    }
+
+    /**
+     * Write an array of (mostly) increasing longs as the deltas between
+     * consecutive elements, which are usually small enough to fit in one or
+     * two bytes as varints
+     *
+     * @param output destination
+     * @param vals values to write
+     */
+    static void writeDeltaLongs(Output output, long[] vals) {
+        output.writeInt(vals.length, true);
+        long prev = 0;
+        for (long val: vals) {
+            output.writeLong(val - prev, false);
+            prev = val;
+        }
+    }
+
+    static long[] readDeltaLongs(Input input) {
+        long[] ret = new long[input.readInt(true)];
+        long prev = 0;
+        for (int i = 0; i < ret.length; i += 1) {
+            prev += input.readLong(false);
+            ret[i] = prev;
+        }
+        return ret;
+    }
+
+    static void writeInts(Output output, int[] vals) {
+        output.writeInt(vals.length, true);
+        for (int val: vals) {
+            output.writeInt(val, true);
+        }
+    }
+
+    static int[] readInts(Input input) {
+        int[] ret = new int[input.readInt(true)];
+        for (int i = 0; i < ret.length; i += 1) {
+            ret[i] = input.readInt(true);
+        }
+        return ret;
+    }
+
+    public static class ArrayDescriptorSerializer extends Serializer<TBranch.ArrayDescriptor> {
+        private static final boolean DOES_NOT_ACCEPT_NULL = false;
+        private static final boolean IMMUTABLE = true;
+
+        public ArrayDescriptorSerializer() {
+            super(DOES_NOT_ACCEPT_NULL, IMMUTABLE);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, TBranch.ArrayDescriptor object) {
+            output.writeBoolean(object.isFixed());
+            output.writeInt(object.getSkipBytes(), true);
+            if (object.isFixed()) {
+                output.writeInt(object.getFixedLength(), true);
+            } else {
+                output.writeString(object.getBranchName());
+            }
+        }
+
+        @Override
+        public TBranch.ArrayDescriptor read(Kryo kryo, Input input, Class<TBranch.ArrayDescriptor> type) {
+            boolean isFixed = input.readBoolean();
+            int skipBytes = input.readInt(true);
+            if (isFixed) {
+                return TBranch.ArrayDescriptor.newNumArray(Integer.toString(input.readInt(true)), skipBytes);
+            } else {
+                return TBranch.ArrayDescriptor.newVarArray(input.readString(), skipBytes);
+            }
+        }
+    }
+}
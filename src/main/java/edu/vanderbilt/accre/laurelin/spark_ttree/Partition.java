@@ -1,15 +1,20 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
-import java.util.Map;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.spark.sql.sources.v2.reader.InputPartition;
 import org.apache.spark.sql.sources.v2.reader.InputPartitionReader;
+import org.apache.spark.sql.types.DataType;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.sql.vectorized.ColumnarBatch;
 import org.apache.spark.util.CollectionAccumulator;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
 import edu.vanderbilt.accre.laurelin.root_proxy.IOProfile.Event.Storage;
 
 /**
@@ -18,25 +23,25 @@ import edu.vanderbilt.accre.laurelin.root_proxy.IOProfile.Event.Storage;
  * <p>This is instantiated on the driver, then serialized and transmitted to
  * the executor
  */
-class Partition implements InputPartition<ColumnarBatch> {
+class Partition implements InputPartition<ColumnarBatch>, KryoSerializable {
     static final Logger logger = LogManager.getLogger();
 
     private static final long serialVersionUID = -6598704946339913432L;
     private StructType schema;
     private long entryStart;
     private long entryEnd;
-    private Map<String, SlimTBranch> slimBranches;
-    private int threadCount;
+    private SlimTBranchProvider slimBranches;
+    private ReadOptions readOptions;
     private CollectionAccumulator<Storage> profileData;
     private int pid;
 
-    public Partition(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, int threadCount, CollectionAccumulator<Storage> profileData, int pid) {
+    public Partition(StructType schema, long entryStart, long entryEnd, SlimTBranchProvider slimBranches, ReadOptions readOptions, CollectionAccumulator<Storage> profileData, int pid) {
         logger.trace("dsv2partition new");
         this.schema = schema;
         this.entryStart = entryStart;
         this.entryEnd = entryEnd;
         this.slimBranches = slimBranches;
-        this.threadCount = threadCount;
+        this.readOptions = readOptions;
         this.profileData = profileData;
         this.pid = pid;
     }
@@ -44,10 +49,40 @@ class Partition implements InputPartition<ColumnarBatch> {
     @Override
     public InputPartitionReader<ColumnarBatch> createPartitionReader() {
         logger.trace("input partition reader");
-        return new PartitionReader(schema, entryStart, entryEnd, slimBranches, threadCount, profileData, pid);
+        return new PartitionReader(schema, entryStart, entryEnd, slimBranches.getSlimBranches(schema), readOptions, profileData, pid);
     }
 
     public void setPid(int pid) {
         this.pid = pid;
     }
-}
\ No newline at end of file
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void write(Kryo kryo, Output output) {
+        output.writeString(schema.json());
+        output.writeLong(entryStart, true);
+        output.writeLong(entryEnd - entryStart, true);
+        kryo.writeClassAndObject(output, slimBranches);
+        kryo.writeObject(output, readOptions);
+        // Accumulators need Java serialization to register on the executor
+        kryo.writeObjectOrNull(output, profileData, new JavaSerializer());
+        output.writeInt(pid, true);
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void read(Kryo kryo, Input input) {
+        schema = (StructType) DataType.fromJson(input.readString());
+        entryStart = input.readLong(true);
+        entryEnd = entryStart + input.readLong(true);
+        slimBranches = (SlimTBranchProvider) kryo.readClassAndObject(input);
+        readOptions = kryo.readObject(input, ReadOptions.class);
+        profileData = kryo.readObjectOrNull(input, CollectionAccumulator.class, new JavaSerializer());
+        pid = input.readInt(true);
+    }
+}
@@ -1,25 +1,31 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 
+import org.apache.arrow.memory.BufferAllocator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.spark.TaskContext;
+import org.apache.spark.sql.sources.Filter;
 import org.apache.spark.sql.sources.v2.reader.InputPartitionReader;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.sql.vectorized.ColumnVector;
 import org.apache.spark.sql.vectorized.ColumnarBatch;
 import org.apache.spark.util.CollectionAccumulator;
+import org.apache.spark.util.TaskCompletionListener;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
+import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.BasketEntryOffsets;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype.Dtype;
 import edu.vanderbilt.accre.laurelin.root_proxy.IOProfile;
@@ -35,56 +41,115 @@ class PartitionReader implements InputPartitionReader<ColumnarBatch> {
     private StructType schema;
     private long entryStart;
     private long entryEnd;
-    private int currBasket = -1;
     private Map<String, SlimTBranch> slimBranches;
 
     /**
-     * ThreadPool handling the async decompression tasks
+     * Maximum number of rows in each batch, or 0 to return the whole
+     * partition as a single batch
      */
-    private static ThreadPoolExecutor staticExecutor;
+    private int batchSize;
 
     /**
-     *  (very) surprisingly, a static thread pool executor will prevent the
-     *  JVM from ever properly shutting down, because of a circular nature
-     *  of the references. Static variables and thread objects are GC roots,
-     *  and the thread pool object references its child threads while the
-     *  threads themselves reference the threadpool. No amount of GC runs
-     *  will make anything unreachable, so the JVM can't finalize and
-     *  shut down. To break the cycle, we need to forcibly shutdown the
-     *  thread pool, which causes it to kill its threads and allows the GC
-     *  to unravel the references.
-     *  <p>
-     *  see also: https://stackoverflow.com/a/10395700
+     * The entries within the partition where every branch starts a new
+     * basket (ROOT's cluster boundaries), followed by entryEnd. Batches only
+     * end on these, so no basket is decoded for two batches
      */
-    static {
-        ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("laurelin-arraybuilder-%d").build();
-        staticExecutor = new ThreadPoolExecutor(1, 1,
-                                                5L, TimeUnit.SECONDS,
-                                                new LinkedBlockingQueue<Runnable>(),
-                                                factory);
-        staticExecutor.allowCoreThreadTimeOut(true);
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                PartitionReader.staticExecutor.shutdownNow();
-            }
-        });
-    }
+    private long[] batchBoundaries;
+
+    /**
+     * Entry range of the current batch, batchStart is -1 before the first
+     * call to next()
+     */
+    private long batchStart = -1;
+    private long batchEnd;
+    private ColumnarBatch currBatch;
+
+    /**
+     * The following batch, if it is being built in the background, the
+     * entry range it is built for, and the limit on its size
+     */
+    private Prefetch<ColumnarBatch> nextBatch;
+    private long nextBatchStart;
+    private long nextBatchEnd;
+    private long prefetchBytes;
+    private String columnVectorType;
+
+    /**
+     * If false, a column only starts decoding when Spark first accesses it,
+     * unless Spark accessed it in an earlier batch (touchedColumns), which
+     * is only ever changed on the task's thread
+     */
+    private boolean eagerDecode;
+    private Set<String> touchedColumns = new HashSet<String>();
+
+    /**
+     * With late materialization, the pushed filters and the columns they
+     * read, otherwise null. The filter columns are decoded first, and the
+     * others only for the baskets holding rows which may match
+     */
+    private Filter[] filters;
+    private Set<String> filterColumns;
+
+    /**
+     * This task's share of the executor-wide pools reading, decompressing
+     * and interpreting baskets if async decoding is enabled, null otherwise
+     */
+    private DecodeScheduler.TaskQueue ioExecutor;
+    private DecodeScheduler.TaskQueue decompressExecutor;
+    private DecodeScheduler.TaskQueue executor;
+    private int ioThreadCount;
+    private int threadCount;
+
+    /**
+     * The task's execution memory, which decoded batches are reserved
+     * against, or null outside of a Spark task. The reservations of the
+     * current and prefetched batches are held until they're released
+     */
+    private DecodeMemoryConsumer memory;
+    private long currBatchMemory;
 
     /**
-     * Holds the async threadpool if enabled, null otherwise
+     * With columnVectorType arrow, the allocator of the current batch's
+     * Arrow buffers and the memory reserved for them
      */
-    private static ThreadPoolExecutor executor;
+    private BufferAllocator arrowAllocator;
+    private long arrowMemory;
+    private long nextBatchMemory;
+
+    /**
+     * While memory is short, the queues run 2^decodeBackoff times fewer
+     * baskets at once than configured
+     */
+    private int decodeBackoff = 0;
+    private static final int MAX_DECODE_BACKOFF = 16;
     private CollectionAccumulator<Storage> profileData;
     private int pid;
     private static ROOTFileCache fileCache = ROOTFileCache.getCache();
 
-    public PartitionReader(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, int threadCount, CollectionAccumulator<Storage> profileData, int pid) {
+    public PartitionReader(StructType schema, long entryStart, long entryEnd, Map<String, SlimTBranch> slimBranches, ReadOptions readOptions, CollectionAccumulator<Storage> profileData, int pid) {
         this.basketCache = BasketCache.getCache();
         this.schema = schema;
         this.entryStart = entryStart;
         this.entryEnd = entryEnd;
         this.slimBranches = slimBranches;
+        this.batchSize = readOptions.getBatchSize();
+        this.batchBoundaries = getBatchBoundaries();
+        this.prefetchBytes = readOptions.getPrefetchBytes();
+        this.columnVectorType = readOptions.getColumnVectorType();
+        // converting a batch reads every column, so there's nothing to skip
+        this.eagerDecode = readOptions.getDecodePolicy().equals(ReadOptions.DECODE_POLICY_EAGER)
+                || !columnVectorType.equals(ReadOptions.VECTOR_TYPE_LAURELIN);
+        if (readOptions.getLateMaterialization()) {
+            filterColumns = new HashSet<String>();
+            for (Filter filter: readOptions.getFilters()) {
+                filterColumns.addAll(BatchFilter.getColumns(filter, schema));
+            }
+            if (!filterColumns.isEmpty()) {
+                filters = readOptions.getFilters();
+            } else {
+                filterColumns = null;
+            }
+        }
         this.profileData = profileData;
         this.pid = pid;
 
@@ -97,67 +162,572 @@ class PartitionReader implements InputPartitionReader<ColumnarBatch> {
         }
         IOProfile.getInstance(pid, cb);
 
+        threadCount = readOptions.getThreadCount();
         if (threadCount >= 1) {
-            executor = staticExecutor;
-            executor.setCorePoolSize(threadCount);
-            executor.setMaximumPoolSize(threadCount);
+            ioThreadCount = DecodeScheduler.getInstance(DecodeScheduler.Stage.IO).getParallelism();
+            ioExecutor = DecodeScheduler.getInstance(DecodeScheduler.Stage.IO).newQueue(ioThreadCount);
+            decompressExecutor = DecodeScheduler.getInstance(DecodeScheduler.Stage.DECOMPRESS).newQueue(threadCount);
+            executor = DecodeScheduler.getInstance(DecodeScheduler.Stage.INTERPRET).newQueue(threadCount);
         } else {
+            ioExecutor = null;
+            decompressExecutor = null;
             executor = null;
         }
+
+        /*
+         * Tie the decode work to the Spark task, so if the task is killed
+         * (speculation, a satisfied LIMIT, a cancelled job) the baskets it
+         * queued aren't read and decompressed for nobody
+         */
+        TaskContext context = TaskContext.get();
+        if (context != null) {
+            memory = new DecodeMemoryConsumer(context.taskMemoryManager());
+            context.addTaskCompletionListener(new TaskCompletionListener() {
+                @Override
+                public void onTaskCompletion(TaskContext context) {
+                    cancelDecoding();
+                }
+            });
+        }
     }
 
     @Override
     public void close() throws IOException {
         logger.trace("close");
-        // This will eventually go away due to GC, should I add
-        // explicit closing too?
+        cancelDecoding();
+    }
+
+    /**
+     * Stop all of this reader's decode work: drop what it has queued on the
+     * pools, reject anything queued later and release the decoded batches.
+     * Called when the reader is closed or the task ends, whichever is first
+     */
+    private void cancelDecoding() {
+        // cancel the queues first, so a prefetch blocked on a full queue
+        // fails instead of queueing the rest of its baskets
+        for (DecodeScheduler.TaskQueue queue: new DecodeScheduler.TaskQueue[] {ioExecutor, decompressExecutor, executor}) {
+            if (queue != null) {
+                queue.cancel();
+            }
+        }
+        cancelPrefetch();
+        releaseBatch();
+    }
+
+    /**
+     * Drop our references to the current batch so its decoded baskets can
+     * be garbage collected. Spark only guarantees a batch is valid until
+     * the following call to next()
+     */
+    private void releaseBatch() {
+        if (currBatch != null) {
+            if (!eagerDecode && (filters == null)) {
+                forEachColumn(schema.fields(), getColumns(currBatch), (name, vec) -> {
+                    if (vec.isStarted()) {
+                        touchedColumns.add(name);
+                    }
+                });
+            }
+            currBatch.close();
+            currBatch = null;
+        }
+        if (arrowAllocator != null) {
+            try {
+                arrowAllocator.close();
+            } catch (RuntimeException e) {
+                logger.warn("Arrow buffers of a batch were leaked", e);
+            }
+            arrowAllocator = null;
+        }
+        if (memory != null) {
+            memory.release(currBatchMemory + arrowMemory);
+        }
+        currBatchMemory = 0;
+        arrowMemory = 0;
     }
 
     @Override
     public boolean next() throws IOException {
         logger.trace("next");
-        if (currBasket == -1) {
-            // nothing read yet
-            currBasket = 0;
-            return true;
-        } else {
-            // we already read the partition
+        if (batchStart == -1) {
+            // nothing read yet, always return at least one (possibly empty)
+            // batch
+            batchStart = entryStart;
+        } else if (batchEnd >= entryEnd) {
+            // we already read the partition. The last batch stays valid
+            // until close()
+            cancelPrefetch();
             return false;
+        } else {
+            batchStart = batchEnd;
+        }
+        releaseBatch();
+        batchEnd = getBatchEnd(batchStart);
+        if (!isPrefetched(batchStart, batchEnd)) {
+            // get() wasn't called for the batch the prefetch follows
+            cancelPrefetch();
+        }
+        return true;
+    }
+
+    /**
+     * Find the entries in (entryStart, entryEnd) which start a basket in
+     * every branch that is read
+     *
+     * @return the shared boundaries in increasing order, followed by
+     *          entryEnd
+     */
+    private long[] getBatchBoundaries() {
+        if (batchSize <= 0) {
+            return new long[] {entryEnd};
+        }
+        long[] ret = null;
+        int count = 0;
+        for (SlimTBranch branch: slimBranches.values()) {
+            long[] offsets = branch.getBasketEntryOffsets();
+            if (ret == null) {
+                ret = new long[offsets.length];
+                for (long offset: offsets) {
+                    if ((offset > entryStart) && (offset < entryEnd)) {
+                        ret[count] = offset;
+                        count += 1;
+                    }
+                }
+                continue;
+            }
+            int kept = 0;
+            for (int i = 0; i < count; i += 1) {
+                if (Arrays.binarySearch(offsets, ret[i]) >= 0) {
+                    ret[kept] = ret[i];
+                    kept += 1;
+                }
+            }
+            count = kept;
+        }
+        long[] boundaries = new long[count + 1];
+        if (count > 0) {
+            System.arraycopy(ret, 0, boundaries, 0, count);
         }
+        boundaries[count] = entryEnd;
+        return boundaries;
+    }
+
+    /**
+     * A batch holds as many whole clusters as fit in batchSize rows, or a
+     * single cluster if it is larger than batchSize
+     *
+     * @param batchStart the first entry of the batch
+     * @return the entry after the last entry of the batch
+     */
+    private long getBatchEnd(long batchStart) {
+        int i = 0;
+        while ((i < batchBoundaries.length) && (batchBoundaries[i] <= batchStart)) {
+            i += 1;
+        }
+        if (i == batchBoundaries.length) {
+            return entryEnd;
+        }
+        long target = batchStart + batchSize;
+        while ((i + 1 < batchBoundaries.length) && (batchBoundaries[i + 1] <= target)) {
+            i += 1;
+        }
+        return batchBoundaries[i];
     }
 
     @Override
     public ColumnarBatch get() {
         logger.trace("columnarbatch");
-        LinkedList<ColumnVector> vecs = new LinkedList<ColumnVector>();
-        vecs = getBatchRecursive(schema.fields());
-        // This is miserable
-        ColumnVector[] tmp = new ColumnVector[vecs.size()];
-        int idx = 0;
-        for (ColumnVector vec: vecs) {
-            tmp[idx] = vec;
-            idx += 1;
-        }
-        // End misery
-        ColumnarBatch ret = new ColumnarBatch(tmp);
-        ret.setNumRows((int) (entryEnd - entryStart));
+        if (currBatch == null) {
+            ColumnarBatch batch;
+            long reserved = 0;
+            if (isPrefetched(batchStart, batchEnd)) {
+                batch = waitForPrefetch();
+                reserved = nextBatchMemory;
+                nextBatchMemory = 0;
+            } else {
+                batch = makeBatch(batchStart, batchEnd, getStartColumns());
+            }
+            if (filters != null) {
+                batch = selectRows(batch, batchStart);
+            }
+            // a prefetch reserved what the batch before used, top that up if
+            // this one started more
+            currBatchMemory = reserved + reserveBytes(getBatchBytes(batch) - reserved);
+            if (memory != null) {
+                // columns started by Spark accessing them reserve their own
+                forEachColumn(schema.fields(), getColumns(batch), (name, vec) -> {
+                    vec.setStartListener(bytes -> currBatchMemory += reserveBytes(bytes));
+                });
+            }
+            startPrefetch(batch);
+            currBatch = convertBatch(batch);
+        }
+        return currBatch;
+    }
+
+    /**
+     * Copy the batch into the requested ColumnVector implementation. This
+     * waits on the decompression and so has to happen on the task's thread,
+     * not in the prefetch, which would otherwise hold a pool thread waiting
+     * on tasks queued behind it.
+     */
+    private ColumnarBatch convertBatch(ColumnarBatch batch) {
+        switch (columnVectorType) {
+            case ReadOptions.VECTOR_TYPE_ONHEAP:
+                return WritableVectorConverter.convert(batch, false);
+            case ReadOptions.VECTOR_TYPE_OFFHEAP:
+                return WritableVectorConverter.convert(batch, true);
+            case ReadOptions.VECTOR_TYPE_ARROW:
+                // bounded by what the copy can need, which is counted
+                // against the task's memory until the batch is released
+                long arrowBytes = ArrowVectorConverter.getBufferBytes(batch);
+                arrowMemory = reserveBytes(arrowBytes);
+                arrowAllocator = ArrowVectorConverter.newAllocator("laurelin-partition-" + pid + "-" + batchStart, arrowBytes);
+                return ArrowVectorConverter.convert(batch, arrowAllocator);
+            default:
+                return batch;
+        }
+    }
+
+    /**
+     * Begin building the following batch in the background, so its baskets
+     * are read and decompressed while Spark consumes the current batch. The
+     * following batch is assumed to be about as large as the current one,
+     * and isn't prefetched if the two together would exceed the memory
+     * limit or Spark can't grant the memory for it.
+     */
+    private void startPrefetch(ColumnarBatch batch) {
+        if ((executor == null) || (prefetchBytes <= 0) || (batchEnd >= entryEnd)) {
+            return;
+        }
+        long currBytes = getBatchBytes(batch);
+        if (2 * currBytes > prefetchBytes) {
+            logger.trace("not prefetching, batch has " + currBytes + " bytes");
+            return;
+        }
+        if (memory != null) {
+            boolean reserved = memory.tryReserve(currBytes);
+            adjustDecodeConcurrency(!reserved);
+            if (!reserved) {
+                logger.trace("not prefetching, execution memory is short");
+                return;
+            }
+            nextBatchMemory = currBytes;
+        }
+        final long nextStart = batchEnd;
+        final long nextEnd = getBatchEnd(nextStart);
+        final Set<String> startColumns = getStartColumns();
+        /*
+         * Building a batch reads the keys of its baskets, so that is done
+         * first on the IO pool. The batch itself is then built on the
+         * interpret pool, outside of our queue so it doesn't hold a slot the
+         * tasks it enqueues need
+         */
+        final Prefetch<ColumnarBatch> prefetch = new Prefetch<ColumnarBatch>(() -> makeBatch(nextStart, nextEnd, startColumns), ColumnarBatch::close);
+        nextBatch = prefetch;
+        nextBatchStart = nextStart;
+        nextBatchEnd = nextEnd;
+        DecodeScheduler.getInstance(DecodeScheduler.Stage.IO).executeUnqueued(() -> {
+            try {
+                if (!prefetch.isDropped()) {
+                    loadBasketKeys(nextStart, nextEnd, startColumns);
+                }
+            } catch (RuntimeException e) {
+                // building the batch reads them again and reports the error
+                logger.trace("loading basket keys failed", e);
+            } finally {
+                DecodeScheduler.getInstance(DecodeScheduler.Stage.INTERPRET).executeUnqueued(prefetch);
+            }
+        });
+    }
+
+    /**
+     * Read the keys of the baskets holding the given entries of the columns
+     * which will be started, so building their vectors doesn't wait on IO
+     */
+    private void loadBasketKeys(long start, long end, Set<String> startColumns) {
+        for (Map.Entry<String, SlimTBranch> entry: slimBranches.entrySet()) {
+            if ((startColumns != null) && !startColumns.contains(entry.getKey())) {
+                continue;
+            }
+            SlimTBranch branch = entry.getValue();
+            long[] offsets = branch.getBasketEntryOffsets();
+            int first = BasketEntryOffsets.findBasket(offsets, start);
+            int last = BasketEntryOffsets.findBasket(offsets, end - 1);
+            if ((first < 0) || (last < 0)) {
+                continue;
+            }
+            ArrayBuilder.GetBasket callback = branch.getArrayBranchCallback(basketCache, fileCache);
+            for (int i = first; i <= last; i += 1) {
+                callback.basketkey(i);
+            }
+        }
+    }
+
+    /**
+     * @return true if the batch being prefetched holds exactly the given
+     *          entries
+     */
+    private boolean isPrefetched(long start, long end) {
+        return (nextBatch != null) && (nextBatchStart == start) && (nextBatchEnd == end);
+    }
+
+    private ColumnarBatch waitForPrefetch() {
+        try {
+            return nextBatch.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            nextBatch = null;
+        }
+    }
+
+    /**
+     * Drop the prefetched batch without waiting for it. If it was already
+     * built, closing it skips its baskets which haven't been decoded yet,
+     * and if it's still being built, it is closed as soon as it is
+     */
+    private void cancelPrefetch() {
+        if (nextBatch != null) {
+            nextBatch.drop();
+            nextBatch = null;
+        }
+        if (memory != null) {
+            memory.release(nextBatchMemory);
+        }
+        nextBatchMemory = 0;
+    }
+
+    /**
+     * Reserve the memory for baskets which are being decoded, and adjust
+     * how many baskets decode at once by whether it was granted
+     *
+     * @return the number of bytes reserved
+     */
+    private long reserveBytes(long bytes) {
+        if ((memory == null) || (bytes <= 0)) {
+            return 0;
+        }
+        long granted = memory.reserve(bytes);
+        adjustDecodeConcurrency(granted < bytes);
+        return granted;
+    }
+
+    /**
+     * Halve the number of baskets decoding at once each time memory is
+     * short, and double it back (up to the configured count) each time it
+     * isn't, so fewer decoded baskets are held in memory at the same time
+     */
+    private void adjustDecodeConcurrency(boolean memoryShort) {
+        if (executor == null) {
+            return;
+        }
+        int backoff;
+        if (memoryShort) {
+            backoff = Math.min(decodeBackoff + 1, MAX_DECODE_BACKOFF);
+        } else {
+            backoff = Math.max(decodeBackoff - 1, 0);
+        }
+        if (backoff == decodeBackoff) {
+            return;
+        }
+        decodeBackoff = backoff;
+        logger.trace("decoding at 1/" + (1 << backoff) + " of configured concurrency");
+        ioExecutor.setMaxRunning(Math.max(1, ioThreadCount >> backoff));
+        decompressExecutor.setMaxRunning(Math.max(1, threadCount >> backoff));
+        executor.setMaxRunning(Math.max(1, threadCount >> backoff));
+    }
+
+    static long getBatchBytes(ColumnarBatch batch) {
+        long ret = 0;
+        for (int i = 0; i < batch.numCols(); i += 1) {
+            ret += getBasketBytes(batch.column(i));
+        }
         return ret;
     }
 
-    private LinkedList<ColumnVector> getBatchRecursive(StructField[] structFields) {
+    static long getBasketBytes(ColumnVector vec) {
+        if (vec instanceof TTreeColumnVector) {
+            return ((TTreeColumnVector) vec).getBasketBytes();
+        } else if (vec instanceof StructColumnVector) {
+            return ((StructColumnVector) vec).getBasketBytes();
+        } else if (vec instanceof SelectedColumnVector) {
+            return ((SelectedColumnVector) vec).getBasketBytes();
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * @return a copy of the names of the columns to start decoding as soon
+     *          as a batch is built, or null for all of them
+     */
+    private Set<String> getStartColumns() {
+        if (filters != null) {
+            return new HashSet<String>(filterColumns);
+        }
+        return eagerDecode ? null : new HashSet<String>(touchedColumns);
+    }
+
+    /**
+     * Evaluate the pushed filters on their columns and return a batch of
+     * only the rows which may match them. The other columns are decoded
+     * only for the baskets holding those rows
+     */
+    private ColumnarBatch selectRows(ColumnarBatch batch, long batchStart) {
+        int numRows = batch.numRows();
+        StructField[] fields = schema.fields();
+        ColumnVector[] vecs = getColumns(batch);
+        Map<String, ColumnVector> columns = new HashMap<String, ColumnVector>();
+        for (int i = 0; i < fields.length; i += 1) {
+            columns.put(fields[i].name(), vecs[i]);
+        }
+        boolean[] selected = null;
+        for (Filter filter: filters) {
+            boolean[] mask = BatchFilter.evaluate(filter, schema, columns::get, numRows);
+            if (mask == null) {
+                continue;
+            } else if (selected == null) {
+                selected = mask;
+            } else {
+                for (int i = 0; i < numRows; i += 1) {
+                    selected[i] &= mask[i];
+                }
+            }
+            if (BatchFilter.countSelected(selected) == 0) {
+                break;
+            }
+        }
+        if ((selected == null) || (BatchFilter.countSelected(selected) == numRows)) {
+            return batch;
+        }
+        int[] rows = new int[BatchFilter.countSelected(selected)];
+        int count = 0;
+        for (int i = 0; i < numRows; i += 1) {
+            if (selected[i]) {
+                rows[count] = i;
+                count += 1;
+            }
+        }
+        logger.trace("kept " + rows.length + " of " + numRows + " rows");
+        ColumnVector[] ret = new ColumnVector[fields.length];
+        for (int i = 0; i < fields.length; i += 1) {
+            ret[i] = selectColumn(fields[i], vecs[i], rows, batchStart);
+        }
+        ColumnarBatch selectedBatch = new ColumnarBatch(ret);
+        selectedBatch.setNumRows(rows.length);
+        return selectedBatch;
+    }
+
+    private ColumnVector selectColumn(StructField field, ColumnVector vec, int[] rows, long batchStart) {
+        if (vec instanceof StructColumnVector) {
+            StructField[] nestedFields = ((StructType) field.dataType()).fields();
+            LinkedList<ColumnVector> nestedVecs = ((StructColumnVector) vec).fields;
+            LinkedList<ColumnVector> ret = new LinkedList<ColumnVector>();
+            int idx = 0;
+            for (ColumnVector nested: nestedVecs) {
+                ret.add(selectColumn(nestedFields[idx], nested, rows, batchStart));
+                idx += 1;
+            }
+            return new StructColumnVector(field.dataType(), ret);
+        } else if (((TTreeColumnVector) vec).isStarted() || (rows.length == 0)) {
+            // already decoded for the filters, or nothing to decode
+            return new SelectedColumnVector(field.dataType(), rows, new ColumnVector[] {vec}, new int[] {0});
+        }
+
+        /*
+         * Split the surviving rows into runs which don't skip a basket, and
+         * decode each run separately so the baskets between them (holding
+         * no surviving rows) aren't read
+         */
+        long[] basketEntryOffsets = slimBranches.get(field.name()).getBasketEntryOffsets();
+        int[] starts = new int[rows.length];
+        int[] stops = new int[rows.length];
+        int runs = 0;
+        int prevBasket = -2;
+        for (int row: rows) {
+            int basket = BasketEntryOffsets.findBasket(basketEntryOffsets, batchStart + row);
+            if ((runs > 0) && (basket - prevBasket <= 1)) {
+                stops[runs - 1] = row + 1;
+            } else {
+                starts[runs] = row;
+                stops[runs] = row + 1;
+                runs += 1;
+            }
+            prevBasket = basket;
+        }
+        ColumnVector[] parts = new ColumnVector[runs];
+        for (int i = 0; i < runs; i += 1) {
+            parts[i] = makeVector(field, batchStart + starts[i], batchStart + stops[i]);
+        }
+        vec.close();
+        return new SelectedColumnVector(field.dataType(), rows, parts, Arrays.copyOf(starts, runs));
+    }
+
+    private static ColumnVector[] getColumns(ColumnarBatch batch) {
+        ColumnVector[] ret = new ColumnVector[batch.numCols()];
+        for (int i = 0; i < ret.length; i += 1) {
+            ret[i] = batch.column(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Visit the TTreeColumnVectors of a batch (including those nested in
+     * structs) along with the names of their fields
+     */
+    private static void forEachColumn(StructField[] structFields, ColumnVector[] vecs, BiConsumer<String, TTreeColumnVector> action) {
+        for (int i = 0; i < structFields.length; i += 1) {
+            if (vecs[i] instanceof StructColumnVector) {
+                LinkedList<ColumnVector> nestedVecs = ((StructColumnVector) vecs[i]).fields;
+                forEachColumn(((StructType) structFields[i].dataType()).fields(), nestedVecs.toArray(new ColumnVector[nestedVecs.size()]), action);
+            } else if (vecs[i] instanceof SelectedColumnVector) {
+                for (ColumnVector part: ((SelectedColumnVector) vecs[i]).getParts()) {
+                    action.accept(structFields[i].name(), (TTreeColumnVector) part);
+                }
+            } else if (vecs[i] instanceof TTreeColumnVector) {
+                action.accept(structFields[i].name(), (TTreeColumnVector) vecs[i]);
+            }
+        }
+    }
+
+    /**
+     * Build the vectors of a batch
+     *
+     * @param startColumns names of the columns which start decoding right
+     *          away, or null for all of them. The rest start when accessed
+     */
+    private ColumnarBatch makeBatch(long batchStart, long batchEnd, Set<String> startColumns) {
+        LinkedList<ColumnVector> vecs = getBatchRecursive(schema.fields(), batchStart, batchEnd, startColumns);
+        ColumnarBatch ret = new ColumnarBatch(vecs.toArray(new ColumnVector[vecs.size()]));
+        ret.setNumRows((int) (batchEnd - batchStart));
+        return ret;
+    }
+
+    private TTreeColumnVector makeVector(StructField field, long batchStart, long batchEnd) {
+        SlimTBranchInterface slimBranch = slimBranches.get(field.name());
+        SimpleType rootType;
+        rootType = SimpleType.fromString(field.metadata().getString("rootType"));
+
+        Dtype dtype = SimpleType.dtypeFromString(field.metadata().getString("rootType"));
+        return new TTreeColumnVector(field.dataType(), rootType, dtype, basketCache, batchStart, batchEnd, slimBranch, ioExecutor, decompressExecutor, executor, fileCache);
+    }
+
+    private LinkedList<ColumnVector> getBatchRecursive(StructField[] structFields, long batchStart, long batchEnd, Set<String> startColumns) {
         LinkedList<ColumnVector> vecs = new LinkedList<ColumnVector>();
         for (StructField field: structFields)  {
             if (field.dataType() instanceof StructType) {
-                LinkedList<ColumnVector> nestedVecs = getBatchRecursive(((StructType)field.dataType()).fields());
+                LinkedList<ColumnVector> nestedVecs = getBatchRecursive(((StructType)field.dataType()).fields(), batchStart, batchEnd, startColumns);
                 vecs.add(new StructColumnVector(field.dataType(), nestedVecs));
                 continue;
             }
-            SlimTBranchInterface slimBranch = slimBranches.get(field.name());
-            SimpleType rootType;
-            rootType = SimpleType.fromString(field.metadata().getString("rootType"));
-
-            Dtype dtype = SimpleType.dtypeFromString(field.metadata().getString("rootType"));
-            vecs.add(new TTreeColumnVector(field.dataType(), rootType, dtype, basketCache, entryStart, entryEnd, slimBranch, executor, fileCache));
+            TTreeColumnVector vec = makeVector(field, batchStart, batchEnd);
+            if ((startColumns == null) || startColumns.contains(field.name())) {
+                vec.start();
+            }
+            vecs.add(vec);
         }
         return vecs;
     }
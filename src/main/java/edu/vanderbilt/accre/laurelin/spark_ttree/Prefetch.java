@@ -0,0 +1,101 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+/**
+ * Work started in the background whose result can be dropped at any time
+ * without waiting for it. A result built after (or while) it is dropped is
+ * released by the thread that built it, so dropping never blocks and never
+ * leaks what the work allocated.
+ *
+ * @param <T> the type of the result
+ */
+public final class Prefetch<T> implements Runnable {
+    private final FutureTask<T> task;
+    private final Consumer<T> release;
+
+    /**
+     * The result, from when it is built until it is taken by get() or
+     * released by drop(). Guarded by this
+     */
+    private T result;
+    private boolean dropped = false;
+
+    /**
+     * @param build the work, which isn't started if the prefetch is dropped
+     *          first
+     * @param release frees a result nobody will take
+     */
+    public Prefetch(Callable<T> build, Consumer<T> release) {
+        this.release = release;
+        this.task = new FutureTask<T>(() -> {
+            if (isDropped()) {
+                return null;
+            }
+            T ret = build.call();
+            if (!offer(ret)) {
+                release.accept(ret);
+                return null;
+            }
+            return ret;
+        });
+    }
+
+    @Override
+    public void run() {
+        task.run();
+    }
+
+    /**
+     * @return true if the result was dropped, so the work can stop early
+     */
+    public synchronized boolean isDropped() {
+        return dropped;
+    }
+
+    private synchronized boolean offer(T ret) {
+        if (dropped) {
+            return false;
+        }
+        result = ret;
+        return true;
+    }
+
+    /**
+     * Wait for the result, which the caller then owns
+     *
+     * @return the result
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the work failed
+     */
+    public T get() throws InterruptedException, ExecutionException {
+        T ret = task.get();
+        synchronized (this) {
+            result = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Drop the result without waiting for it. If it was already built it is
+     * released here, otherwise it is released as soon as it is
+     */
+    public void drop() {
+        T built;
+        synchronized (this) {
+            if (dropped) {
+                return;
+            }
+            dropped = true;
+            built = result;
+            result = null;
+        }
+        task.cancel(false);
+        if (built != null) {
+            release.accept(built);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.io.Serializable;
+
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.v2.DataSourceOptions;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
+/**
+ * The user-supplied options that control how a partition is read on the
+ * executor, along with the filters Spark pushed down. Parsed once on the
+ * driver and shipped along with each Partition.
+ */
+class ReadOptions implements Serializable, KryoSerializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Return Laurelin's own ColumnVectors, which decode on access
+     */
+    static final String VECTOR_TYPE_LAURELIN = "laurelin";
+
+    /**
+     * Copy each batch into Spark's OnHeapColumnVectors
+     */
+    static final String VECTOR_TYPE_ONHEAP = "onheap";
+
+    /**
+     * Copy each batch into Spark's OffHeapColumnVectors
+     */
+    static final String VECTOR_TYPE_OFFHEAP = "offheap";
+
+    /**
+     * Copy each batch into Arrow vectors, wrapped in ArrowColumnVectors
+     */
+    static final String VECTOR_TYPE_ARROW = "arrow";
+
+    /**
+     * Start decoding a column when it is first accessed. Columns accessed
+     * in earlier batches are started as soon as later batches are built.
+     * Only saves work when partitions are split into several batches and
+     * some columns are skipped for some of them
+     */
+    static final String DECODE_POLICY_LAZY = "lazy";
+
+    /**
+     * Start decoding every column as soon as its batch is built (the default)
+     */
+    static final String DECODE_POLICY_EAGER = "eager";
+
+    /**
+     * Number of threads used to decode baskets, 0 decodes synchronously
+     */
+    private int threadCount;
+
+    /**
+     * Maximum number of rows in each batch, or 0 to return the whole
+     * partition as a single batch. Batches end on cluster boundaries, so
+     * one may be larger if a single cluster is
+     */
+    private int batchSize;
+
+    /**
+     * Upper limit on the (uncompressed) bytes of the current batch and the
+     * next one together, for the next batch to be prefetched while Spark
+     * consumes the current one. 0 disables prefetching
+     */
+    private long prefetchBytes;
+
+    /**
+     * Which ColumnVector implementation batches are returned in
+     */
+    private String columnVectorType;
+
+    /**
+     * When the columns of a batch start decoding
+     */
+    private String decodePolicy;
+
+    /**
+     * If true, pushed filters are evaluated on their columns first, and the
+     * other columns are only decoded for the rows which survive
+     */
+    private boolean lateMaterialization;
+    private Filter[] filters = new Filter[0];
+
+    public ReadOptions(DataSourceOptions options) {
+        threadCount = options.getInt("threadCount", 16);
+        batchSize = options.getInt("batchSize", 20000);
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize must be non-negative");
+        }
+        prefetchBytes = options.getLong("prefetchBytes", 128L * 1024 * 1024);
+        columnVectorType = options.get("columnVectorType").orElse(VECTOR_TYPE_LAURELIN);
+        if (!columnVectorType.equals(VECTOR_TYPE_LAURELIN)
+                && !columnVectorType.equals(VECTOR_TYPE_ONHEAP)
+                && !columnVectorType.equals(VECTOR_TYPE_OFFHEAP)
+                && !columnVectorType.equals(VECTOR_TYPE_ARROW)) {
+            throw new IllegalArgumentException("Unknown columnVectorType: " + columnVectorType);
+        }
+        decodePolicy = options.get("decodePolicy").orElse(DECODE_POLICY_EAGER);
+        if (!decodePolicy.equals(DECODE_POLICY_LAZY) && !decodePolicy.equals(DECODE_POLICY_EAGER)) {
+            throw new IllegalArgumentException("Unknown decodePolicy: " + decodePolicy);
+        }
+        lateMaterialization = options.getBoolean("lateMaterialization", false);
+        if (lateMaterialization && !columnVectorType.equals(VECTOR_TYPE_LAURELIN)) {
+            throw new IllegalArgumentException("lateMaterialization requires columnVectorType " + VECTOR_TYPE_LAURELIN);
+        }
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getPrefetchBytes() {
+        return prefetchBytes;
+    }
+
+    public String getColumnVectorType() {
+        return columnVectorType;
+    }
+
+    public String getDecodePolicy() {
+        return decodePolicy;
+    }
+
+    public boolean getLateMaterialization() {
+        return lateMaterialization;
+    }
+
+    public Filter[] getFilters() {
+        return filters;
+    }
+
+    public void setFilters(Filter[] filters) {
+        this.filters = filters;
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void write(Kryo kryo, Output output) {
+        output.writeInt(threadCount, true);
+        output.writeInt(batchSize, true);
+        output.writeLong(prefetchBytes, true);
+        output.writeString(columnVectorType);
+        output.writeString(decodePolicy);
+        output.writeBoolean(lateMaterialization);
+        // Spark's filters are plain serializable case classes
+        kryo.writeObject(output, filters, new JavaSerializer());
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void read(Kryo kryo, Input input) {
+        threadCount = input.readInt(true);
+        batchSize = input.readInt(true);
+        prefetchBytes = input.readLong(true);
+        columnVectorType = input.readString();
+        decodePolicy = input.readString();
+        lateMaterialization = input.readBoolean();
+        filters = kryo.readObject(input, Filter[].class, new JavaSerializer());
+    }
+}
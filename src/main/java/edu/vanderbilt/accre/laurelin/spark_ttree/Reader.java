@@ -9,6 +9,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.apache.hadoop.fs.Path;
@@ -18,9 +19,12 @@ import org.apache.spark.SparkContext;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.sources.Filter;
 import org.apache.spark.sql.sources.v2.DataSourceOptions;
 import org.apache.spark.sql.sources.v2.reader.DataSourceReader;
 import org.apache.spark.sql.sources.v2.reader.InputPartition;
+import org.apache.spark.sql.sources.v2.reader.SupportsPushDownFilters;
 import org.apache.spark.sql.sources.v2.reader.SupportsPushDownRequiredColumns;
 import org.apache.spark.sql.sources.v2.reader.SupportsScanColumnarBatch;
 import org.apache.spark.sql.types.DataType;
@@ -45,18 +49,41 @@ import edu.vanderbilt.accre.laurelin.root_proxy.TTree;
 
 public class Reader implements DataSourceReader,
         SupportsScanColumnarBatch,
-        SupportsPushDownRequiredColumns {
+        SupportsPushDownRequiredColumns,
+        SupportsPushDownFilters {
     static final Logger logger = LogManager.getLogger();
 
+    /**
+     * Basket metadata is built at planning time and shipped with each
+     * partition
+     */
+    static final String METADATA_MODE_EAGER = "eager";
+
+    /**
+     * Partitions only carry the file path, executors load the basket
+     * metadata once per file
+     */
+    static final String METADATA_MODE_EXECUTOR = "executor";
+
+    /**
+     * Partitions carry a handle to a broadcast variable holding the basket
+     * metadata of every file
+     */
+    static final String METADATA_MODE_BROADCAST = "broadcast";
+
     private List<String> paths;
     private String treeName;
     private TTree currTree;
     private TFile currFile;
     private StructType schema;
-    private int threadCount;
+    private ReadOptions readOptions;
+    private String metadataCacheDir;
+    private String metadataMode;
+    private BasketPruner pruner;
     private IOProfile profiler;
     private static CollectionAccumulator<Storage> profileData;
     private SparkContext sparkContext;
+    private Filter[] pushedFilters = new Filter[0];
     private static ROOTFileCache fileCache = ROOTFileCache.getCache();
 
     public Reader(DataSourceOptions options, SparkContext sparkContext, CollectionAccumulator<Storage> ioAccum) {
@@ -76,7 +103,15 @@ public class Reader implements DataSourceReader,
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        threadCount = options.getInt("threadCount", 16);
+        readOptions = new ReadOptions(options);
+        metadataCacheDir = options.get("metadataCacheDir").orElse(null);
+        metadataMode = options.get("metadataMode").orElse(METADATA_MODE_EAGER);
+        if (!metadataMode.equals(METADATA_MODE_EAGER)
+                && !metadataMode.equals(METADATA_MODE_EXECUTOR)
+                && !metadataMode.equals(METADATA_MODE_BROADCAST)) {
+            throw new IllegalArgumentException("Unknown metadataMode: " + metadataMode);
+        }
+        pruner = new BasketPruner(options, treeName, metadataCacheDir, readOptions.getThreadCount());
 
         Function<Event, Integer> cb = null;
         if (ioAccum != null) {
@@ -190,69 +225,122 @@ public class Reader implements DataSourceReader,
         private static final long PARTITION_SIZE = 200 * 1000;
         String treeName;
         StructType schema;
-        int threadCount;
+        ReadOptions readOptions;
+        String metadataCacheDir;
+        String metadataMode;
+        BasketPruner pruner;
 
-        public PartitionHelper(String treeName, StructType schema, int threadCount) {
+        public PartitionHelper(String treeName, StructType schema, ReadOptions readOptions, String metadataCacheDir, String metadataMode, BasketPruner pruner) {
             this.treeName = treeName;
             this.schema = schema;
-            this.threadCount = threadCount;
+            this.readOptions = readOptions;
+            this.metadataCacheDir = metadataCacheDir;
+            this.metadataMode = metadataMode;
+            this.pruner = pruner;
         }
 
-        private static void parseStructFields(TTree inputTree, Map<String, SlimTBranch> slimBranches, StructType struct, String namespace) {
-            for (StructField field: struct.fields())  {
-                if (field.dataType() instanceof StructType) {
-                    parseStructFields(inputTree, slimBranches, (StructType) field.dataType(), namespace + field.name() + ".");
-                }
-                ArrayList<TBranch> branchList = inputTree.getBranches(namespace + field.name());
-                assert branchList.size() == 1;
-                TBranch fatBranch = branchList.get(0);
-                SlimTBranch slimBranch = SlimTBranch.getFromTBranch(fatBranch);
-                slimBranches.put(fatBranch.getName(), slimBranch);
-            }
-        }
-
-        public static Iterator<InputPartition<ColumnarBatch>> partitionSingleFileImpl(String path, String treeName, StructType schema, int threadCount) {
+        /**
+         * Split the entries of a tree into partitions
+         *
+         * @param index metadata of the tree to split
+         * @param schema fields to read
+         * @param readOptions options controlling how partitions are read
+         * @param providerFactory makes the SlimTBranchProvider for the
+         *                        partition covering [start, end)
+         * @param selected [start, end) ranges of the entries which may match
+         *                 the pushed filters, flattened into pairs, or null
+         *                 to read every entry
+         * @return the list of partitions for this tree
+         */
+        static List<InputPartition<ColumnarBatch>> partitionIndex(TTreeIndex index, StructType schema, ReadOptions readOptions, BiFunction<Long, Long, SlimTBranchProvider> providerFactory, long[] selected) {
             List<InputPartition<ColumnarBatch>> ret = new ArrayList<InputPartition<ColumnarBatch>>();
             int pid = 0;
-            TTree inputTree;
 
-            try {
-                TFile inputFile = TFile.getFromFile(fileCache.getROOTFile(path));
-                inputTree = new TTree(inputFile.getProxy(treeName), inputFile);
-
-                Map<String, SlimTBranch> slimBranches = new HashMap<String, SlimTBranch>();
-                parseStructFields(inputTree, slimBranches, schema, "");
-
-                // TODO We partition based on a fixed number of events per
-                //      partition, which isn't smart. Redo it with something
-                //      smarter later
-                long[] entryOffset = inputTree.getBranches().get(0).getBasketEntryOffsets();
-                long lastEntry = entryOffset[entryOffset.length - 1];
-                for (int i = 0; i < lastEntry; i += PARTITION_SIZE) {
+            // TODO We partition based on a fixed number of events per
+            //      partition, which isn't smart. Redo it with something
+            //      smarter later
+            long[] entryOffset = index.getPartitionEntryOffsets();
+            long lastEntry = entryOffset[entryOffset.length - 1];
+            for (int i = 0; i < lastEntry; i += PARTITION_SIZE) {
+                long partitionStart = i;
+                long partitionEnd = Math.min(lastEntry, partitionStart + PARTITION_SIZE);
+                if (selected == null) {
                     pid += 1;
-                    long partitionStart = i;
-                    long partitionEnd = Math.min(lastEntry, partitionStart + PARTITION_SIZE);
-                    Map<String, SlimTBranch> trimmedSlimBranches = new HashMap<String, SlimTBranch>();
-                    for (Entry<String, SlimTBranch> e: slimBranches.entrySet()) {
-                        trimmedSlimBranches.put(e.getKey(), e.getValue().copyAndTrim(partitionStart, partitionEnd));
+                    SlimTBranchProvider provider = providerFactory.apply(partitionStart, partitionEnd);
+                    ret.add(new Partition(schema, partitionStart, partitionEnd, provider, readOptions, profileData, pid));
+                    continue;
+                }
+                // Only plan the parts of the partition which may match, so
+                // the baskets between them are never read
+                for (int j = 0; j < selected.length; j += 2) {
+                    long start = Math.max(partitionStart, selected[j]);
+                    long end = Math.min(partitionEnd, selected[j + 1]);
+                    if (start < end) {
+                        pid += 1;
+                        SlimTBranchProvider provider = providerFactory.apply(start, end);
+                        ret.add(new Partition(schema, start, end, provider, readOptions, profileData, pid));
                     }
-                    ret.add(new Partition(schema, partitionStart, partitionEnd, trimmedSlimBranches, threadCount, profileData, pid));
                 }
-                if (ret.size() == 0) {
-                    // Only one basket?
-                    logger.debug("Planned for zero baskets, adding a dummy one");
-                    pid += 1;
-                    ret.add(new Partition(schema, 0, inputTree.getEntries(), slimBranches, threadCount, profileData, pid));
+            }
+            if (selected != null) {
+                logger.debug("Planned {} partitions covering the entries which may match the filters", ret.size());
+            } else if (ret.size() == 0) {
+                // Only one basket?
+                logger.debug("Planned for zero baskets, adding a dummy one");
+                pid += 1;
+                SlimTBranchProvider provider = providerFactory.apply(0L, index.getEntries());
+                ret.add(new Partition(schema, 0, index.getEntries(), provider, readOptions, profileData, pid));
+            }
+            return ret;
+        }
+
+        private static Map<String, SlimTBranch> trimSlimBranches(Map<String, SlimTBranch> slimBranches, long start, long end) {
+            if (end <= start) {
+                return slimBranches;
+            }
+            Map<String, SlimTBranch> ret = new HashMap<String, SlimTBranch>();
+            for (Entry<String, SlimTBranch> e: slimBranches.entrySet()) {
+                ret.put(e.getKey(), e.getValue().copyAndTrim(start, end));
+            }
+            return ret;
+        }
+
+        public static Iterator<InputPartition<ColumnarBatch>> partitionSingleFileImpl(String path, String treeName, StructType schema, ReadOptions readOptions, String metadataCacheDir, String metadataMode, BasketPruner pruner) {
+            try {
+                TTreeIndex index = TTreeIndex.getCachedIndex(path, treeName, metadataCacheDir);
+                long[] selected = pruner.selectEntries(path, index, schema);
+                BiFunction<Long, Long, SlimTBranchProvider> providerFactory;
+                if (METADATA_MODE_EXECUTOR.equals(metadataMode)) {
+                    SlimTBranchProvider provider = new SlimTBranchProvider.Executor(path, treeName, metadataCacheDir);
+                    providerFactory = (start, end) -> provider;
+                } else {
+                    // Broadcasting needs a SparkContext, so without one we
+                    // fall back to shipping the metadata in each partition
+                    Map<String, SlimTBranch> slimBranches = index.getSlimBranches(path, schema);
+                    providerFactory = (start, end) -> new SlimTBranchProvider.Eager(trimSlimBranches(slimBranches, start, end));
                 }
-                return ret.iterator();
+                return partitionIndex(index, schema, readOptions, providerFactory, selected).iterator();
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
+        }
 
+        /**
+         * Loads the metadata needed to read schema from each file
+         */
+        org.apache.spark.api.java.function.Function<String, TTreeIndex> getIndexLambda() {
+            return s -> TTreeIndex.getCachedIndex(s, treeName, metadataCacheDir).project(schema);
+        }
+
+        /**
+         * Finds the entries of each file which may match the pushed filters
+         */
+        org.apache.spark.api.java.function.Function<String, long[]> getSelectionLambda() {
+            return s -> pruner.selectEntries(s, TTreeIndex.getCachedIndex(s, treeName, metadataCacheDir), schema);
         }
 
         FlatMapFunction<String, InputPartition<ColumnarBatch>> getLambda() {
-            return s -> PartitionHelper.partitionSingleFileImpl(s, treeName, schema, threadCount);
+            return s -> PartitionHelper.partitionSingleFileImpl(s, treeName, schema, readOptions, metadataCacheDir, metadataMode, pruner);
         }
     }
 
@@ -264,10 +352,12 @@ public class Reader implements DataSourceReader,
             for (String path: paths) {
                 partitionSingleFile(path).forEachRemaining(ret::add);;
             }
+        } else if (METADATA_MODE_BROADCAST.equals(metadataMode)) {
+            ret = planBroadcastPartitions();
         } else {
             JavaSparkContext sc = JavaSparkContext.fromSparkContext(sparkContext);
             JavaRDD<String> rdd_paths = sc.parallelize(paths, paths.size());
-            Reader.PartitionHelper helper = new PartitionHelper(treeName, schema, threadCount);
+            Reader.PartitionHelper helper = new PartitionHelper(treeName, schema, readOptions, metadataCacheDir, metadataMode, pruner);
             JavaRDD<InputPartition<ColumnarBatch>> partitions = rdd_paths.flatMap(helper.getLambda());
             ret = partitions.collect();
         }
@@ -279,8 +369,82 @@ public class Reader implements DataSourceReader,
         return ret;
     }
 
+    /**
+     * Load the metadata of each file on the executors, then broadcast it so
+     * it is transmitted once per executor instead of with every partition
+     *
+     * @return the list of partitions for every file
+     */
+    private List<InputPartition<ColumnarBatch>> planBroadcastPartitions() {
+        JavaSparkContext sc = JavaSparkContext.fromSparkContext(sparkContext);
+        JavaRDD<String> rdd_paths = sc.parallelize(paths, paths.size());
+        Reader.PartitionHelper helper = new PartitionHelper(treeName, schema, readOptions, metadataCacheDir, metadataMode, pruner);
+        List<TTreeIndex> indices = rdd_paths.map(helper.getIndexLambda()).collect();
+        Map<String, TTreeIndex> indexMap = new HashMap<String, TTreeIndex>();
+        for (int i = 0; i < paths.size(); i += 1) {
+            indexMap.put(paths.get(i), indices.get(i));
+        }
+        Broadcast<Map<String, TTreeIndex>> broadcastIndices = sc.broadcast(indexMap);
+        BroadcastCleaner.unpersistAfterExecution(sparkContext, broadcastIndices);
+        // The statistics are also built on the executors, where they stay
+        List<long[]> selections = null;
+        if (pruner.isEnabled()) {
+            selections = rdd_paths.map(helper.getSelectionLambda()).collect();
+        }
+
+        List<InputPartition<ColumnarBatch>> ret = new ArrayList<InputPartition<ColumnarBatch>>();
+        for (int i = 0; i < paths.size(); i += 1) {
+            String path = paths.get(i);
+            SlimTBranchProvider provider = new SlimTBranchProvider.Broadcasted(broadcastIndices, path);
+            long[] selected = (selections == null) ? null : selections.get(i);
+            ret.addAll(PartitionHelper.partitionIndex(indexMap.get(path), schema, readOptions, (start, end) -> provider, selected));
+        }
+        return ret;
+    }
+
     public Iterator<InputPartition<ColumnarBatch>> partitionSingleFile(String path) {
-        return PartitionHelper.partitionSingleFileImpl(path, treeName, schema, threadCount);
+        return PartitionHelper.partitionSingleFileImpl(path, treeName, schema, readOptions, metadataCacheDir, metadataMode, pruner);
+    }
+
+    /**
+     * Keep the filters which compare against branches with basket
+     * statistics, so partitions which can't match aren't planned, and with
+     * lateMaterialization, the filters we can evaluate so the partitions
+     * decode the other columns only for rows which may match. Every filter
+     * is still returned for Spark to evaluate after the scan, since ours
+     * only reject rows which certainly don't match. This also keeps the
+     * filter columns in the schema passed to pruneColumns()
+     */
+    @Override
+    public Filter[] pushFilters(Filter[] filters) {
+        logger.trace("pushfilters");
+        List<Filter> pushed = new ArrayList<Filter>();
+        List<Filter> evaluated = new ArrayList<Filter>();
+        List<Filter> pruning = new ArrayList<Filter>();
+        for (Filter filter: filters) {
+            boolean evaluate = readOptions.getLateMaterialization() && BatchFilter.canEvaluate(filter, schema);
+            boolean prune = pruner.canPrune(filter, schema);
+            if (evaluate) {
+                evaluated.add(filter);
+            }
+            if (prune) {
+                pruning.add(filter);
+            }
+            if (evaluate || prune) {
+                pushed.add(filter);
+            }
+        }
+        pushedFilters = pushed.toArray(new Filter[pushed.size()]);
+        if (readOptions.getLateMaterialization()) {
+            readOptions.setFilters(evaluated.toArray(new Filter[evaluated.size()]));
+        }
+        pruner.setFilters(pruning.toArray(new Filter[pruning.size()]));
+        return filters;
+    }
+
+    @Override
+    public Filter[] pushedFilters() {
+        return pushedFilters;
     }
 
     @Override
@@ -0,0 +1,164 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.Decimal;
+import org.apache.spark.sql.vectorized.ColumnVector;
+import org.apache.spark.sql.vectorized.ColumnarArray;
+import org.apache.spark.sql.vectorized.ColumnarMap;
+import org.apache.spark.unsafe.types.UTF8String;
+
+/**
+ * A column holding only some rows of a batch, those which survived the
+ * pushed-down filters.
+ *
+ * <p>The rows are read from one or more parts, each covering a contiguous
+ * range of the batch. A column which had to be decoded to evaluate the
+ * filters has a single part covering the whole batch, while the other
+ * columns get one part per run of baskets holding surviving rows, so the
+ * baskets in between are never decompressed.
+ */
+public class SelectedColumnVector extends ColumnVector {
+    private final ColumnVector[] parts;
+    /**
+     * The first row of the batch each part holds
+     */
+    private final int[] partStarts;
+    /**
+     * Which part each surviving row is in, and its row within that part
+     */
+    private final int[] rowPart;
+    private final int[] rowIds;
+
+    /**
+     * @param type the type of the column
+     * @param rows the surviving rows of the batch, in increasing order
+     * @param parts vectors covering every surviving row, in increasing order
+     * @param partStarts the first row of the batch each part holds
+     */
+    public SelectedColumnVector(DataType type, int[] rows, ColumnVector[] parts, int[] partStarts) {
+        super(type);
+        if (parts.length != partStarts.length) {
+            throw new IllegalArgumentException("Need the start of each of the " + parts.length + " parts, got " + partStarts.length);
+        }
+        this.parts = parts;
+        this.partStarts = partStarts;
+        this.rowPart = new int[rows.length];
+        this.rowIds = new int[rows.length];
+        int part = 0;
+        for (int i = 0; i < rows.length; i += 1) {
+            while ((part + 1 < partStarts.length) && (partStarts[part + 1] <= rows[i])) {
+                part += 1;
+            }
+            if (rows[i] < partStarts[part]) {
+                throw new IllegalArgumentException("No part holds row " + rows[i]);
+            }
+            rowPart[i] = part;
+            rowIds[i] = rows[i] - partStarts[part];
+        }
+    }
+
+    /**
+     * @return the vectors the rows are read from
+     */
+    ColumnVector[] getParts() {
+        return parts;
+    }
+
+    /**
+     * @return the uncompressed size of the baskets backing the parts
+     */
+    public long getBasketBytes() {
+        long ret = 0;
+        for (ColumnVector part: parts) {
+            ret += PartitionReader.getBasketBytes(part);
+        }
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        for (ColumnVector part: parts) {
+            part.close();
+        }
+    }
+
+    @Override
+    public boolean hasNull() {
+        return false;
+    }
+
+    @Override
+    public int numNulls() {
+        return 0;
+    }
+
+    @Override
+    public boolean isNullAt(int rowId) {
+        return false;
+    }
+
+    @Override
+    public boolean getBoolean(int rowId) {
+        return parts[rowPart[rowId]].getBoolean(rowIds[rowId]);
+    }
+
+    @Override
+    public byte getByte(int rowId) {
+        return parts[rowPart[rowId]].getByte(rowIds[rowId]);
+    }
+
+    @Override
+    public short getShort(int rowId) {
+        return parts[rowPart[rowId]].getShort(rowIds[rowId]);
+    }
+
+    @Override
+    public int getInt(int rowId) {
+        return parts[rowPart[rowId]].getInt(rowIds[rowId]);
+    }
+
+    @Override
+    public long getLong(int rowId) {
+        return parts[rowPart[rowId]].getLong(rowIds[rowId]);
+    }
+
+    @Override
+    public float getFloat(int rowId) {
+        return parts[rowPart[rowId]].getFloat(rowIds[rowId]);
+    }
+
+    @Override
+    public double getDouble(int rowId) {
+        return parts[rowPart[rowId]].getDouble(rowIds[rowId]);
+    }
+
+    @Override
+    public ColumnarArray getArray(int rowId) {
+        return parts[rowPart[rowId]].getArray(rowIds[rowId]);
+    }
+
+    @Override
+    public ColumnarMap getMap(int ordinal) {
+        throw new UnsupportedOperationException("Maps are not supported");
+    }
+
+    @Override
+    public Decimal getDecimal(int rowId, int precision, int scale) {
+        throw new UnsupportedOperationException("Decimals are not supported");
+    }
+
+    @Override
+    public UTF8String getUTF8String(int rowId) {
+        throw new UnsupportedOperationException("Strings are not supported");
+    }
+
+    @Override
+    public byte[] getBinary(int rowId) {
+        throw new UnsupportedOperationException("Binaries are not supported");
+    }
+
+    @Override
+    protected ColumnVector getChild(int ordinal) {
+        throw new UnsupportedOperationException("Structs are selected field by field");
+    }
+}
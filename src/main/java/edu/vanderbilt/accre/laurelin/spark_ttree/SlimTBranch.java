@@ -1,7 +1,6 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static edu.vanderbilt.accre.laurelin.root_proxy.TBranch.entryOffsetToRangeMap;
 
 import java.io.IOException;
 import java.io.InvalidObjectException;
@@ -9,9 +8,10 @@ import java.io.ObjectInputValidation;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeSet;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -24,17 +24,15 @@ import com.esotericsoftware.kryo.io.Output;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableRangeMap;
-import com.google.common.collect.ImmutableRangeMap.Builder;
 import com.google.common.collect.Interner;
 import com.google.common.collect.Interners;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Range;
+import com.google.common.primitives.Ints;
 
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.BasketEntryOffsets;
 import edu.vanderbilt.accre.laurelin.array.RawArray;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
+import edu.vanderbilt.accre.laurelin.root_proxy.Compression;
 import edu.vanderbilt.accre.laurelin.root_proxy.Cursor;
 import edu.vanderbilt.accre.laurelin.root_proxy.ROOTFile;
 import edu.vanderbilt.accre.laurelin.root_proxy.ROOTFileCache;
@@ -51,19 +49,55 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
     private static final long serialVersionUID = 1L;
     private String path;
 
-    private int basketEntryOffsetsLength;
-
     /**
-     * This is our representation of the basketEntryOffsets array. This format
-     * is much easier to trim off the unneeded bits.
+     * The basketEntryOffsets this branch was built from, starting at basket
+     * entryOffsetsBase. Trimmed copies share the array of the branch they
+     * were trimmed from, while deserialized branches only hold the slice
+     * between basketStart and basketEnd.
      */
-    private ImmutableRangeMap<Long, Integer> rangeToBasketIDMap;
+    private EntryOffsets entryOffsets;
+    private int entryOffsetsBase;
     private Map<Integer, SlimTBasket> baskets;
     private TBranch.ArrayDescriptor arrayDesc;
     private int basketStart;
     private int basketEnd;
 
-    private static Interner<ImmutableRangeMap<Long, Integer>> rangeMapInterner = Interners.newWeakInterner();
+    private static Interner<EntryOffsets> entryOffsetsInterner = Interners.newWeakInterner();
+
+    /**
+     * A basketEntryOffsets array compared by value, so the arrays of
+     * different branches with the same basket boundaries can be interned
+     */
+    private static final class EntryOffsets {
+        private final long[] offsets;
+        private final int hash;
+
+        private EntryOffsets(long[] offsets) {
+            this.offsets = offsets;
+            this.hash = Arrays.hashCode(offsets);
+        }
+
+        private static EntryOffsets intern(long[] offsets) {
+            return entryOffsetsInterner.intern(new EntryOffsets(checkNotNull(offsets)));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof EntryOffsets)) {
+                return false;
+            }
+            EntryOffsets other = (EntryOffsets) obj;
+            return (hash == other.hash) && Arrays.equals(offsets, other.offsets);
+        }
+    }
 
     /**
      * Copy the given slim branch and trim it by removing unneccessary basket
@@ -75,20 +109,23 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
      */
 
     public SlimTBranch copyAndTrim(long eventStart, long eventEnd) {
-        SlimTBranch ret = new SlimTBranch(path, this.getBasketEntryOffsets(), arrayDesc);
-        ImmutableRangeMap<Long, Integer> overlap = entryOffsetToRangeMap(this.getBasketEntryOffsets(), eventStart, eventEnd);
-
-        for (Entry<Range<Long>, Integer> e: overlap.asMapOfRanges().entrySet()) {
-            ret.addBasket(e.getValue(), baskets.get(e.getValue()));
+        int first = BasketEntryOffsets.findBasket(entryOffsets.offsets, eventStart);
+        int last = BasketEntryOffsets.findBasket(entryOffsets.offsets, eventEnd - 1);
+        if ((first == -1) || (last == -1)) {
+            throw new IllegalArgumentException("Events " + eventStart + "-" + eventEnd + " are outside of the baskets of " + path);
+        }
+        SlimTBranch ret = new SlimTBranch(path, entryOffsets, entryOffsetsBase, arrayDesc);
+        ret.basketStart = first + entryOffsetsBase;
+        ret.basketEnd = last + entryOffsetsBase + 1;
+        for (int i = ret.basketStart; i < ret.basketEnd; i += 1) {
+            ret.addBasket(i, baskets.get(i));
         }
-        ret.basketStart = rangeToBasketIDMap.get(eventStart);
-        ret.basketEnd = rangeToBasketIDMap.get(eventEnd - 1) + 1;
         ret.checkInvariants();
         return ret;
     }
 
     public void checkInvariants() {
-        checkNotNull(rangeToBasketIDMap);
+        checkNotNull(entryOffsets);
         if (basketEnd == 0) {
             assert basketEnd != 0;
         }
@@ -96,45 +133,28 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
 
     public SlimTBranch(String path, long []basketEntryOffsets, TBranch.ArrayDescriptor desc) {
         this(path, basketEntryOffsets, desc, 0);
-        checkInvariants();
-    }
-
-    private static Range<Long>[] entryOffsetToRangeArray(long[] basketEntryOffsets) {
-        @SuppressWarnings("unchecked")
-        Range<Long>[] ret = new Range[basketEntryOffsets.length - 1];
-        for (int i = 0; i < basketEntryOffsets.length - 1; i += 1) {
-            Range<Long> range = Range.closed(basketEntryOffsets[i], basketEntryOffsets[i + 1] - 1);
-            ret[i] = range;
-        }
-        return ret;
     }
 
-    private SlimTBranch(String path, long []basketEntryOffsets, TBranch.ArrayDescriptor desc, int basketStart) {
-        this(path, entryOffsetToRangeArray(basketEntryOffsets), desc, basketStart);
-        checkInvariants();
-    }
-
-    public SlimTBranch(String path, Range<Long>[] basketRangeList, TBranch.ArrayDescriptor desc) {
-        this(path, basketRangeList, desc, 0);
+    /**
+     * @param path path of the file holding the branch
+     * @param basketEntryOffsets the entry offsets of baskets basketStart
+     *          through basketEnd (i.e. one more than the number of baskets)
+     * @param desc array descriptor of the branch
+     * @param basketStart the first basket described by basketEntryOffsets
+     */
+    public SlimTBranch(String path, long []basketEntryOffsets, TBranch.ArrayDescriptor desc, int basketStart) {
+        this(path, EntryOffsets.intern(basketEntryOffsets), basketStart, desc);
+        this.basketStart = basketStart;
+        this.basketEnd = basketEntryOffsets.length - 1 + basketStart;
         checkInvariants();
     }
 
-    public SlimTBranch(String path, Range<Long>[] basketRangeList, TBranch.ArrayDescriptor desc, int basketStart) {
+    private SlimTBranch(String path, EntryOffsets entryOffsets, int entryOffsetsBase, TBranch.ArrayDescriptor desc) {
         this.path = path;
         this.arrayDesc = desc;
         this.baskets = new HashMap<Integer, SlimTBasket>();
-        this.basketStart = basketStart;
-        this.basketEnd = basketRangeList.length + basketStart;
-
-        Builder<Long, Integer> basketBuilder = new ImmutableRangeMap.Builder<Long, Integer>();
-        for (int i = 0; i < basketRangeList.length; i += 1) {
-            int targetBasket = i + basketStart;
-            basketBuilder = basketBuilder.put(basketRangeList[i], targetBasket);
-        }
-        ImmutableRangeMap<Long, Integer> tmp = basketBuilder.build();
-        checkNotNull(tmp);
-        rangeToBasketIDMap = rangeMapInterner.intern(tmp);
-        checkInvariants();
+        this.entryOffsets = entryOffsets;
+        this.entryOffsetsBase = entryOffsetsBase;
     }
 
     public static SlimTBranch getFromTBranch(TBranch fatBranch) {
@@ -146,38 +166,27 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
         return slimBranch;
     }
 
-    @Override
-    public ImmutableRangeMap<Long, Integer> getRangeToBasketIDMap() {
-        checkNotNull(rangeToBasketIDMap);
-        return rangeToBasketIDMap;
-    }
-
     private long[] cachedBasketEntry = null;
 
     @Override
     public synchronized long [] getBasketEntryOffsets() {
+        if (entryOffsetsBase == 0) {
+            return entryOffsets.offsets;
+        }
         if (cachedBasketEntry != null) {
             return cachedBasketEntry;
         }
-        ImmutableMap<Range<Long>, Integer> descMap = getRangeToBasketIDMap().asMapOfRanges();
-        int maxIdx = Math.max(basketEntryOffsetsLength, basketEnd);
-        cachedBasketEntry = new long[maxIdx + 1];
-        for (int i = 0; i < basketStart; i += 1) {
+        /*
+         * The offsets of the baskets before the slice aren't known, so fill
+         * them with placeholders that keep the array increasing. Nothing
+         * reads those baskets
+         */
+        long[] offsets = entryOffsets.offsets;
+        cachedBasketEntry = new long[entryOffsetsBase + offsets.length];
+        for (int i = 0; i < entryOffsetsBase; i += 1) {
             cachedBasketEntry[i] = i;
         }
-        long topMost = 0;
-        for (Entry<Range<Long>, Integer> e: descMap.entrySet()) {
-            int idx = e.getValue();
-            if ((idx < basketStart) || (idx >= basketEnd)) {
-                continue;
-            }
-            cachedBasketEntry[idx] = e.getKey().lowerEndpoint();
-            cachedBasketEntry[idx + 1] = e.getKey().upperEndpoint() + 1;
-            topMost = e.getKey().upperEndpoint() + 1;
-        }
-        for (int i = basketEnd + 2; i < maxIdx; i += 1) {
-            cachedBasketEntry[i] = topMost + i;
-        }
+        System.arraycopy(offsets, 0, cachedBasketEntry, entryOffsetsBase, offsets.length);
         if (cachedBasketEntry[0] != 0) {
             assert cachedBasketEntry[0] == 0;
         }
@@ -272,9 +281,40 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
                 throw new RuntimeException(e);
             }
         }
+
+        @Override
+        public ByteBuffer fetch(int basketid) {
+            SlimTBasket basket = branch.getBasket(basketid);
+            try {
+                ROOTFile tmpFile = getBackingFile();
+                if (basketCache.get(tmpFile, basket.getOffset()) != null) {
+                    // dataWithoutKey() will find it
+                    return null;
+                }
+                return basket.getStoredPayload(tmpFile);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public RawArray decompress(int basketid, ByteBuffer fetched) {
+            if (fetched == null) {
+                return dataWithoutKey(basketid);
+            }
+            SlimTBasket basket = branch.getBasket(basketid);
+            try {
+                ROOTFile tmpFile = getBackingFile();
+                RawArray data = new RawArray(basket.decompressPayload(fetched));
+                basketCache.put(tmpFile, basket.getOffset(), data);
+                return data;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
-    public static class SlimTBasket implements Serializable {
+    public static class SlimTBasket implements Serializable, KryoSerializable {
         private static final Logger logger = LogManager.getLogger();
 
         private static final long serialVersionUID = 1L;
@@ -363,6 +403,52 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
             return this.payload.readBuffer(0, uncompressedLen);
         }
 
+        /**
+         * Read the basket's payload as it's stored in the file, i.e. without
+         * decompressing it
+         *
+         * @param tmpFile the file holding the basket
+         * @return the stored bytes
+         * @throws IOException if the read fails
+         */
+        public ByteBuffer getStoredPayload(ROOTFile tmpFile) throws IOException {
+            initializeMetadata(tmpFile);
+            return tmpFile.getCursor(offset).readBuffer(keyLen, compressedLen);
+        }
+
+        /**
+         * Decompress a payload read by getStoredPayload()
+         *
+         * @param stored the stored bytes
+         * @return the payload, the same as getPayload() returns
+         * @throws IOException if the payload is corrupt
+         */
+        public ByteBuffer decompressPayload(ByteBuffer stored) throws IOException {
+            if (isPopulated == false) {
+                throw new RuntimeException("Slim basket not initialized");
+            }
+            if (compressedLen == uncompressedLen) {
+                return stored;
+            }
+            return Compression.decompressBytes(stored, compressedLen, uncompressedLen);
+        }
+
+        /*
+         * Implements KryoSerializable interface. Like Java serialization,
+         * only the offset is transmitted and the rest of the metadata is
+         * reloaded on the executor
+         */
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeLong(offset, true);
+        }
+
+        @Override
+        public void read(Kryo kryo, Input input) {
+            offset = input.readLong(true);
+            isPopulated = false;
+        }
+
         private void initializePayload(ROOTFile tmpFile) throws IOException {
             Cursor fileCursor = tmpFile.getCursor(offset);
             if (isPopulated == false) {
@@ -415,25 +501,24 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
         private long[] basketByteOffsets;
 
         /**
-         * representation of the rangeToBasketIDMap where the index is the value
-         * minus basketStart and the value at each index is the range that's
-         * represented. This is significantly more space efficient
+         * The entry offsets of baskets basketStart through basketEnd, i.e.
+         * the slice of basketEntryOffsets needed to read this branch
          */
-        private Range<Long>[] rangeToBasketID;
+        private long[] basketEntryOffsets;
         private TBranch.ArrayDescriptor arrayDesc;
         private String path;
 
-        public Range<Long>[] getRangeToBasketID() {
-            return rangeToBasketID;
+        public long[] getBasketEntryOffsets() {
+            return basketEntryOffsets;
         }
 
         private static class TrimBasketKey {
-            private ImmutableRangeMap<Long, Integer> range;
+            private EntryOffsets offsets;
             private int start;
             private int end;
 
-            public TrimBasketKey(ImmutableRangeMap<Long, Integer> range, int start, int end) {
-                this.range = range;
+            public TrimBasketKey(EntryOffsets offsets, int start, int end) {
+                this.offsets = offsets;
                 this.start = start;
                 this.end = end;
             }
@@ -442,7 +527,7 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
             public int hashCode() {
                 final int prime = 31;
                 int result = start + end;
-                result = (prime * result) ^ range.hashCode();
+                result = (prime * result) ^ offsets.hashCode();
                 return result;
             }
 
@@ -460,37 +545,25 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
                 TrimBasketKey other = (TrimBasketKey) obj;
                 return ((start == other.start) &&
                         (end == other.end) &&
-                        (range.equals(other.range)));
+                        (offsets.equals(other.offsets)));
             }
         }
 
         /**
-         * Deduplicate range->basket maps, since many (all?) of them will be same
-         * for different branches in a file. Guessing 2000 as a good cache size
-         * since that's the upper-bound on the number of branches I'd expect to
-         * see in a file.
+         * Deduplicate the offset slices, since many (all?) of them will be
+         * same for different branches in a file. Guessing 2000 as a good cache
+         * size since that's the upper-bound on the number of branches I'd
+         * expect to see in a file.
          */
-        private static LoadingCache<TrimBasketKey,
-                                    Range<Long>[]> dedupRangeMap =
+        private static LoadingCache<TrimBasketKey, long[]> dedupOffsets =
                                         CacheBuilder.newBuilder()
                                         .maximumSize(2000)
                                         .softValues()
                                         .build(
-                                           new CacheLoader<TrimBasketKey,
-                                                           Range<Long>[]>() {
+                                           new CacheLoader<TrimBasketKey, long[]>() {
                                                 @Override
-                                                public Range<Long>[] load(TrimBasketKey key) {
-                                                    ImmutableMap<Range<Long>, Integer> map = key.range.asMapOfRanges();
-                                                    Range<Long>[] rangeToBasketID = new Range[key.end - key.start];
-                                                    for (Entry<Range<Long>, Integer> e: map.entrySet()) {
-                                                        int idx = e.getValue();
-                                                        if ((idx < key.start) || (idx >= key.end)) {
-                                                            continue;
-                                                        }
-                                                        Range<Long> val = e.getKey();
-                                                        rangeToBasketID[idx - key.start] = val;
-                                                    }
-                                                    return rangeToBasketID;
+                                                public long[] load(TrimBasketKey key) {
+                                                    return Arrays.copyOfRange(key.offsets.offsets, key.start, key.end + 1);
                                                 }
                                                 });
 
@@ -511,22 +584,13 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
             }
 
             /*
-             * Store the entry range of each basketID
+             * Store the entry offsets of the baskets we kept
              */
-            ImmutableRangeMap<Long, Integer> idmap = in.getRangeToBasketIDMap();
-            ImmutableMap<Range<Long>, Integer> map = idmap.asMapOfRanges();
-            rangeToBasketID = new Range[basketEnd - basketStart];
-            for (Entry<Range<Long>, Integer> e: map.entrySet()) {
-                int idx = e.getValue();
-                if ((idx < basketStart) || (idx >= basketEnd)) {
-                    continue;
-                }
-                Range<Long> val = e.getKey();
-                rangeToBasketID[idx - basketStart] = val;
-            }
-            TrimBasketKey cacheKey = new TrimBasketKey(in.getRangeToBasketIDMap(), basketStart, basketEnd);
-            rangeToBasketID = dedupRangeMap.getUnchecked(cacheKey);
-            checkNotNull(rangeToBasketID);
+            TrimBasketKey cacheKey = new TrimBasketKey(in.entryOffsets,
+                                                       basketStart - in.entryOffsetsBase,
+                                                       basketEnd - in.entryOffsetsBase);
+            basketEntryOffsets = dedupOffsets.getUnchecked(cacheKey);
+            checkNotNull(basketEntryOffsets);
         }
 
         /**
@@ -535,8 +599,8 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
          * @throws ObjectStreamException We don't throw, but required by Java in signature
          */
         private Object readResolve() throws ObjectStreamException {
-            checkNotNull(rangeToBasketID);
-            SlimTBranch ret = new SlimTBranch(path, rangeToBasketID, arrayDesc, basketStart);
+            checkNotNull(basketEntryOffsets);
+            SlimTBranch ret = new SlimTBranch(path, basketEntryOffsets, arrayDesc, basketStart);
             int idx = basketStart;
             for (long off: basketByteOffsets) {
                 ret.addBasket(idx, new SlimTBasket(off));
@@ -570,67 +634,62 @@ public class SlimTBranch implements Serializable, KryoSerializable, SlimTBranchI
     }
 
     /*
-     * Enable kryo serialization for ImmutableRangeMaps, which apparently
-     * doesn't properly serialize with Kryo
-     */
-    private static class ImmutableRangeMapSerializer extends Serializer<ImmutableRangeMap<Long, Integer>> {
-        private static final boolean DOES_NOT_ACCEPT_NULL = true;
-        private static final boolean IMMUTABLE = true;
-
-        public ImmutableRangeMapSerializer() {
-            super(DOES_NOT_ACCEPT_NULL, IMMUTABLE);
-        }
-
-        @Override
-        public void write(Kryo kryo, Output output, ImmutableRangeMap<Long, Integer> object) {
-            kryo.writeObject(output, Maps.newHashMap(object.asMapOfRanges()));
-        }
-
-        @SuppressWarnings({ "rawtypes", "unchecked" })
-        @Override
-        public ImmutableRangeMap<Long, Integer> read(Kryo kryo, Input input,
-                Class<ImmutableRangeMap<Long, Integer>> type) {
-            HashMap<Range<Long>, Integer> tmp = new HashMap<Range<Long>, Integer>();
-            Class<? extends HashMap> tmpCls = tmp.getClass();
-            HashMap<Range<Long>, Integer> hashMapOfRanges = kryo.readObject(input, tmpCls);
-            Builder<Long, Integer> builder = new Builder<>();
-            for (Entry<Range<Long>, Integer> entry : hashMapOfRanges.entrySet()) {
-                builder.put(entry.getKey(), entry.getValue());
-            }
-            return builder.build();
-        }
-
-
-    }
-
-    /*
-     * Implements KryoSerializable interface
+     * Implements KryoSerializable interface. The basket offsets and entry
+     * offsets are delta-encoded, since they're nearly monotonic and the
+     * differences fit in a couple of bytes as varints
      */
     @Override
     public void write(Kryo kryo, Output output) {
         output.writeString(path);
-        output.writeInt(basketEntryOffsetsLength, true);
         output.writeInt(basketStart, true);
         output.writeInt(basketEnd, true);
         kryo.writeObjectOrNull(output, arrayDesc, TBranch.ArrayDescriptor.class);
-        kryo.writeObject(output, baskets);
-        kryo.writeObject(output, rangeToBasketIDMap, new ImmutableRangeMapSerializer());
+
+        int[] basketIDs = Ints.toArray(new TreeSet<Integer>(baskets.keySet()));
+        output.writeInt(basketIDs.length, true);
+        int prevID = 0;
+        long prevOffset = 0;
+        for (int id: basketIDs) {
+            long offset = baskets.get(id).getOffset();
+            output.writeInt(id - prevID, false);
+            output.writeLong(offset - prevOffset, false);
+            prevID = id;
+            prevOffset = offset;
+        }
+
+
+        // Only the offsets of the baskets we kept are needed to read them
+        long[] offsets = entryOffsets.offsets;
+        int sliceStart = basketStart - entryOffsetsBase;
+        int sliceEnd = basketEnd - entryOffsetsBase + 1;
+        if ((sliceStart != 0) || (sliceEnd != offsets.length)) {
+            offsets = Arrays.copyOfRange(offsets, sliceStart, sliceEnd);
+        }
+        LaurelinKryoRegistrator.writeDeltaLongs(output, offsets);
     }
 
     /*
      * Implements KryoSerializable interface
      */
-    @SuppressWarnings("unchecked")
     @Override
     public void read(Kryo kryo, Input input) {
         path = input.readString();
-        basketEntryOffsetsLength = input.readInt(true);
         basketStart = input.readInt(true);
         basketEnd = input.readInt(true);
         arrayDesc = kryo.readObjectOrNull(input, TBranch.ArrayDescriptor.class);
-        baskets = kryo.readObject(input, HashMap.class);
-        rangeToBasketIDMap = kryo.readObject(input, ImmutableRangeMap.class, new ImmutableRangeMapSerializer());
-    }
+
+        int basketCount = input.readInt(true);
+        baskets = new HashMap<Integer, SlimTBasket>(basketCount * 2);
+        int id = 0;
+        long offset = 0;
+        for (int i = 0; i < basketCount; i += 1) {
+            id += input.readInt(false);
+            offset += input.readLong(false);
+            baskets.put(id, new SlimTBasket(offset));
+        }
 
 
+        entryOffsets = EntryOffsets.intern(LaurelinKryoRegistrator.readDeltaLongs(input));
+        entryOffsetsBase = basketStart;
+    }
 }
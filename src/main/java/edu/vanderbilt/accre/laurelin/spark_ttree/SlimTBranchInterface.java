@@ -1,7 +1,5 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
-import com.google.common.collect.ImmutableRangeMap;
-
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
 import edu.vanderbilt.accre.laurelin.root_proxy.ROOTFileCache;
@@ -24,6 +22,4 @@ public interface SlimTBranchInterface {
      */
     ArrayBuilder.GetBasket getArrayBranchCallback(BasketCache basketCache, ROOTFileCache fileCache);
 
-    ImmutableRangeMap<Long, Integer> getRangeToBasketIDMap();
-
 }
\ No newline at end of file
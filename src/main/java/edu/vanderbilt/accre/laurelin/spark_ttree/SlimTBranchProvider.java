@@ -0,0 +1,139 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.types.StructType;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+
+/**
+ * Supplies a Partition with the SlimTBranches it needs to read its entries.
+ *
+ * <p>Depending on the planning mode, the basket metadata is either built on
+ * the driver and shipped inside each partition, looked up once per file on
+ * the executor or shipped once per executor in a broadcast variable. The
+ * latter two keep the size of the partitions independent of the number of
+ * branches.
+ */
+interface SlimTBranchProvider extends Serializable {
+    /**
+     * @param schema the (pruned) schema being read
+     * @return map of branch name to SlimTBranch for every branch in schema
+     */
+    Map<String, SlimTBranch> getSlimBranches(StructType schema);
+
+    /**
+     * Basket metadata computed at planning time and carried by the partition
+     */
+    class Eager implements SlimTBranchProvider, KryoSerializable {
+        private static final long serialVersionUID = 1L;
+        private Map<String, SlimTBranch> slimBranches;
+
+        public Eager(Map<String, SlimTBranch> slimBranches) {
+            this.slimBranches = slimBranches;
+        }
+
+        @Override
+        public Map<String, SlimTBranch> getSlimBranches(StructType schema) {
+            return slimBranches;
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeInt(slimBranches.size(), true);
+            for (Entry<String, SlimTBranch> e: slimBranches.entrySet()) {
+                output.writeString(e.getKey());
+                kryo.writeObject(output, e.getValue());
+            }
+        }
+
+        @Override
+        public void read(Kryo kryo, Input input) {
+            int count = input.readInt(true);
+            slimBranches = new HashMap<String, SlimTBranch>(count * 2);
+            for (int i = 0; i < count; i += 1) {
+                String name = input.readString();
+                slimBranches.put(name, kryo.readObject(input, SlimTBranch.class));
+            }
+        }
+    }
+
+    /**
+     * Only the location of the TTree is carried by the partition, the
+     * executor loads the metadata itself, once per file
+     */
+    class Executor implements SlimTBranchProvider, KryoSerializable {
+        private static final long serialVersionUID = 1L;
+        private String path;
+        private String treeName;
+        private String metadataCacheDir;
+
+        public Executor(String path, String treeName, String metadataCacheDir) {
+            this.path = path;
+            this.treeName = treeName;
+            this.metadataCacheDir = metadataCacheDir;
+        }
+
+        @Override
+        public Map<String, SlimTBranch> getSlimBranches(StructType schema) {
+            return TTreeIndex.getCachedIndex(path, treeName, metadataCacheDir).getSlimBranches(path, schema);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeString(path);
+            output.writeString(treeName);
+            output.writeString(metadataCacheDir);
+        }
+
+        @Override
+        public void read(Kryo kryo, Input input) {
+            path = input.readString();
+            treeName = input.readString();
+            metadataCacheDir = input.readString();
+        }
+    }
+
+    /**
+     * The partition carries a handle to a broadcast variable holding the
+     * metadata of every file, which Spark transmits once per executor instead
+     * of once per partition
+     */
+    class Broadcasted implements SlimTBranchProvider, KryoSerializable {
+        private static final long serialVersionUID = 1L;
+        private Broadcast<Map<String, TTreeIndex>> indices;
+        private String path;
+
+        public Broadcasted(Broadcast<Map<String, TTreeIndex>> indices, String path) {
+            this.indices = indices;
+            this.path = path;
+        }
+
+        @Override
+        public Map<String, SlimTBranch> getSlimBranches(StructType schema) {
+            return indices.value().get(path).getSlimBranches(path, schema);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output) {
+            // Broadcast handles rely on Java serialization hooks
+            kryo.writeObject(output, indices, new JavaSerializer());
+            output.writeString(path);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void read(Kryo kryo, Input input) {
+            indices = kryo.readObject(input, Broadcast.class, new JavaSerializer());
+            path = input.readString();
+        }
+    }
+}
@@ -20,10 +20,22 @@ public class StructColumnVector extends ColumnVector {
         fields = nestedVecs;
     }
 
+    /**
+     * @return the uncompressed size of the baskets backing all the fields
+     */
+    public long getBasketBytes() {
+        long ret = 0;
+        for (ColumnVector field: fields) {
+            ret += PartitionReader.getBasketBytes(field);
+        }
+        return ret;
+    }
+
     @Override
     public void close() {
-        // TODO Auto-generated method stub
-
+        for (ColumnVector field: fields) {
+            field.close();
+        }
     }
 
     @Override
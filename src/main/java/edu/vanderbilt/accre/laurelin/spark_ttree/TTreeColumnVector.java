@@ -1,7 +1,8 @@
 package edu.vanderbilt.accre.laurelin.spark_ttree;
 
 import java.util.Arrays;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.function.LongConsumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.spark.sql.types.ArrayType;
@@ -14,6 +15,8 @@ import org.apache.spark.unsafe.types.UTF8String;
 
 import edu.vanderbilt.accre.laurelin.array.Array;
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.JaggedArray;
+import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype.Dtype;
@@ -28,34 +31,201 @@ public class TTreeColumnVector extends ColumnVector {
     private long [] basketEntryOffsets;
     private ArrayBuilder.GetBasket getbasket;
     private ArrayBuilder builder;
+    private int numEntries;
 
-    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, ThreadPoolExecutor executor, ROOTFileCache fileCache) {
+    /**
+     * What the builder needs, kept until the first access starts decoding
+     */
+    private Interpretation interpretation;
+    private long entrystart;
+    private long entrystop;
+    private Executor ioExecutor;
+    private Executor decompressExecutor;
+    private Executor executor;
+
+    /**
+     * Told the size of the baskets once decoding starts, or null
+     */
+    private LongConsumer startListener;
+
+    /**
+     * A view of the values of the whole batch, of which the first readyRows
+     * rows have been decoded. Per-row accesses only wait for the basket
+     * holding the row, and once it is decoded don't allocate or check the
+     * decode tasks until they reach a later basket
+     */
+    private PrimitiveArray values;
+    private int readyRows;
+
+    /**
+     * For array branches, the contents of the whole batch as a single flat
+     * vector, and the offsets of each row into it (rowOffsets, or multiples
+     * of arrayWidth for fixed-length arrays), so getArray() returns a view
+     * instead of decoding and wrapping each row separately. Like values,
+     * only the first readyRows rows may be read
+     */
+    private ArrayColumnVector arrayContent;
+    private PrimitiveArray.Int4 rowOffsets;
+    private int arrayWidth;
+    private int[] arrayOffsets;
+
+    /**
+     * Make a vector over the given entries of a branch. Nothing is read
+     * until the vector is first accessed or start() is called, so columns
+     * which are never touched are never decoded
+     */
+    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, Executor ioExecutor, Executor decompressExecutor, Executor executor, ROOTFileCache fileCache) {
         super(type);
+        this.numEntries = Math.toIntExact(entrystop - entrystart);
+        this.entrystart = entrystart;
+        this.entrystop = entrystop;
+        this.ioExecutor = ioExecutor;
+        this.decompressExecutor = decompressExecutor;
+        this.executor = executor;
 
         this.basketEntryOffsets = slimBranch.getBasketEntryOffsets();
         this.getbasket = slimBranch.getArrayBranchCallback(basketCache, fileCache);
 
         TBranch.ArrayDescriptor desc = slimBranch.getArrayDesc();
         if (desc == null) {
-            Interpretation interpretation = new AsDtype(dtype);
-            this.builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+            this.interpretation = new AsDtype(dtype);
         } else if (desc.isFixed()) {
-            Interpretation interpretation = new AsDtype(dtype, Arrays.asList(desc.getFixedLength()));
-            this.builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+            this.interpretation = new AsDtype(dtype, Arrays.asList(desc.getFixedLength()));
         } else {
-            Interpretation interpretation = new AsJagged(new AsDtype(dtype), desc.getSkipBytes());
-            this.builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, executor, entrystart, entrystop);
+            this.interpretation = new AsJagged(new AsDtype(dtype), desc.getSkipBytes());
+        }
+    }
+
+    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, Executor executor) {
+        this(type, rootType, dtype, basketCache, entrystart, entrystop, slimBranch, null, null, executor, (ROOTFileCache) null);
+    }
+
+    /**
+     * Begin decoding the baskets of this vector in the background, if that
+     * hasn't started yet
+     */
+    public void start() {
+        builder();
+    }
+
+    /**
+     * @return true if decoding has started
+     */
+    public boolean isStarted() {
+        return builder != null;
+    }
+
+    /**
+     * Set a callback told the uncompressed size of the baskets once
+     * decoding starts, e.g. to account for their memory
+     */
+    void setStartListener(LongConsumer startListener) {
+        this.startListener = startListener;
+    }
+
+    private ArrayBuilder builder() {
+        if (builder == null) {
+            if (getbasket == null) {
+                throw new IllegalStateException("TTreeColumnVector is closed");
+            }
+            builder = new ArrayBuilder(getbasket, interpretation, basketEntryOffsets, ioExecutor, decompressExecutor, executor, entrystart, entrystop);
+            if (startListener != null) {
+                startListener.accept(builder.getBasketBytes());
+            }
         }
+        return builder;
     }
 
-    public TTreeColumnVector(DataType type, SimpleType rootType, Dtype dtype, BasketCache basketCache, long entrystart, long entrystop, SlimTBranchInterface slimBranch, ThreadPoolExecutor executor) {
-        this(type, rootType, dtype, basketCache, entrystart, entrystop, slimBranch, executor, (ROOTFileCache) null);
+    /**
+     * @return the uncompressed size of the baskets backing this vector, or
+     *          0 if decoding hasn't started
+     */
+    public long getBasketBytes() {
+        return (builder == null) ? 0 : builder.getBasketBytes();
     }
 
     @Override
     public void close() {
-        // TODO Auto-generated method stub
+        // Let the decoded baskets be garbage collected, even if someone still
+        // holds a reference to this vector, and skip any not decoded yet
+        if (builder != null) {
+            builder.cancel();
+        }
+        builder = null;
+        getbasket = null;
+        startListener = null;
+        ioExecutor = null;
+        decompressExecutor = null;
+        executor = null;
+        values = null;
+        readyRows = 0;
+        arrayContent = null;
+        rowOffsets = null;
+        arrayOffsets = null;
+    }
+
+    /**
+     * @return the decoded contents of the whole batch
+     */
+    Array getBatchArray() {
+        return builder().getArray(0, numEntries);
+    }
+
+    private PrimitiveArray values(int rowId) {
+        if (rowId >= readyRows) {
+            readyRows = builder().waitForRow(rowId);
+            values = (PrimitiveArray) builder.getArrayNoWait(0, numEntries);
+        }
+        return values;
+    }
+
+    /**
+     * Wait for the arrays up to rowId and make views of the batch's contents
+     */
+    private void loadArrays(int rowId) {
+        readyRows = builder().waitForRow(rowId);
+        Array batch = builder.getArrayNoWait(0, numEntries);
+        Array content;
+        if (batch instanceof JaggedArray) {
+            JaggedArray jagged = (JaggedArray) batch;
+            rowOffsets = jagged.offsets();
+            content = jagged.content();
+        } else {
+            // fixed-length arrays
+            rowOffsets = null;
+            content = batch.subarray();
+            arrayWidth = (numEntries == 0) ? 0 : content.length() / numEntries;
+        }
+        arrayContent = new ArrayColumnVector(((ArrayType)dataType()).elementType(), content);
+    }
+
+    private int arrayOffset(int rowId) {
+        return (rowOffsets == null) ? rowId * arrayWidth : rowOffsets.toInt(rowId);
+    }
 
+    /**
+     * @return the flat contents of all the arrays in this batch
+     */
+    ArrayColumnVector getArrayContent() {
+        if ((readyRows < numEntries) || (arrayContent == null)) {
+            loadArrays(numEntries - 1);
+        }
+        return arrayContent;
+    }
+
+    /**
+     * @return the offset of each row into getArrayContent(), with a final
+     *         element holding the end of the last row
+     */
+    int[] getArrayOffsets() {
+        if (arrayOffsets == null) {
+            getArrayContent();
+            arrayOffsets = new int[numEntries + 1];
+            for (int i = 0; i <= numEntries; i += 1) {
+                arrayOffsets[i] = arrayOffset(i);
+            }
+        }
+        return arrayOffsets;
     }
 
     @Override
@@ -78,45 +248,46 @@ public class TTreeColumnVector extends ColumnVector {
 
     @Override
     public boolean getBoolean(int rowId) {
-        return getBooleans(rowId, 1)[0];
+        return ((PrimitiveArray.Bool) values(rowId)).toBoolean(rowId);
     }
 
     @Override
     public byte getByte(int rowId) {
-        return getBytes(rowId, 1)[0];
+        return ((PrimitiveArray.Int1) values(rowId)).toByte(rowId);
     }
 
     @Override
     public short getShort(int rowId) {
-        return getShorts(rowId, 1)[0];
+        return ((PrimitiveArray.Int2) values(rowId)).toShort(rowId);
     }
 
     @Override
     public int getInt(int rowId) {
-        return getInts(rowId, 1)[0];
+        return ((PrimitiveArray.Int4) values(rowId)).toInt(rowId);
     }
 
     @Override
     public long getLong(int rowId) {
-        return getLongs(rowId, 1)[0];
+        return ((PrimitiveArray.Int8) values(rowId)).toLong(rowId);
     }
 
     @Override
     public float getFloat(int rowId) {
-        return getFloats(rowId, 1)[0];
+        return ((PrimitiveArray.Float4) values(rowId)).toFloat(rowId);
     }
 
     @Override
     public double getDouble(int rowId) {
-        return getDoubles(rowId, 1)[0];
+        return ((PrimitiveArray.Float8) values(rowId)).toDouble(rowId);
     }
 
     @Override
     public ColumnarArray getArray(int rowId) {
-        Array array = builder.getArray(rowId, 1);
-        Array subarray = array.subarray();
-        ArrayColumnVector tmpvec = new ArrayColumnVector(((ArrayType)dataType()).elementType(), subarray);
-        return new ColumnarArray(tmpvec, 0, subarray.length());
+        if ((rowId >= readyRows) || (arrayContent == null)) {
+            loadArrays(rowId);
+        }
+        int start = arrayOffset(rowId);
+        return new ColumnarArray(arrayContent, start, arrayOffset(rowId + 1) - start);
     }
 
     @Override
@@ -155,7 +326,7 @@ public class TTreeColumnVector extends ColumnVector {
 
     @Override
     public boolean[] getBooleans(int rowId, int count) {
-        byte[] tmp = (byte[])builder.getArray(rowId, count).toArray();
+        byte[] tmp = (byte[])builder().getArray(rowId, count).toArray();
         boolean[] ret = new boolean[count];
         for (int i = 0; i < count; i += 1) {
             ret[i] = (tmp[i] == 1);
@@ -165,31 +336,31 @@ public class TTreeColumnVector extends ColumnVector {
 
     @Override
     public byte[] getBytes(int rowId, int count) {
-        return (byte[])(builder.getArray(rowId, count).toArray());
+        return (byte[])(builder().getArray(rowId, count).toArray());
     }
 
     @Override
     public short[] getShorts(int rowId, int count) {
-        return (short[])(builder.getArray(rowId, count).toArray());
+        return (short[])(builder().getArray(rowId, count).toArray());
     }
 
     @Override
     public int[] getInts(int rowId, int count) {
-        return (int[])(builder.getArray(rowId, count).toArray());
+        return (int[])(builder().getArray(rowId, count).toArray());
     }
 
     @Override
     public long[] getLongs(int rowId, int count) {
-        return (long[])(builder.getArray(rowId, count).toArray());
+        return (long[])(builder().getArray(rowId, count).toArray());
     }
 
     @Override
     public float[] getFloats(int rowId, int count) {
-        return (float[])(builder.getArray(rowId, count).toArray());
+        return (float[])(builder().getArray(rowId, count).toArray());
     }
 
     @Override
     public double[] getDoubles(int rowId, int count) {
-        return (double[])(builder.getArray(rowId, count).toArray());
+        return (double[])(builder().getArray(rowId, count).toArray());
     }
 }
@@ -0,0 +1,572 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.IOFactory;
+import edu.vanderbilt.accre.laurelin.root_proxy.ROOTFileCache;
+import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
+import edu.vanderbilt.accre.laurelin.root_proxy.TFile;
+import edu.vanderbilt.accre.laurelin.root_proxy.TTree;
+import edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBranch.SlimTBasket;
+
+/**
+ * Everything partition planning needs to know about a TTree, without needing
+ * to deserialize the ROOT metadata -- the entry count and, for each branch,
+ * its type, array descriptor and the entry/byte offsets of its baskets.
+ *
+ * <p>Deserializing the streamers and TTree of a large file (e.g. CMS NANOAOD)
+ * is a significant portion of the planning time, and it is repeated every
+ * time a job touches the file. The index can optionally be persisted as a
+ * small sidecar file in a cache directory, keyed by the path, size and
+ * modification time of the ROOT file, so subsequent jobs over the same
+ * (unchanged) file can skip the ROOT metadata entirely.
+ */
+public class TTreeIndex implements Serializable, KryoSerializable {
+    private static final Logger logger = LogManager.getLogger();
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Marks the beginning of a sidecar file, "LRIX"
+     */
+    private static final int MAGIC = 0x4c524958;
+
+    /**
+     * Bump whenever the on-disk format changes, stale versions are rebuilt
+     */
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".idx";
+
+    private long entries;
+
+    /**
+     * Basket entry offsets of the first branch, which is what we partition on
+     */
+    private long[] partitionEntryOffsets;
+
+    /**
+     * Indexed branches, keyed by their full name (i.e. without the trailing
+     * "." ROOT puts on some parent branches)
+     */
+    private Map<String, BranchIndex> branches;
+
+    /**
+     * SlimTBranches made from this index, shared between every partition of
+     * the file that is processed by this JVM
+     */
+    private transient Map<String, SlimTBranch> slimBranchCache;
+
+    /**
+     * Executor-wide cache of indices, keyed by (path, size, modification
+     * time, tree name) so a file rewritten in place is indexed again. Soft
+     * values let the GC reclaim them if memory gets tight.
+     */
+    private static Cache<List<Object>, TTreeIndex> indexCache = CacheBuilder.newBuilder()
+                                                                    .softValues()
+                                                                    .build();
+
+    /**
+     * The metadata for a single branch
+     */
+    public static class BranchIndex implements Serializable, KryoSerializable {
+        private static final long serialVersionUID = 1L;
+        private String name;
+        private String rootType;
+        private TBranch.ArrayDescriptor arrayDesc;
+        private long[] basketEntryOffsets;
+        private long[] basketSeek;
+        private int[] basketBytes;
+
+        private BranchIndex() { }
+
+        private static BranchIndex fromTBranch(TBranch branch) {
+            BranchIndex ret = new BranchIndex();
+            ret.name = branch.getName();
+            ret.arrayDesc = branch.getArrayDescriptor();
+            ret.basketEntryOffsets = branch.getBasketEntryOffsets();
+            ret.basketSeek = branch.getBasketSeek();
+            ret.basketBytes = branch.getBasketBytes();
+            if (branch.getLeaves().size() == 1) {
+                ret.rootType = branch.getSimpleType().getBaseType().toString();
+            }
+            return ret;
+        }
+
+        /**
+         * @return ROOT-given branch name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return base type of the branch as used in the "rootType" schema
+         *         metadata or null if the branch has no leaves
+         */
+        public String getRootType() {
+            return rootType;
+        }
+
+        public TBranch.ArrayDescriptor getArrayDesc() {
+            return arrayDesc;
+        }
+
+        public long[] getBasketEntryOffsets() {
+            return basketEntryOffsets;
+        }
+
+        public long[] getBasketSeek() {
+            return basketSeek;
+        }
+
+        public int[] getBasketBytes() {
+            return basketBytes;
+        }
+
+        /**
+         * Make a SlimTBranch pointing into the given file from this index
+         *
+         * @param path path to the ROOT file this index was generated from
+         * @return SlimTBranch with lazily-loaded baskets
+         */
+        public SlimTBranch toSlimTBranch(String path) {
+            SlimTBranch ret = new SlimTBranch(path, basketEntryOffsets, arrayDesc);
+            for (int i = 0; i < basketSeek.length; i += 1) {
+                ret.addBasket(i, SlimTBasket.makeLazyBasket(basketSeek[i]));
+            }
+            return ret;
+        }
+
+        private void write(DataOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeBoolean(rootType != null);
+            if (rootType != null) {
+                out.writeUTF(rootType);
+            }
+            if (arrayDesc == null) {
+                out.writeByte(0);
+            } else if (arrayDesc.isFixed()) {
+                out.writeByte(1);
+                out.writeInt(arrayDesc.getFixedLength());
+                out.writeInt(arrayDesc.getSkipBytes());
+            } else {
+                out.writeByte(2);
+                out.writeUTF(arrayDesc.getBranchName());
+                out.writeInt(arrayDesc.getSkipBytes());
+            }
+            writeLongs(out, basketEntryOffsets);
+            writeLongs(out, basketSeek);
+            out.writeInt(basketBytes.length);
+            for (int val: basketBytes) {
+                out.writeInt(val);
+            }
+        }
+
+        /*
+         * Implements KryoSerializable interface
+         */
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeString(name);
+            output.writeString(rootType);
+            kryo.writeObjectOrNull(output, arrayDesc, TBranch.ArrayDescriptor.class);
+            LaurelinKryoRegistrator.writeDeltaLongs(output, basketEntryOffsets);
+            LaurelinKryoRegistrator.writeDeltaLongs(output, basketSeek);
+            LaurelinKryoRegistrator.writeInts(output, basketBytes);
+        }
+
+        /*
+         * Implements KryoSerializable interface
+         */
+        @Override
+        public void read(Kryo kryo, Input input) {
+            name = input.readString();
+            rootType = input.readString();
+            arrayDesc = kryo.readObjectOrNull(input, TBranch.ArrayDescriptor.class);
+            basketEntryOffsets = LaurelinKryoRegistrator.readDeltaLongs(input);
+            basketSeek = LaurelinKryoRegistrator.readDeltaLongs(input);
+            basketBytes = LaurelinKryoRegistrator.readInts(input);
+        }
+
+        private static BranchIndex read(DataInput in) throws IOException {
+            BranchIndex ret = new BranchIndex();
+            ret.name = in.readUTF();
+            if (in.readBoolean()) {
+                ret.rootType = in.readUTF();
+            }
+            byte descType = in.readByte();
+            if (descType == 1) {
+                String mag = Integer.toString(in.readInt());
+                ret.arrayDesc = TBranch.ArrayDescriptor.newNumArray(mag, in.readInt());
+            } else if (descType == 2) {
+                String mag = in.readUTF();
+                ret.arrayDesc = TBranch.ArrayDescriptor.newVarArray(mag, in.readInt());
+            } else if (descType != 0) {
+                throw new IOException("Unknown array descriptor type: " + descType);
+            }
+            ret.basketEntryOffsets = readLongs(in);
+            ret.basketSeek = readLongs(in);
+            ret.basketBytes = new int[in.readInt()];
+            for (int i = 0; i < ret.basketBytes.length; i += 1) {
+                ret.basketBytes[i] = in.readInt();
+            }
+            return ret;
+        }
+    }
+
+    private TTreeIndex() { }
+
+    /**
+     * Build an index by walking an already-deserialized TTree. Branches that
+     * can't be described (e.g. unsupported types) are skipped, and will
+     * produce an error if they are later looked up.
+     *
+     * @param tree the TTree to index
+     * @return the index of every branch in the tree
+     */
+    public static TTreeIndex fromTTree(TTree tree) {
+        TTreeIndex ret = new TTreeIndex();
+        ret.entries = tree.getEntries();
+        ret.partitionEntryOffsets = tree.getBranches().get(0).getBasketEntryOffsets();
+        ret.branches = new LinkedHashMap<String, BranchIndex>();
+        ret.indexBranches(tree.getBranches());
+        return ret;
+    }
+
+    private void indexBranches(Iterable<TBranch> branchList) {
+        for (TBranch branch: branchList) {
+            try {
+                branches.put(branch.getFullName(), BranchIndex.fromTBranch(branch));
+            } catch (RuntimeException e) {
+                logger.debug("Not indexing branch \"{}\": {}", branch.getName(), e.getMessage());
+            }
+            indexBranches(branch.getBranches());
+        }
+    }
+
+    /**
+     * Get the index for a tree in a file, consulting (and populating) the
+     * sidecar cache if a cache directory is given
+     *
+     * @param path ROOT file to index
+     * @param treeName name of the TTree within the file
+     * @param cacheDir directory holding the sidecar files, or null to always
+     *                 parse the ROOT metadata
+     * @return index of the given tree
+     * @throws IOException if the ROOT file can't be read
+     */
+    public static TTreeIndex getIndex(String path, String treeName, String cacheDir) throws IOException {
+        Path sidecar = null;
+        FileSystem cacheFS = null;
+        if (cacheDir != null) {
+            try {
+                Configuration hadoopConf = IOFactory.getHadoopConfiguration();
+                sidecar = getSidecarPath(path, treeName, cacheDir, hadoopConf);
+                cacheFS = sidecar.getFileSystem(hadoopConf);
+                if (cacheFS.exists(sidecar)) {
+                    try (DataInputStream in = new DataInputStream(cacheFS.open(sidecar))) {
+                        TTreeIndex ret = read(in);
+                        logger.debug("Loaded metadata index for {} from {}", path, sidecar);
+                        return ret;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // A broken cache should never break the read
+                logger.warn("Unable to load metadata index for " + path + ", parsing file instead", e);
+            }
+        }
+
+        TFile inputFile = TFile.getFromFile(ROOTFileCache.getCache().getROOTFile(path));
+        TTree inputTree = new TTree(inputFile.getProxy(treeName), inputFile);
+        TTreeIndex ret = fromTTree(inputTree);
+
+        if (cacheFS != null) {
+            try {
+                // Write to a temporary file and rename it into place so
+                // concurrent readers never see a partial index
+                Path tmp = new Path(sidecar.getParent(), sidecar.getName() + "." + UUID.randomUUID() + ".tmp");
+                try (DataOutputStream out = new DataOutputStream(cacheFS.create(tmp, true))) {
+                    ret.write(out);
+                }
+                if (!cacheFS.rename(tmp, sidecar)) {
+                    cacheFS.delete(tmp, false);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Unable to store metadata index for " + path, e);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the index for a tree in a file, only loading it once per JVM
+     *
+     * @param path ROOT file to index
+     * @param treeName name of the TTree within the file
+     * @param cacheDir directory holding the sidecar files, or null
+     * @return index of the given tree
+     */
+    public static TTreeIndex getCachedIndex(String path, String treeName, String cacheDir) {
+        try {
+            List<Object> key = getFileKey(path);
+            key.add(treeName);
+            return indexCache.get(key, () -> getIndex(path, treeName, cacheDir));
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Identify the current contents of a file for in-memory caches, which
+     * must not return what was cached for a file since rewritten in place
+     *
+     * @param path ROOT file to identify
+     * @return mutable list of the path, size and modification time of the
+     *         file, which callers extend with their own key
+     */
+    static List<Object> getFileKey(String path) {
+        try {
+            Path rootPath = new Path(path);
+            FileStatus status = rootPath.getFileSystem(IOFactory.getHadoopConfiguration()).getFileStatus(rootPath);
+            return new ArrayList<Object>(Arrays.asList(path, status.getLen(), status.getModificationTime()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sidecar files are named after a hash of the path, size and modification
+     * time of the ROOT file (and the tree name), so a modified file will never
+     * match a stale index
+     */
+    private static Path getSidecarPath(String path, String treeName, String cacheDir, Configuration hadoopConf) throws IOException {
+        return getSidecarPath(path, treeName + "|" + VERSION, cacheDir, SUFFIX, hadoopConf);
+    }
+
+    /**
+     * Name a sidecar file after the path, size and modification time of a
+     * ROOT file
+     *
+     * @param path ROOT file the sidecar describes
+     * @param key distinguishes the sidecars of one file, e.g. by tree name
+     *            and format version
+     * @param cacheDir directory holding the sidecar files
+     * @param suffix extension of the sidecar file
+     * @param hadoopConf configuration used to stat the ROOT file
+     * @return path of the sidecar file
+     * @throws IOException if the ROOT file can't be stat-ed
+     */
+    static Path getSidecarPath(String path, String key, String cacheDir, String suffix, Configuration hadoopConf) throws IOException {
+        Path rootPath = new Path(path);
+        FileStatus status = rootPath.getFileSystem(hadoopConf).getFileStatus(rootPath);
+        String fullKey = String.format("%s|%d|%d|%s", path, status.getLen(), status.getModificationTime(), key);
+        String hash = Hashing.sha256().hashString(fullKey, StandardCharsets.UTF_8).toString();
+        return new Path(cacheDir, hash + suffix);
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long[] getPartitionEntryOffsets() {
+        return partitionEntryOffsets;
+    }
+
+    public Map<String, BranchIndex> getBranches() {
+        return Collections.unmodifiableMap(branches);
+    }
+
+    /**
+     * Look up a branch by its full name
+     *
+     * @param fullName name of the branch, with nested names separated by "."
+     * @return the index of the branch
+     */
+    public BranchIndex getBranch(String fullName) {
+        BranchIndex ret = branches.get(fullName);
+        if (ret == null) {
+            throw new RuntimeException("Could not find branch in index: " + fullName);
+        }
+        return ret;
+    }
+
+    /**
+     * Make a copy of this index only containing the branches needed to read
+     * the given schema, e.g. to cheaply ship it to executors
+     *
+     * @param schema the fields to keep
+     * @return index containing a subset of the branches
+     */
+    public TTreeIndex project(StructType schema) {
+        TTreeIndex ret = new TTreeIndex();
+        ret.entries = entries;
+        ret.partitionEntryOffsets = partitionEntryOffsets;
+        ret.branches = new LinkedHashMap<String, BranchIndex>();
+        projectImpl(ret.branches, schema, "");
+        return ret;
+    }
+
+    private void projectImpl(Map<String, BranchIndex> dest, StructType struct, String namespace) {
+        for (StructField field: struct.fields())  {
+            if (field.dataType() instanceof StructType) {
+                projectImpl(dest, (StructType) field.dataType(), namespace + field.name() + ".");
+            }
+            String fullName = namespace + field.name();
+            dest.put(fullName, getBranch(fullName));
+        }
+    }
+
+    /**
+     * Get the SlimTBranches for every (possibly nested) field in a schema,
+     * keyed by the ROOT-given branch name
+     *
+     * @param path path to the ROOT file this index was generated from
+     * @param schema the fields to look up
+     * @return map of branch name to untrimmed SlimTBranch
+     */
+    public Map<String, SlimTBranch> getSlimBranches(String path, StructType schema) {
+        Map<String, SlimTBranch> ret = new HashMap<String, SlimTBranch>();
+        getSlimBranchesImpl(path, ret, schema, "");
+        return ret;
+    }
+
+    private void getSlimBranchesImpl(String path, Map<String, SlimTBranch> slimBranches, StructType struct, String namespace) {
+        for (StructField field: struct.fields())  {
+            if (field.dataType() instanceof StructType) {
+                getSlimBranchesImpl(path, slimBranches, (StructType) field.dataType(), namespace + field.name() + ".");
+            }
+            String fullName = namespace + field.name();
+            BranchIndex branch = getBranch(fullName);
+            slimBranches.put(branch.getName(), getSlimBranchCache().computeIfAbsent(fullName, k -> branch.toSlimTBranch(path)));
+        }
+    }
+
+    private synchronized Map<String, SlimTBranch> getSlimBranchCache() {
+        if (slimBranchCache == null) {
+            slimBranchCache = new ConcurrentHashMap<String, SlimTBranch>();
+        }
+        return slimBranchCache;
+    }
+
+    /**
+     * Serialize this index to the sidecar format
+     *
+     * @param out destination
+     * @throws IOException on failure
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(entries);
+        writeLongs(out, partitionEntryOffsets);
+        out.writeInt(branches.size());
+        for (Map.Entry<String, BranchIndex> e: branches.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().write(out);
+        }
+    }
+
+    /**
+     * Deserialize an index from the sidecar format
+     *
+     * @param in source
+     * @return the stored index
+     * @throws IOException on failure or if the format is unknown
+     */
+    public static TTreeIndex read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a metadata index");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported metadata index version: " + version);
+        }
+        TTreeIndex ret = new TTreeIndex();
+        ret.entries = in.readLong();
+        ret.partitionEntryOffsets = readLongs(in);
+        int branchCount = in.readInt();
+        ret.branches = new LinkedHashMap<String, BranchIndex>(branchCount * 2);
+        for (int i = 0; i < branchCount; i += 1) {
+            String fullName = in.readUTF();
+            ret.branches.put(fullName, BranchIndex.read(in));
+        }
+        return ret;
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void write(Kryo kryo, Output output) {
+        output.writeLong(entries, true);
+        LaurelinKryoRegistrator.writeDeltaLongs(output, partitionEntryOffsets);
+        output.writeInt(branches.size(), true);
+        for (Map.Entry<String, BranchIndex> e: branches.entrySet()) {
+            output.writeString(e.getKey());
+            kryo.writeObject(output, e.getValue());
+        }
+    }
+
+    /*
+     * Implements KryoSerializable interface
+     */
+    @Override
+    public void read(Kryo kryo, Input input) {
+        entries = input.readLong(true);
+        partitionEntryOffsets = LaurelinKryoRegistrator.readDeltaLongs(input);
+        int branchCount = input.readInt(true);
+        branches = new LinkedHashMap<String, BranchIndex>(branchCount * 2);
+        for (int i = 0; i < branchCount; i += 1) {
+            String fullName = input.readString();
+            branches.put(fullName, kryo.readObject(input, BranchIndex.class));
+        }
+    }
+
+    private static void writeLongs(DataOutput out, long[] vals) throws IOException {
+        out.writeInt(vals.length);
+        for (long val: vals) {
+            out.writeLong(val);
+        }
+    }
+
+    private static long[] readLongs(DataInput in) throws IOException {
+        long[] ret = new long[in.readInt()];
+        for (int i = 0; i < ret.length; i += 1) {
+            ret[i] = in.readLong();
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,176 @@
+package edu.vanderbilt.accre.laurelin.spark_ttree;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.spark.sql.execution.vectorized.OffHeapColumnVector;
+import org.apache.spark.sql.execution.vectorized.OnHeapColumnVector;
+import org.apache.spark.sql.execution.vectorized.WritableColumnVector;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.vectorized.ColumnVector;
+import org.apache.spark.sql.vectorized.ColumnarBatch;
+
+import edu.vanderbilt.accre.laurelin.array.Array;
+import edu.vanderbilt.accre.laurelin.array.JaggedArray;
+import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
+
+/**
+ * Copies the decoded baskets of a batch into Spark's own
+ * WritableColumnVectors, the same vectors Spark's vectorized Parquet reader
+ * produces. Spark's generated code has fast paths for these.
+ */
+final class WritableVectorConverter {
+    private WritableVectorConverter() { }
+
+    /**
+     * Convert a batch of TTreeColumnVectors. The input batch is closed.
+     *
+     * @param batch batch returned by PartitionReader.makeBatch
+     * @param offHeap true to allocate OffHeapColumnVectors, false for
+     *          OnHeapColumnVectors
+     * @return a batch of WritableColumnVectors with the same contents
+     */
+    static ColumnarBatch convert(ColumnarBatch batch, boolean offHeap) {
+        int numRows = batch.numRows();
+        WritableColumnVector[] vecs = new WritableColumnVector[batch.numCols()];
+        try {
+            for (int i = 0; i < batch.numCols(); i += 1) {
+                ColumnVector src = batch.column(i);
+                vecs[i] = allocate(Math.max(numRows, 1), src.dataType(), offHeap);
+                copy(src, vecs[i], numRows);
+            }
+        } catch (RuntimeException e) {
+            // Off-heap memory isn't garbage collected
+            for (WritableColumnVector vec: vecs) {
+                if (vec != null) {
+                    vec.close();
+                }
+            }
+            throw e;
+        } finally {
+            batch.close();
+        }
+        ColumnarBatch ret = new ColumnarBatch(vecs);
+        ret.setNumRows(numRows);
+        return ret;
+    }
+
+    private static WritableColumnVector allocate(int capacity, DataType type, boolean offHeap) {
+        if (offHeap) {
+            return new OffHeapColumnVector(capacity, type);
+        } else {
+            return new OnHeapColumnVector(capacity, type);
+        }
+    }
+
+    private static void copy(ColumnVector src, WritableColumnVector dst, int numRows) {
+        if (src instanceof StructColumnVector) {
+            int idx = 0;
+            for (ColumnVector field: ((StructColumnVector) src).fields) {
+                copy(field, dst.getChild(idx), numRows);
+                idx += 1;
+            }
+        } else if (src instanceof TTreeColumnVector) {
+            copyArray(((TTreeColumnVector) src).getBatchArray(), dst, numRows);
+        } else {
+            throw new IllegalArgumentException("Unknown column vector: " + src.getClass());
+        }
+    }
+
+    private static void copyArray(Array array, WritableColumnVector dst, int numRows) {
+        if (array instanceof JaggedArray) {
+            JaggedArray jagged = (JaggedArray) array;
+            PrimitiveArray.Int4 offsets = jagged.offsets();
+            int base = offsets.get(0);
+            int start = base;
+            for (int i = 0; i < numRows; i += 1) {
+                int stop = offsets.get(i + 1);
+                dst.putArray(i, start - base, stop - start);
+                start = stop;
+            }
+            int total = start - base;
+            dst.arrayData().reserve(total);
+            copyPrimitive((PrimitiveArray) jagged.content().clip(base, start), dst.arrayData(), total);
+        } else if (dst.dataType() instanceof ArrayType) {
+            // Fixed-length arrays are stored contiguously
+            PrimitiveArray fixed = (PrimitiveArray) array;
+            int multiplicity = fixed.multiplicity();
+            for (int i = 0; i < numRows; i += 1) {
+                dst.putArray(i, i * multiplicity, multiplicity);
+            }
+            dst.arrayData().reserve(numRows * multiplicity);
+            copyPrimitive((PrimitiveArray) fixed.subarray(), dst.arrayData(), numRows * multiplicity);
+        } else {
+            copyPrimitive((PrimitiveArray) array, dst, numRows);
+        }
+    }
+
+    /**
+     * Copy the items straight from the decoded buffer. Buffers in native
+     * order (anything decoded from more than one basket) are copied in bulk,
+     * others (views of a single basket) are byteswapped item by item, so
+     * neither goes through an intermediate Java array
+     */
+    private static void copyPrimitive(PrimitiveArray src, WritableColumnVector dst, int count) {
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer buf = src.byteView();
+        int pos = buf.position();
+        boolean bulk = buf.hasArray() && (buf.order() == ByteOrder.nativeOrder());
+        byte[] bytes = bulk ? buf.array() : null;
+        int offset = bulk ? (buf.arrayOffset() + pos) : 0;
+        if (src instanceof PrimitiveArray.Bool) {
+            for (int i = 0; i < count; i += 1) {
+                dst.putBoolean(i, buf.get(pos + i) != 0);
+            }
+        } else if (src instanceof PrimitiveArray.Int1) {
+            if (buf.hasArray()) {
+                dst.putBytes(0, count, buf.array(), buf.arrayOffset() + pos);
+            } else {
+                for (int i = 0; i < count; i += 1) {
+                    dst.putByte(i, buf.get(pos + i));
+                }
+            }
+        } else if (src instanceof PrimitiveArray.Int2) {
+            for (int i = 0; i < count; i += 1) {
+                dst.putShort(i, buf.getShort(pos + 2 * i));
+            }
+        } else if (src instanceof PrimitiveArray.Int4) {
+            if (bulk) {
+                dst.putInts(0, count, bytes, offset);
+            } else {
+                for (int i = 0; i < count; i += 1) {
+                    dst.putInt(i, buf.getInt(pos + 4 * i));
+                }
+            }
+        } else if (src instanceof PrimitiveArray.Int8) {
+            if (bulk) {
+                dst.putLongs(0, count, bytes, offset);
+            } else {
+                for (int i = 0; i < count; i += 1) {
+                    dst.putLong(i, buf.getLong(pos + 8 * i));
+                }
+            }
+        } else if (src instanceof PrimitiveArray.Float4) {
+            if (bulk) {
+                dst.putFloats(0, count, bytes, offset);
+            } else {
+                for (int i = 0; i < count; i += 1) {
+                    dst.putFloat(i, buf.getFloat(pos + 4 * i));
+                }
+            }
+        } else if (src instanceof PrimitiveArray.Float8) {
+            if (bulk) {
+                dst.putDoubles(0, count, bytes, offset);
+            } else {
+                for (int i = 0; i < count; i += 1) {
+                    dst.putDouble(i, buf.getDouble(pos + 8 * i));
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown array type: " + src.getClass());
+        }
+    }
+}
@@ -1,6 +1,12 @@
 package edu.vanderbilt.accre;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -8,6 +14,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
+import edu.vanderbilt.accre.laurelin.array.BasketEntryOffsets;
 import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
 import edu.vanderbilt.accre.laurelin.array.RawArray;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
@@ -36,5 +43,118 @@ public class ArrayBuilderTest {
         Assert.assertEquals(Arrays.toString((int[])(new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, executor, 0, 10)).getArray(0, 10).toArray()), Arrays.toString(new int[]{0,1,2,3,4,0,1,2,3,4}));
 
         Assert.assertEquals(Arrays.toString((int[])(new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, executor, 1, 9)).getArray(0, 8).toArray()), Arrays.toString(new int[]{1,2,3,4,0,1,2,3}));
+
+        // ranges within a single basket are returned without being copied
+        Assert.assertEquals(Arrays.toString((int[])(new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, executor, 6, 9)).getArray(0, 3).toArray()), Arrays.toString(new int[]{1,2,3}));
+        Assert.assertEquals(Arrays.toString((int[])(new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, null, 1, 4)).getArray(1, 2).toArray()), Arrays.toString(new int[]{2,3}));
+    }
+
+    @Test(timeout = 60000)
+    public void progressive() throws InterruptedException {
+        AsDtype asdtype = new AsDtype(AsDtype.Dtype.INT4);
+        CountDownLatch secondBasket = new CountDownLatch(1);
+
+        ArrayBuilder.GetBasket getbasket = new ArrayBuilder.GetBasket() {
+                @Override
+                public ArrayBuilder.BasketKey basketkey(int basketid) {
+                    return new ArrayBuilder.BasketKey(0, 4 * 5, 4 * 5);
+                }
+
+                @Override
+                public RawArray dataWithoutKey(int basketid) {
+                    if (basketid == 1) {
+                        try {
+                            secondBasket.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return new PrimitiveArray.Int4(new int[]{0,1,2,3,4}, true).rawarray();
+                }
+            };
+
+        long[] basketEntryOffsets = new long[]{0, 5, 10};
+        ThreadPoolExecutor executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(2);
+        try {
+            ArrayBuilder builder = new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, executor, 2, 10);
+            // the first basket can be read while the second is still pending
+            Assert.assertEquals(Arrays.toString((int[])builder.getArray(0, 3).toArray()), Arrays.toString(new int[]{2,3,4}));
+            // reading row by row only waits for the basket holding the row
+            Assert.assertEquals(3, builder.waitForRow(2));
+            PrimitiveArray.Int4 rows = (PrimitiveArray.Int4) builder.getArrayNoWait(0, 8);
+            Assert.assertEquals(4, rows.toInt(2));
+            secondBasket.countDown();
+            Assert.assertEquals(8, builder.waitForRow(3));
+            Assert.assertEquals(0, rows.toInt(3));
+            Assert.assertEquals(Arrays.toString((int[])builder.getArray(0, 8).toArray()), Arrays.toString(new int[]{2,3,4,0,1,2,3,4}));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void staged() {
+        AsDtype asdtype = new AsDtype(AsDtype.Dtype.INT4);
+        List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        ArrayBuilder.GetBasket getbasket = new ArrayBuilder.GetBasket() {
+                @Override
+                public ArrayBuilder.BasketKey basketkey(int basketid) {
+                    return new ArrayBuilder.BasketKey(0, 4 * 5, 4 * 5);
+                }
+
+                @Override
+                public RawArray dataWithoutKey(int basketid) {
+                    throw new AssertionError("the basket should come from fetch()");
+                }
+
+                @Override
+                public ByteBuffer fetch(int basketid) {
+                    threads.add("io " + Thread.currentThread().getName());
+                    ByteBuffer ret = ByteBuffer.allocate(4 * 5);
+                    for (int i = 0; i < 5; i += 1) {
+                        ret.putInt(4 * i, i);
+                    }
+                    return ret;
+                }
+
+                @Override
+                public RawArray decompress(int basketid, ByteBuffer fetched) {
+                    threads.add("decompress " + Thread.currentThread().getName());
+                    return new RawArray(fetched);
+                }
+            };
+
+        long[] basketEntryOffsets = new long[]{0, 5, 10};
+        ExecutorService io = Executors.newSingleThreadExecutor(r -> new Thread(r, "io"));
+        ExecutorService decompress = Executors.newSingleThreadExecutor(r -> new Thread(r, "decompress"));
+        ExecutorService interpret = Executors.newSingleThreadExecutor(r -> new Thread(r, "interpret"));
+        try {
+            ArrayBuilder builder = new ArrayBuilder(getbasket, asdtype, basketEntryOffsets, io, decompress, interpret, 1, 9);
+            Assert.assertEquals(Arrays.toString((int[])builder.getArray(0, 8).toArray()), Arrays.toString(new int[]{1,2,3,4,0,1,2,3}));
+            Assert.assertEquals(4, threads.size());
+            for (String stage: threads) {
+                String[] parts = stage.split(" ");
+                Assert.assertEquals(parts[0], parts[1]);
+            }
+        } finally {
+            io.shutdownNow();
+            decompress.shutdownNow();
+            interpret.shutdownNow();
+        }
+    }
+
+    @Test
+    public void findBasket() {
+        long[] basketEntryOffsets = new long[]{0, 5, 5, 10, 12};
+        Assert.assertEquals(0, BasketEntryOffsets.findBasket(basketEntryOffsets, 0));
+        Assert.assertEquals(0, BasketEntryOffsets.findBasket(basketEntryOffsets, 4));
+        // basket 1 is empty, so entry 5 is in basket 2
+        Assert.assertEquals(2, BasketEntryOffsets.findBasket(basketEntryOffsets, 5));
+        Assert.assertEquals(2, BasketEntryOffsets.findBasket(basketEntryOffsets, 9));
+        Assert.assertEquals(3, BasketEntryOffsets.findBasket(basketEntryOffsets, 11));
+        Assert.assertEquals(-1, BasketEntryOffsets.findBasket(basketEntryOffsets, 12));
+        Assert.assertEquals(-1, BasketEntryOffsets.findBasket(basketEntryOffsets, -1));
+        Assert.assertEquals(-1, BasketEntryOffsets.findBasket(new long[]{0}, 0));
     }
 }
@@ -1,13 +1,17 @@
 package edu.vanderbilt.accre;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.Test;
 
 import edu.vanderbilt.accre.laurelin.array.Array;
+import edu.vanderbilt.accre.laurelin.array.JaggedArray;
 import edu.vanderbilt.accre.laurelin.array.PrimitiveArray;
+import edu.vanderbilt.accre.laurelin.array.RawArray;
 import edu.vanderbilt.accre.laurelin.interpretation.AsDtype;
+import edu.vanderbilt.accre.laurelin.interpretation.AsJagged;
 
 public class InterpretationsTest {
     @Test
@@ -34,4 +38,116 @@ public class InterpretationsTest {
         Array finalized = asdtype.finalize(clipped);
         Assert.assertEquals(Arrays.toString((int[])finalized.toArray()), Arrays.toString(new int[]{1,2,3,4,5,6,7,8}));
     }
+
+    @Test
+    public void asdtypeByteOrder() {
+        AsDtype asdtype = new AsDtype(AsDtype.Dtype.FLOAT8);
+
+        // ROOT stores baskets big-endian
+        ByteBuffer basket = ByteBuffer.allocate(4 * 8);
+        for (int i = 0; i < 4; i += 1) {
+            basket.putDouble(i * 8, i + 0.5);
+        }
+        Array source = asdtype.fromroot(new RawArray(basket), null, 0, 4);
+
+        Array destination = asdtype.destination(6, 6);
+        asdtype.fill(source, destination, 1, 5, 1, 5);
+        Assert.assertEquals(Arrays.toString((double[])destination.toArray()), Arrays.toString(new double[]{0, 0.5, 1.5, 2.5, 3.5, 0}));
+        Assert.assertEquals(2.5, ((PrimitiveArray.Float8)destination).toDouble(3), 0);
+
+        Array clipped = asdtype.clip(destination, 2, 4);
+        Assert.assertEquals(Arrays.toString((double[])clipped.toArray()), Arrays.toString(new double[]{1.5, 2.5}));
+        Assert.assertEquals(2.5, ((PrimitiveArray.Float8)clipped).toDouble(1), 0);
+
+        // the (possibly cached) basket must be left untouched
+        Assert.assertEquals(Arrays.toString((double[])source.toArray()), Arrays.toString(new double[]{0.5, 1.5, 2.5, 3.5}));
+        Assert.assertEquals(3.5, basket.getDouble(3 * 8), 0);
+    }
+
+    @Test
+    public void asjagged() {
+        AsJagged asjagged = new AsJagged(new AsDtype(AsDtype.Dtype.INT4));
+
+        // [[1, 2], [], [3]] and [[4], [5, 6]]
+        Array one = asjagged.fromroot(new PrimitiveArray.Int4(new int[]{1,2,3}, true).rawarray(), new PrimitiveArray.Int4(new int[]{0,8,8,12}, true), 0, 3);
+        Array two = asjagged.fromroot(new PrimitiveArray.Int4(new int[]{4,5,6}, true).rawarray(), new PrimitiveArray.Int4(new int[]{0,4,12}, true), 0, 2);
+        Assert.assertEquals(Arrays.toString((int[])((JaggedArray)one).offsets().toArray()), Arrays.toString(new int[]{0,2,2,3}));
+
+        Array destination = asjagged.destination(6, 5);
+        asjagged.fill(one, destination, 0, 3, 0, 3);
+        asjagged.fill(two, destination, 3, 6, 3, 5);
+        JaggedArray filled = (JaggedArray)destination;
+        Assert.assertEquals(Arrays.toString((int[])filled.offsets().toArray()), Arrays.toString(new int[]{0,2,2,3,4,6}));
+        Assert.assertEquals(Arrays.toString((int[])filled.counts().toArray()), Arrays.toString(new int[]{2,0,1,1,2}));
+        Assert.assertEquals(Arrays.toString((int[])filled.content().toArray()), Arrays.toString(new int[]{1,2,3,4,5,6}));
+
+        JaggedArray clipped = (JaggedArray)asjagged.clip(destination, 1, 4);
+        Assert.assertEquals(Arrays.toString((int[])clipped.offsets().toArray()), Arrays.toString(new int[]{2,2,3,4}));
+        Assert.assertEquals(Arrays.toString((int[])clipped.counts().toArray()), Arrays.toString(new int[]{0,1,1}));
+        Assert.assertEquals(Arrays.toString((int[])destination.clip(4, 5).subarray().toArray()), Arrays.toString(new int[]{5,6}));
+    }
+
+    @Test
+    public void asjaggedSkipBytes() {
+        AsJagged asjagged = new AsJagged(new AsDtype(AsDtype.Dtype.INT4), 2);
+
+        // [[1, 2], [], [3]], each entry preceded by a two byte header
+        ByteBuffer basket = ByteBuffer.allocate(18);
+        basket.put(0, (byte) 0x7f).putInt(2, 1).putInt(6, 2);
+        basket.put(10, (byte) 0x7f);
+        basket.put(12, (byte) 0x7f).putInt(14, 3);
+        PrimitiveArray.Int4 byteoffsets = new PrimitiveArray.Int4(new int[]{0,10,12,18}, true);
+
+        JaggedArray all = (JaggedArray)asjagged.fromroot(new RawArray(basket), byteoffsets, 0, 3);
+        Assert.assertEquals(Arrays.toString((int[])all.offsets().toArray()), Arrays.toString(new int[]{0,2,2,3}));
+        Assert.assertEquals(Arrays.toString((int[])all.content().toArray()), Arrays.toString(new int[]{1,2,3}));
+
+        JaggedArray tail = (JaggedArray)asjagged.fromroot(new RawArray(basket), byteoffsets, 1, 3);
+        Assert.assertEquals(Arrays.toString((int[])tail.offsets().toArray()), Arrays.toString(new int[]{0,0,1}));
+        Assert.assertEquals(Arrays.toString((int[])tail.content().toArray()), Arrays.toString(new int[]{3}));
+
+        // the source basket is not modified
+        Assert.assertEquals(0, basket.position());
+    }
+
+    @Test
+    public void asdtypeUnsigned() {
+        ByteBuffer basket = ByteBuffer.allocate(8);
+        basket.putInt(0, 0x0001ff80).putInt(4, 0xffffffff);
+
+        AsDtype uint1 = new AsDtype(AsDtype.Dtype.UINT1);
+        Array one = uint1.fromroot(uint1.convertBufferDiskToMemory(new RawArray(basket)), null, 0, 8);
+        Assert.assertEquals(Arrays.toString((short[])one.toArray()), Arrays.toString(new short[]{0, 1, 255, 128, 255, 255, 255, 255}));
+
+        AsDtype uint2 = new AsDtype(AsDtype.Dtype.UINT2);
+        Array two = uint2.fromroot(uint2.convertBufferDiskToMemory(new RawArray(basket)), null, 0, 4);
+        Assert.assertEquals(Arrays.toString((int[])two.toArray()), Arrays.toString(new int[]{1, 65408, 65535, 65535}));
+
+        AsDtype uint4 = new AsDtype(AsDtype.Dtype.UINT4);
+        Array four = uint4.fromroot(uint4.convertBufferDiskToMemory(new RawArray(basket)), null, 0, 2);
+        Assert.assertEquals(Arrays.toString((long[])four.toArray()), Arrays.toString(new long[]{0x0001ff80L, 4294967295L}));
+
+        Array destination = uint4.destination(2, 2);
+        uint4.fill(four, destination, 0, 2, 0, 2);
+        Assert.assertEquals(4294967295L, ((PrimitiveArray.Int8)destination).toLong(1));
+
+        PrimitiveArray.Int4 offsets = uint2.convertOffsetDiskToMemory(new PrimitiveArray.Int4(new int[]{0, 2, 6}, true));
+        Assert.assertEquals(Arrays.toString((int[])offsets.toArray()), Arrays.toString(new int[]{0, 4, 12}));
+    }
+
+    @Test
+    public void asdtypeFillFromRoot() {
+        ByteBuffer basket = ByteBuffer.allocate(8);
+        basket.putInt(0, 0x0001ff80).putInt(4, 0xffffffff);
+
+        AsDtype uint2 = new AsDtype(AsDtype.Dtype.UINT2);
+        Array destination = uint2.destination(6, 6);
+        uint2.fillFromRoot(new RawArray(basket), destination, 1, 5);
+        Assert.assertEquals(Arrays.toString((int[])destination.toArray()), Arrays.toString(new int[]{0, 1, 65408, 65535, 65535, 0}));
+
+        AsDtype int4 = new AsDtype(AsDtype.Dtype.INT4);
+        destination = int4.destination(3, 3);
+        int4.fillFromRoot(new RawArray(basket), destination, 1, 3);
+        Assert.assertEquals(Arrays.toString((int[])destination.toArray()), Arrays.toString(new int[]{0, 0x0001ff80, -1}));
+    }
 }
@@ -71,8 +71,8 @@ public class ArrayBoundsTest {
         Interpretation interp = new AsJagged(new AsDtype(type));
         ArrayBuilder builder = new ArrayBuilder(getbasket, interp, basketEntryOffsets, null, 0, 50069);
         JaggedArray testarray = (JaggedArray)builder.getArray(0, 10);
-        System.out.println(Arrays.toString((int[])(testarray.counts().toArray(true))));
-        System.out.println(Arrays.toString((float[])(testarray.content().toArray(true))));
+        System.out.println(Arrays.toString((int[])(testarray.counts().toArray())));
+        System.out.println(Arrays.toString((float[])(testarray.content().toArray())));
     }
 
     @Test
@@ -0,0 +1,64 @@
+package edu.vanderbilt.accre.array;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.array.RawArray;
+
+public class RawArrayTest {
+    private static ByteBuffer widen(RawArray source, int itemsize) {
+        byte[] out = (byte[]) source.widenUnsigned(itemsize).toArray();
+        return ByteBuffer.wrap(out).order(ByteOrder.nativeOrder());
+    }
+
+    @Test
+    public void testWidenUnsigned1() {
+        RawArray source = new RawArray(ByteBuffer.wrap(new byte[] {0, 1, (byte) 0x7f, (byte) 0x80, (byte) 0xff}));
+        ByteBuffer out = widen(source, 1);
+        assertEquals(10, out.limit());
+        short[] expected = {0, 1, 0x7f, 0x80, 0xff};
+        for (int i = 0; i < expected.length; i += 1) {
+            assertEquals(expected[i], out.getShort(2 * i));
+        }
+    }
+
+    @Test
+    public void testWidenUnsigned2() {
+        ByteBuffer in = ByteBuffer.allocate(8);
+        in.putShort((short) 1).putShort((short) 0x7fff).putShort((short) 0x8000).putShort((short) 0xffff);
+        in.flip();
+        ByteBuffer out = widen(new RawArray(in), 2);
+        int[] expected = {1, 0x7fff, 0x8000, 0xffff};
+        for (int i = 0; i < expected.length; i += 1) {
+            assertEquals(expected[i], out.getInt(4 * i));
+        }
+    }
+
+    @Test
+    public void testWidenUnsigned4() {
+        ByteBuffer in = ByteBuffer.allocate(12);
+        in.putInt(1).putInt(0x80000000).putInt(0xffffffff);
+        in.flip();
+        ByteBuffer out = widen(new RawArray(in), 4);
+        long[] expected = {1L, 0x80000000L, 0xffffffffL};
+        for (int i = 0; i < expected.length; i += 1) {
+            assertEquals(expected[i], out.getLong(8 * i));
+        }
+    }
+
+    @Test
+    public void testWidenUnsignedClipped() {
+        // a clipped array starts partway into its buffer
+        ByteBuffer in = ByteBuffer.allocate(16);
+        in.putShort((short) 5).putShort((short) 0xfffe).putShort((short) 0x8001).putShort((short) 7);
+        RawArray clipped = (RawArray) new RawArray(in).clip(2, 6);
+        ByteBuffer out = widen(clipped, 2);
+        assertEquals(8, out.limit());
+        assertEquals(0xfffe, out.getInt(0));
+        assertEquals(0x8001, out.getInt(4));
+    }
+}
@@ -0,0 +1,173 @@
+package edu.vanderbilt.accre.spark_ttree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThan;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.Not;
+import org.apache.spark.sql.sources.Or;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.Metadata;
+import org.apache.spark.sql.types.StructField;
+import org.apache.spark.sql.types.StructType;
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.spark_ttree.BasketStats;
+import edu.vanderbilt.accre.laurelin.spark_ttree.BatchFilter;
+import edu.vanderbilt.accre.laurelin.spark_ttree.TTreeIndex;
+import edu.vanderbilt.accre.laurelin.spark_ttree.TTreeIndex.BranchIndex;
+
+public class BasketStatsTest {
+    private static String foriterPath = "testdata/uproot-foriter.root";
+    private static String flatPath = "testdata/uproot-small-flat-tree.root";
+    private static StructType foriterSchema = new StructType(new StructField[] {
+        new StructField("data", DataTypes.IntegerType, false, Metadata.empty())
+    });
+
+    private static BasketStats foriterStats(boolean bloom) throws IOException {
+        BranchIndex branch = TTreeIndex.getIndex(foriterPath, "foriter", null).getBranch("data");
+        return BasketStats.build(foriterPath, branch, DataTypes.IntegerType, bloom, 4);
+    }
+
+    private static BasketStats roundTrip(BasketStats stats) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        stats.write(new DataOutputStream(bos));
+        return BasketStats.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    private static long[] select(BasketStats stats, Filter filter) {
+        return BatchFilter.selectEntries(filter, foriterSchema, column -> stats, 46);
+    }
+
+    @Test
+    public void testMinMax() throws IOException {
+        BasketStats stats = foriterStats(false);
+        long[] offsets = stats.getBasketEntryOffsets();
+        assertEquals(9, offsets.length);
+        assertTrue(stats.isIntegral());
+        assertFalse(stats.hasBloomFilters());
+        // the values of "data" are its entry numbers
+        for (int i = 0; i < offsets.length - 1; i += 1) {
+            assertEquals(offsets[i], stats.getMinLong(i));
+            assertEquals(offsets[i + 1] - 1, stats.getMaxLong(i));
+        }
+    }
+
+    @Test
+    public void testDecodeOnPools() throws IOException {
+        BranchIndex branch = TTreeIndex.getIndex(foriterPath, "foriter", null).getBranch("data");
+        BasketStats sync = BasketStats.build(foriterPath, branch, DataTypes.IntegerType, true, 0);
+        // one thread keeps fewer baskets in flight than the branch has
+        BasketStats pooled = BasketStats.build(foriterPath, branch, DataTypes.IntegerType, true, 1);
+        for (int i = 0; i < sync.getBasketEntryOffsets().length - 1; i += 1) {
+            assertEquals(sync.getMinLong(i), pooled.getMinLong(i));
+            assertEquals(sync.getMaxLong(i), pooled.getMaxLong(i));
+            assertTrue(pooled.mightContain(i, sync.getMinLong(i)));
+        }
+    }
+
+    @Test
+    public void testFloatMinMax() throws IOException {
+        BranchIndex branch = TTreeIndex.getIndex(flatPath, "tree", null).getBranch("Float64");
+        BasketStats stats = roundTrip(BasketStats.build(flatPath, branch, DataTypes.DoubleType, false, 4));
+        assertFalse(stats.isIntegral());
+        assertEquals(0.0, stats.getMinDouble(0), 0.0);
+        assertEquals(99.0, stats.getMaxDouble(0), 0.0);
+    }
+
+    @Test
+    public void testBloomRoundTrip() throws IOException {
+        BasketStats stats = roundTrip(foriterStats(true));
+        assertTrue(stats.hasBloomFilters());
+        for (int i = 0; i < 46; i += 1) {
+            int basket = i / 6;
+            assertTrue(stats.mightContain(basket, i));
+            // outside of the basket's range
+            assertFalse(stats.mightContain(basket, i + 6));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBloomNeedsInteger() throws IOException {
+        BranchIndex branch = TTreeIndex.getIndex(flatPath, "tree", null).getBranch("Float64");
+        BasketStats.build(flatPath, branch, DataTypes.DoubleType, true, 4);
+    }
+
+    @Test
+    public void testSelectEntries() throws IOException {
+        BasketStats stats = foriterStats(false);
+        assertArrayEquals(new long[] {18, 24}, select(stats, new EqualTo("data", 20)));
+        assertArrayEquals(new long[] {0, 6, 36, 42}, select(stats, new In("data", new Object[] {3, 40})));
+        // adjacent baskets are merged
+        assertArrayEquals(new long[] {0, 12}, select(stats, new LessThan("data", 7)));
+        assertArrayEquals(new long[] {0, 6, 42, 46}, select(stats, new Or(new LessThan("data", 1), new GreaterThan("data", 42))));
+        assertArrayEquals(new long[0], select(stats, new GreaterThan("data", 45)));
+        // negations can't be evaluated against the bounds
+        assertNull(select(stats, new Not(new EqualTo("data", 20))));
+    }
+
+    @Test
+    public void testCachedStatsNoticeRewrite() throws IOException {
+        File copy = File.createTempFile("laurelin-stats", ".root");
+        try {
+            Files.copy(new File(foriterPath).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            BranchIndex branch = TTreeIndex.getIndex(copy.getPath(), "foriter", null).getBranch("data");
+            BasketStats first = BasketStats.getCachedStats(copy.getPath(), "foriter", branch, DataTypes.IntegerType, false, null, 4);
+            assertSame(first, BasketStats.getCachedStats(copy.getPath(), "foriter", branch, DataTypes.IntegerType, false, null, 4));
+
+            // a file rewritten in place isn't served from the cache
+            assertTrue(copy.setLastModified(copy.lastModified() + 10000));
+            BasketStats second = BasketStats.getCachedStats(copy.getPath(), "foriter", branch, DataTypes.IntegerType, false, null, 4);
+            assertNotSame(first, second);
+            assertArrayEquals(first.getBasketEntryOffsets(), second.getBasketEntryOffsets());
+            assertEquals(first.getMaxLong(7), second.getMaxLong(7));
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testSidecarCache() throws IOException {
+        File cacheDir = Files.createTempDirectory("laurelin-stats").toFile();
+        try {
+            BranchIndex branch = TTreeIndex.getIndex(foriterPath, "foriter", null).getBranch("data");
+            BasketStats first = BasketStats.getStats(foriterPath, "foriter", branch, DataTypes.IntegerType, true, cacheDir.getPath(), 4);
+            File[] sidecars = cacheDir.listFiles((dir, name) -> name.endsWith(".stats"));
+            assertEquals(1, sidecars.length);
+            long modified = sidecars[0].lastModified();
+
+            BasketStats second = BasketStats.getStats(foriterPath, "foriter", branch, DataTypes.IntegerType, true, cacheDir.getPath(), 4);
+            assertEquals(modified, sidecars[0].lastModified());
+            assertArrayEquals(first.getBasketEntryOffsets(), second.getBasketEntryOffsets());
+            assertTrue(second.hasBloomFilters());
+            assertEquals(first.getMaxLong(7), second.getMaxLong(7));
+
+            // statistics without Bloom filters are stored separately
+            BasketStats.getStats(foriterPath, "foriter", branch, DataTypes.IntegerType, false, cacheDir.getPath(), 4);
+            assertEquals(2, cacheDir.listFiles((dir, name) -> name.endsWith(".stats")).length);
+        } finally {
+            for (File f: cacheDir.listFiles()) {
+                f.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package edu.vanderbilt.accre.spark_ttree;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.spark.broadcast.Broadcast;
+import org.apache.spark.sql.execution.ui.SparkListenerSQLExecutionEnd;
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.spark_ttree.BroadcastCleaner;
+import scala.reflect.ClassTag$;
+
+public class BroadcastCleanerTest {
+    private static class CountingBroadcast extends Broadcast<String> {
+        private static final long serialVersionUID = 1L;
+        int unpersisted = 0;
+        int destroyed = 0;
+
+        CountingBroadcast() {
+            super(1, ClassTag$.MODULE$.apply(String.class));
+        }
+
+        @Override
+        public String getValue() {
+            return "value";
+        }
+
+        @Override
+        public void doUnpersist(boolean blocking) {
+            unpersisted += 1;
+        }
+
+        @Override
+        public void doDestroy(boolean blocking) {
+            destroyed += 1;
+        }
+    }
+
+    @Test
+    public void unpersistWhenExecutionEnds() {
+        BroadcastCleaner cleaner = new BroadcastCleaner();
+        CountingBroadcast broadcast = new CountingBroadcast();
+        cleaner.unpersistAfter(7, broadcast);
+
+        // other executions ending leave it alone
+        cleaner.onOtherEvent(new SparkListenerSQLExecutionEnd(6, 0));
+        assertEquals(0, broadcast.unpersisted);
+
+        cleaner.onOtherEvent(new SparkListenerSQLExecutionEnd(7, 0));
+        assertEquals(1, broadcast.unpersisted);
+        // it's only unpersisted, so a re-executed plan can fetch it again
+        assertEquals(0, broadcast.destroyed);
+
+        cleaner.onOtherEvent(new SparkListenerSQLExecutionEnd(7, 0));
+        assertEquals(1, broadcast.unpersisted);
+    }
+}
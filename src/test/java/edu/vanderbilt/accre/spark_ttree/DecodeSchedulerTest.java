@@ -0,0 +1,249 @@
+package edu.vanderbilt.accre.spark_ttree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.spark_ttree.DecodeScheduler;
+
+public class DecodeSchedulerTest {
+    @Test(timeout = 60000)
+    public void roundRobin() throws InterruptedException {
+        DecodeScheduler scheduler = new DecodeScheduler(1);
+        DecodeScheduler.TaskQueue first = scheduler.newQueue(4);
+        DecodeScheduler.TaskQueue second = scheduler.newQueue(4);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+
+        // hold the only thread until everything is queued
+        scheduler.executeUnqueued(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        for (int i = 0; i < 3; i += 1) {
+            String name = "first" + i;
+            first.execute(() -> {
+                order.add(name);
+                done.countDown();
+            });
+        }
+        second.execute(() -> {
+            order.add("second0");
+            done.countDown();
+        });
+        gate.countDown();
+        done.await();
+
+        // the second queue doesn't wait behind everything the first queued
+        assertEquals("first0", order.get(0));
+        assertEquals("second0", order.get(1));
+        assertEquals("first1", order.get(2));
+        assertEquals("first2", order.get(3));
+    }
+
+    @Test(timeout = 60000)
+    public void maxRunning() throws InterruptedException {
+        DecodeScheduler scheduler = new DecodeScheduler(4);
+        DecodeScheduler.TaskQueue queue = scheduler.newQueue(2);
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxSeen = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(16);
+        for (int i = 0; i < 16; i += 1) {
+            queue.execute(() -> {
+                int now = running.incrementAndGet();
+                maxSeen.accumulateAndGet(now, Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        done.await();
+        assertTrue("ran " + maxSeen.get() + " at once", maxSeen.get() <= 2);
+    }
+
+    @Test(timeout = 60000)
+    public void setMaxRunning() throws InterruptedException {
+        DecodeScheduler scheduler = new DecodeScheduler(4);
+        DecodeScheduler.TaskQueue queue = scheduler.newQueue(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i += 1) {
+            queue.execute(() -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                done.countDown();
+            });
+        }
+        while (queue.getRunningCount() == 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(1, queue.getRunningCount());
+
+        // raising the limit starts the waiting items right away
+        queue.setMaxRunning(3);
+        while (queue.getRunningCount() < 3) {
+            Thread.sleep(1);
+        }
+        assertEquals(3, queue.getMaxRunning());
+        assertEquals(5, queue.getPendingCount());
+
+        // lowering it lets the running ones finish
+        queue.setMaxRunning(1);
+        gate.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 60000)
+    public void backpressure() throws InterruptedException {
+        DecodeScheduler scheduler = new DecodeScheduler(1);
+        DecodeScheduler.TaskQueue queue = scheduler.newQueue(1, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        Runnable item = () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            done.countDown();
+        };
+
+        // one item running and two waiting fills the queue
+        queue.execute(item);
+        while (queue.getRunningCount() == 0) {
+            Thread.sleep(1);
+        }
+        queue.execute(item);
+        queue.execute(item);
+        assertEquals(2, queue.getPendingCount());
+
+        Thread submitter = new Thread(() -> queue.execute(item));
+        submitter.start();
+        submitter.join(200);
+        assertTrue("submitting to a full queue should block", submitter.isAlive());
+
+        gate.countDown();
+        submitter.join();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 60000)
+    public void cancel() throws InterruptedException {
+        DecodeScheduler scheduler = new DecodeScheduler(1);
+        DecodeScheduler.TaskQueue queue = scheduler.newQueue(1, 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger(0);
+        Runnable item = () -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            ran.incrementAndGet();
+        };
+
+        queue.execute(item);
+        while (queue.getRunningCount() == 0) {
+            Thread.sleep(1);
+        }
+        FutureTask<Integer> queued = new FutureTask<Integer>(() -> 1);
+        queue.execute(queued);
+        queue.execute(item);
+
+        // a submitter blocked on the full queue is released by the cancel
+        AtomicReference<Throwable> rejected = new AtomicReference<Throwable>();
+        Thread submitter = new Thread(() -> {
+            try {
+                queue.execute(item);
+            } catch (RejectedExecutionException e) {
+                rejected.set(e);
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        queue.cancel();
+        submitter.join();
+        assertTrue(rejected.get() instanceof RejectedExecutionException);
+        assertTrue(queue.isCancelled());
+        assertEquals(0, queue.getPendingCount());
+        assertTrue(queued.isCancelled());
+
+        // the running item finishes, the dropped ones never run
+        gate.countDown();
+        while (queue.getRunningCount() > 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, ran.get());
+        try {
+            queue.execute(item);
+            fail("cancelled queue accepted an item");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void cancelCompletableFutures() throws InterruptedException {
+        DecodeScheduler scheduler = new DecodeScheduler(1);
+        DecodeScheduler.TaskQueue queue = scheduler.newQueue(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        CompletableFuture<Integer> running = CompletableFuture.supplyAsync(() -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return 1;
+        }, queue).thenApplyAsync(x -> x + 1, queue);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        CompletableFuture<Integer> queued = CompletableFuture.supplyAsync(() -> 1, queue).thenApplyAsync(x -> x + 1, queue);
+
+        queue.cancel();
+        gate.countDown();
+        // the next stage of a running chain is rejected, which completes it
+        try {
+            running.get();
+            fail("expected the rejected stage to fail the chain");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        // a dropped stage leaves the futures after it incomplete, so their
+        // waiters have to cancel them
+        Thread.sleep(100);
+        assertFalse(queued.isDone());
+        queued.cancel(false);
+        assertTrue(queued.isDone());
+    }
+}
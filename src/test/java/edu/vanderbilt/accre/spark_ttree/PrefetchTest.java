@@ -0,0 +1,74 @@
+package edu.vanderbilt.accre.spark_ttree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.spark_ttree.Prefetch;
+
+public class PrefetchTest {
+    private final AtomicInteger built = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+
+    private Prefetch<Integer> counting(CountDownLatch started, CountDownLatch finish) {
+        return new Prefetch<Integer>(() -> {
+            started.countDown();
+            finish.await();
+            return built.incrementAndGet();
+        }, ret -> released.incrementAndGet());
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        Prefetch<Integer> prefetch = counting(new CountDownLatch(1), new CountDownLatch(0));
+        prefetch.run();
+        assertEquals(1, (int) prefetch.get());
+        // the caller owns the result, so dropping afterwards leaves it alone
+        prefetch.drop();
+        assertEquals(0, released.get());
+    }
+
+    @Test
+    public void testDropBeforeRun() throws Exception {
+        Prefetch<Integer> prefetch = counting(new CountDownLatch(1), new CountDownLatch(0));
+        prefetch.drop();
+        prefetch.run();
+        assertEquals(0, built.get());
+        assertEquals(0, released.get());
+    }
+
+    @Test
+    public void testDropWhenDone() throws Exception {
+        Prefetch<Integer> prefetch = counting(new CountDownLatch(1), new CountDownLatch(0));
+        prefetch.run();
+        prefetch.drop();
+        assertEquals(1, released.get());
+        prefetch.drop();
+        assertEquals(1, released.get());
+    }
+
+    @Test
+    public void testDropWhileRunning() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        Prefetch<Integer> prefetch = counting(started, finish);
+        Thread worker = new Thread(prefetch);
+        worker.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // returns without waiting for the work to finish
+        prefetch.drop();
+        assertTrue(prefetch.isDropped());
+        assertEquals(0, released.get());
+
+        finish.countDown();
+        worker.join(10000);
+        assertEquals(1, built.get());
+        assertEquals(1, released.get());
+    }
+}
@@ -2,7 +2,6 @@ package edu.vanderbilt.accre.spark_ttree;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -51,8 +50,8 @@ public class SlimTBranchTest {
         method.setAccessible(true);
         SlimTBranch.SerializeStorage r = (SlimTBranch.SerializeStorage) method.invoke(middle2);
         middle2 = roundTrip(middle2);
-        assertNotNull(r.getRangeToBasketID()[0]);
-        assertNotEquals(null, r.getRangeToBasketID()[0]);
+        assertNotNull(r.getBasketEntryOffsets());
+        assertArrayEquals(new long[] {10, 22, 30}, r.getBasketEntryOffsets());
         long[] middleOffset2 = middle2.getBasketEntryOffsets();
         assertEquals(10, middleOffset2[1]);
         assertEquals(22, middleOffset2[2]);
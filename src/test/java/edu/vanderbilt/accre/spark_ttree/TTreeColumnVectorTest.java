@@ -2,6 +2,9 @@ package edu.vanderbilt.accre.spark_ttree;
 
 import static edu.vanderbilt.accre.Helpers.getBigTestDataIfExists;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
@@ -16,10 +19,6 @@ import org.apache.spark.sql.types.DataTypes;
 import org.apache.spark.sql.types.IntegerType;
 import org.junit.Test;
 
-import com.google.common.collect.ImmutableRangeMap;
-import com.google.common.collect.ImmutableRangeMap.Builder;
-import com.google.common.collect.Range;
-
 import edu.vanderbilt.accre.laurelin.array.ArrayBuilder;
 import edu.vanderbilt.accre.laurelin.array.RawArray;
 import edu.vanderbilt.accre.laurelin.cache.BasketCache;
@@ -122,15 +121,6 @@ public class TTreeColumnVectorTest {
         public ArrayDescriptor getArrayDesc() {
             return desc;
         }
-
-        @Override
-        public ImmutableRangeMap<Long, Integer> getRangeToBasketIDMap() {
-            Builder<Long, Integer> basketBuilder = new ImmutableRangeMap.Builder<Long, Integer>();
-            for (int i = 0; i < basketEntryOffsets.length - 1; i += 1) {
-                basketBuilder = basketBuilder.put(Range.closed(basketEntryOffsets[i], basketEntryOffsets[i + 1] - 1), i);
-            }
-            return basketBuilder.build();
-        }
     }
 
     private TTreeColumnVector getDummyScalarVec() {
@@ -267,6 +257,44 @@ public class TTreeColumnVectorTest {
 //        vec.getBinary(0);
 //    }
 
+    @Test
+    public void getScalarVec() {
+        byte[][] payload = {intToBytes(new Integer[] {0,1,2,3,4,5,6,7,8,9}),
+                            intToBytes(new Integer[] {10,11,12,13,14,15,16,17,18,19}),
+                            intToBytes(new Integer[] {20,21,22,23,24,25,26,27,28,29})};
+        SlimTBranchInterface branch = new SlimTBranchStub(payload, null, null, new long[]{0,10,20,30}, null, 0);
+        TTreeColumnVector result = new TTreeColumnVector(DataTypes.IntegerType, SimpleType.Int32, Dtype.INT4, basketCache, 2, 26, branch, null);
+        // per-row and bulk accessors must agree, including across baskets
+        for (int i = 0; i < 24; i += 1) {
+            assertEquals(i + 2, result.getInt(i));
+            assertEquals(i + 2, result.getInts(i, 1)[0]);
+        }
+        assertArrayEquals(new int[] {9, 10, 11}, result.getInts(7, 3));
+        result.close();
+    }
+
+    @Test
+    public void lazyStart() {
+        byte[][] payload = {intToBytes(new Integer[] {0,1,2,3,4,5,6,7,8,9}),
+                            intToBytes(new Integer[] {10,11,12,13,14,15,16,17,18,19})};
+        SlimTBranchInterface branch = new SlimTBranchStub(payload, null, null, new long[]{0,10,20}, null, 0);
+        TTreeColumnVector result = new TTreeColumnVector(DataTypes.IntegerType, SimpleType.Int32, Dtype.INT4, basketCache, 5, 15, branch, null);
+        // nothing is decoded until the vector is accessed
+        assertFalse(result.isStarted());
+        assertEquals(0, result.getBasketBytes());
+        assertEquals(5, result.getInt(0));
+        assertTrue(result.isStarted());
+        assertEquals(80, result.getBasketBytes());
+        result.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedBeforeStart() {
+        TTreeColumnVector result = getDummyScalarVec();
+        result.close();
+        result.start();
+    }
+
     @Test
     public void scalar_integer_should_parse() {
         Integer[] testInt = new Integer[] {1,2,3};
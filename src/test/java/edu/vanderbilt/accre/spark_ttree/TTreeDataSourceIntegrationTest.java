@@ -83,6 +83,21 @@ public class TTreeDataSourceIntegrationTest {
         assertEquals(9, df.count());
     }
 
+    @Test
+    public void testMetadataModes() {
+        for (String mode: new String[] {"executor", "broadcast"}) {
+            Dataset<Row> df = spark
+                    .read()
+                    .format("root")
+                    .option("tree",  "tree")
+                    .option("metadataMode", mode)
+                    .load("testdata/uproot-small-flat-tree.root");
+            df = df.select("Int32", "ArrayFloat32");
+            assertEquals(100, df.count());
+            assertEquals(4950L, df.groupBy().sum("Int32").first().getLong(0));
+        }
+    }
+
     @AfterClass
     public static void afterClass() {
         if (spark != null) {
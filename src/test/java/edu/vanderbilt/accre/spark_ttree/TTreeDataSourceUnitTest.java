@@ -1,6 +1,7 @@
 package edu.vanderbilt.accre.spark_ttree;
 
 import static edu.vanderbilt.accre.Helpers.getBigTestDataIfExists;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -14,6 +15,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -21,8 +23,18 @@ import java.util.Map;
 import java.util.function.Function;
 
 import org.apache.spark.SparkConf;
+import org.apache.spark.serializer.DeserializationStream;
 import org.apache.spark.serializer.KryoSerializer;
+import org.apache.spark.serializer.SerializationStream;
+import org.apache.spark.serializer.Serializer;
 import org.apache.spark.serializer.SerializerInstance;
+import org.apache.spark.sql.execution.vectorized.WritableColumnVector;
+import org.apache.spark.sql.sources.EqualTo;
+import org.apache.spark.sql.sources.Filter;
+import org.apache.spark.sql.sources.GreaterThanOrEqual;
+import org.apache.spark.sql.sources.In;
+import org.apache.spark.sql.sources.LessThan;
+import org.apache.spark.sql.sources.Or;
 import org.apache.spark.sql.sources.v2.DataSourceOptions;
 import org.apache.spark.sql.sources.v2.reader.InputPartition;
 import org.apache.spark.sql.sources.v2.reader.InputPartitionReader;
@@ -39,6 +51,7 @@ import org.apache.spark.sql.types.MetadataBuilder;
 import org.apache.spark.sql.types.ShortType;
 import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.vectorized.ArrowColumnVector;
 import org.apache.spark.sql.vectorized.ColumnVector;
 import org.apache.spark.sql.vectorized.ColumnarArray;
 import org.apache.spark.sql.vectorized.ColumnarBatch;
@@ -57,10 +70,12 @@ import edu.vanderbilt.accre.laurelin.root_proxy.SimpleType;
 import edu.vanderbilt.accre.laurelin.root_proxy.TBranch;
 import edu.vanderbilt.accre.laurelin.root_proxy.TFile;
 import edu.vanderbilt.accre.laurelin.root_proxy.TTree;
+import edu.vanderbilt.accre.laurelin.spark_ttree.LaurelinKryoRegistrator;
 import edu.vanderbilt.accre.laurelin.spark_ttree.Reader;
 import edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBranch;
 import edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBranchInterface;
 import edu.vanderbilt.accre.laurelin.spark_ttree.TTreeColumnVector;
+import edu.vanderbilt.accre.laurelin.spark_ttree.TTreeIndex;
 import scala.reflect.ClassTag;
 
 public class TTreeDataSourceUnitTest {
@@ -207,6 +222,386 @@ public class TTreeDataSourceUnitTest {
         }
     }
 
+    private static ColumnarBatch readFirstBatch(Map<String, String> optmap) throws IOException {
+        DataSourceOptions opts = new DataSourceOptions(optmap);
+        Root source = new Root();
+        Reader reader = (Reader) source.createReader(opts, null, true);
+        List<InputPartition<ColumnarBatch>> partitions = reader.planBatchInputPartitions();
+        InputPartitionReader<ColumnarBatch> partitionReader = partitions.get(0).createPartitionReader();
+        assertTrue(partitionReader.next());
+        return partitionReader.get();
+    }
+
+    @Test
+    public void testExecutorMetadataMode() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        ColumnarBatch eager = readFirstBatch(optmap);
+
+        optmap.put("metadataMode", "executor");
+        DataSourceOptions opts = new DataSourceOptions(optmap);
+        Reader reader = (Reader) new Root().createReader(opts, null, true);
+        List<InputPartition<ColumnarBatch>> partitions = reader.planBatchInputPartitions();
+        assertEquals(1, partitions.size());
+        // Only the path, tree name and entry range should be shipped
+        assertTrue(getSerializedSize(partitions.get(0)) < getSerializedSize(reader.readSchema()) + 2048);
+
+        ColumnarBatch lazy = readFirstBatch(optmap);
+        assertEquals(46, lazy.numRows());
+        for (int i = 0; i < lazy.numRows(); i += 1) {
+            assertEquals(eager.column(0).getInt(i), lazy.column(0).getInt(i));
+        }
+    }
+
+    /**
+     * Read every batch of the first partition and check they match the rows
+     * of a partition read as a single batch
+     */
+    private static void assertBatchesMatch(Map<String, String> optmap, ColumnarBatch whole, int []expectedCounts) throws IOException {
+        DataSourceOptions opts = new DataSourceOptions(optmap);
+        Reader reader = (Reader) new Root().createReader(opts, null, true);
+        List<InputPartition<ColumnarBatch>> partitions = reader.planBatchInputPartitions();
+        assertEquals(1, partitions.size());
+        InputPartitionReader<ColumnarBatch> partitionReader = partitions.get(0).createPartitionReader();
+        int offset = 0;
+        for (int expected: expectedCounts) {
+            assertTrue(partitionReader.next());
+            ColumnarBatch batch = partitionReader.get();
+            assertEquals(expected, batch.numRows());
+            for (int i = 0; i < batch.numRows(); i += 1) {
+                assertEquals(whole.column(0).getInt(offset + i), batch.column(0).getInt(i));
+            }
+            offset += expected;
+        }
+        assertFalse(partitionReader.next());
+        partitionReader.close();
+    }
+
+    @Test
+    public void testBatchSize() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        ColumnarBatch whole = readFirstBatch(optmap);
+
+        // batches hold as many whole baskets (6 entries each) as fit
+        optmap.put("batchSize", "13");
+        assertBatchesMatch(optmap, whole, new int[] {12, 12, 12, 10});
+
+        // or a single basket if it's larger than the batch size
+        optmap.put("batchSize", "4");
+        assertBatchesMatch(optmap, whole, new int[] {6, 6, 6, 6, 6, 6, 6, 4});
+    }
+
+    @Test
+    public void testBatchesDecodeEachBasketOnce() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        optmap.put("batchSize", "0");
+        ColumnarBatch whole = readFirstBatch(optmap);
+        whole.column(0).getInt(0);
+        long wholeBytes = ((TTreeColumnVector) whole.column(0)).getBasketBytes();
+        assertTrue(wholeBytes > 0);
+
+        // batch edges which split a basket would decode it for both batches
+        for (String batchSize: new String[] {"4", "7", "13", "20"}) {
+            optmap.put("batchSize", batchSize);
+            Reader reader = (Reader) new Root().createReader(new DataSourceOptions(optmap), null, true);
+            InputPartitionReader<ColumnarBatch> partitionReader = reader.planBatchInputPartitions().get(0).createPartitionReader();
+            long batchBytes = 0;
+            int rows = 0;
+            while (partitionReader.next()) {
+                ColumnarBatch batch = partitionReader.get();
+                assertEquals(rows, batch.column(0).getInt(0));
+                rows += batch.numRows();
+                batchBytes += ((TTreeColumnVector) batch.column(0)).getBasketBytes();
+            }
+            partitionReader.close();
+            assertEquals(46, rows);
+            assertEquals("batchSize " + batchSize, wholeBytes, batchBytes);
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        ColumnarBatch whole = readFirstBatch(optmap);
+
+        optmap.put("threadCount", "1");
+        optmap.put("batchSize", "13");
+        assertBatchesMatch(optmap, whole, new int[] {12, 12, 12, 10});
+
+        // Columns decoded lazily are still prefetched once they're accessed
+        optmap.put("decodePolicy", "lazy");
+        assertBatchesMatch(optmap, whole, new int[] {12, 12, 12, 10});
+        optmap.remove("decodePolicy");
+
+        // Batches too large to prefetch are read synchronously
+        optmap.put("prefetchBytes", "1");
+        assertBatchesMatch(optmap, whole, new int[] {12, 12, 12, 10});
+    }
+
+    @Test
+    public void testCloseDuringPrefetch() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        ColumnarBatch whole = readFirstBatch(optmap);
+
+        optmap.put("threadCount", "1");
+        optmap.put("batchSize", "6");
+        DataSourceOptions opts = new DataSourceOptions(optmap);
+        Reader reader = (Reader) new Root().createReader(opts, null, true);
+        InputPartition<ColumnarBatch> partition = reader.planBatchInputPartitions().get(0);
+        // closing while the next batch is being prefetched neither blocks nor
+        // leaves work behind which breaks later readers
+        for (int i = 0; i < 20; i += 1) {
+            InputPartitionReader<ColumnarBatch> partitionReader = partition.createPartitionReader();
+            assertTrue(partitionReader.next());
+            partitionReader.get();
+            partitionReader.close();
+        }
+        assertBatchesMatch(optmap, whole, new int[] {6, 6, 6, 6, 6, 6, 6, 4});
+    }
+
+    @Test
+    public void testNextWithoutGet() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "1");
+        optmap.put("batchSize", "6");
+        DataSourceOptions opts = new DataSourceOptions(optmap);
+        Reader reader = (Reader) new Root().createReader(opts, null, true);
+        InputPartitionReader<ColumnarBatch> partitionReader = reader.planBatchInputPartitions().get(0).createPartitionReader();
+        assertTrue(partitionReader.next());
+        assertEquals(0, partitionReader.get().column(0).getInt(0));
+        // skipping a batch must not hand out the one prefetched for it
+        assertTrue(partitionReader.next());
+        assertTrue(partitionReader.next());
+        ColumnarBatch batch = partitionReader.get();
+        assertEquals(6, batch.numRows());
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            assertEquals(12 + i, batch.column(0).getInt(i));
+        }
+        assertTrue(partitionReader.next());
+        assertEquals(18, partitionReader.get().column(0).getInt(0));
+        partitionReader.close();
+    }
+
+    /**
+     * Compare the scalar value at rowId of two vectors of the same type
+     */
+    private static void assertValueEquals(String msg, DataType type, ColumnVector exp, ColumnVector act, int rowId) {
+        if (type instanceof BooleanType) {
+            assertEquals(msg, exp.getBoolean(rowId), act.getBoolean(rowId));
+        } else if (type instanceof ByteType) {
+            assertEquals(msg, exp.getByte(rowId), act.getByte(rowId));
+        } else if (type instanceof ShortType) {
+            assertEquals(msg, exp.getShort(rowId), act.getShort(rowId));
+        } else if (type instanceof IntegerType) {
+            assertEquals(msg, exp.getInt(rowId), act.getInt(rowId));
+        } else if (type instanceof LongType) {
+            assertEquals(msg, exp.getLong(rowId), act.getLong(rowId));
+        } else if (type instanceof FloatType) {
+            assertEquals(msg, exp.getFloat(rowId), act.getFloat(rowId), 0.0);
+        } else if (type instanceof DoubleType) {
+            assertEquals(msg, exp.getDouble(rowId), act.getDouble(rowId), 0.0);
+        } else {
+            throw new AssertionError("unexpected type " + type);
+        }
+    }
+
+    /**
+     * Compare the element at index of two arrays of the same type
+     */
+    private static void assertElementEquals(String msg, DataType type, ColumnarArray exp, ColumnarArray act, int index) {
+        if (type instanceof BooleanType) {
+            assertEquals(msg, exp.getBoolean(index), act.getBoolean(index));
+        } else if (type instanceof ByteType) {
+            assertEquals(msg, exp.getByte(index), act.getByte(index));
+        } else if (type instanceof ShortType) {
+            assertEquals(msg, exp.getShort(index), act.getShort(index));
+        } else if (type instanceof IntegerType) {
+            assertEquals(msg, exp.getInt(index), act.getInt(index));
+        } else if (type instanceof LongType) {
+            assertEquals(msg, exp.getLong(index), act.getLong(index));
+        } else if (type instanceof FloatType) {
+            assertEquals(msg, exp.getFloat(index), act.getFloat(index), 0.0);
+        } else if (type instanceof DoubleType) {
+            assertEquals(msg, exp.getDouble(index), act.getDouble(index), 0.0);
+        } else {
+            throw new AssertionError("unexpected type " + type);
+        }
+    }
+
+    private static void assertBatchEquals(ColumnarBatch exp, ColumnarBatch act, StructType schema) {
+        assertEquals(exp.numRows(), act.numRows());
+        assertEquals(exp.numCols(), act.numCols());
+        for (int col = 0; col < exp.numCols(); col += 1) {
+            DataType type = schema.fields()[col].dataType();
+            for (int row = 0; row < exp.numRows(); row += 1) {
+                String msg = schema.fields()[col].name() + "[" + row + "]";
+                ColumnVector expVec = exp.column(col);
+                ColumnVector actVec = act.column(col);
+                if (type instanceof ArrayType) {
+                    ColumnarArray expArray = expVec.getArray(row);
+                    ColumnarArray actArray = actVec.getArray(row);
+                    assertEquals(msg, expArray.numElements(), actArray.numElements());
+                    DataType elementType = ((ArrayType) type).elementType();
+                    for (int i = 0; i < expArray.numElements(); i += 1) {
+                        assertElementEquals(msg + "[" + i + "]", elementType, expArray, actArray, i);
+                    }
+                } else {
+                    assertValueEquals(msg, type, expVec, actVec, row);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testWritableColumnVectors() throws IOException {
+        // every scalar type, fixed-length and jagged arrays, and columns
+        // decoded from one basket (big-endian) or several (native order)
+        String[][] files = {{"testdata/uproot-small-flat-tree.root", "tree"},
+                            {"testdata/all-types.root", "Events"},
+                            {"testdata/uproot-foriter.root", "foriter"}};
+        for (String[] file: files) {
+            Map<String, String> optmap = new HashMap<String, String>();
+            optmap.put("path", file[0]);
+            optmap.put("tree",  file[1]);
+            optmap.put("threadCount", "0");
+            ColumnarBatch expected = readFirstBatch(optmap);
+            StructType schema = ((Reader) new Root().createReader(new DataSourceOptions(optmap), null, true)).readSchema();
+
+            for (String vectorType: new String[] {"onheap", "offheap"}) {
+                optmap.put("columnVectorType", vectorType);
+                ColumnarBatch batch = readFirstBatch(optmap);
+                assertTrue(batch.column(0) instanceof WritableColumnVector);
+                assertBatchEquals(expected, batch, schema);
+                batch.close();
+            }
+        }
+    }
+
+    @Test
+    public void testArrowColumnVectors() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        optmap.put("threadCount", "0");
+        ColumnarBatch expected = readFirstBatch(optmap);
+        StructType schema = ((Reader) new Root().createReader(new DataSourceOptions(optmap), null, true)).readSchema();
+
+        optmap.put("columnVectorType", "arrow");
+        ColumnarBatch batch = readFirstBatch(optmap);
+        assertTrue(batch.column(0) instanceof ArrowColumnVector);
+        assertBatchEquals(expected, batch, schema);
+        batch.close();
+    }
+
+    @Test
+    public void testLateMaterialization() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        optmap.put("threadCount", "1");
+        optmap.put("lateMaterialization", "true");
+        Reader reader = (Reader) new Root().createReader(new DataSourceOptions(optmap), null, true);
+        Filter[] filters = {new In("Int32", new Object[] {3, 4, 97, 1000}),
+                            new LessThan("Float64", 50.0),
+                            new EqualTo("ArrayFloat32", 3.0f)};
+        // Spark still evaluates every filter, we only skip what can't match
+        assertEquals(3, reader.pushFilters(filters).length);
+        // there's no evaluating comparisons against whole arrays
+        assertEquals(2, reader.pushedFilters().length);
+        StructType schema = reader.readSchema();
+
+        InputPartitionReader<ColumnarBatch> partitionReader = reader.planBatchInputPartitions().get(0).createPartitionReader();
+        assertTrue(partitionReader.next());
+        ColumnarBatch batch = partitionReader.get();
+        assertEquals(2, batch.numRows());
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            int entry = i + 3;
+            assertEquals(entry, batch.column(schema.fieldIndex("Int32")).getInt(i));
+            assertEquals(entry, batch.column(schema.fieldIndex("Int64")).getLong(i));
+            assertEquals(entry, batch.column(schema.fieldIndex("Float32")).getFloat(i), 0.0001);
+            ColumnarArray array = batch.column(schema.fieldIndex("ArrayFloat32")).getArray(i);
+            assertEquals(10, array.numElements());
+            assertEquals(entry, array.getFloat(9), 0.0001);
+        }
+        assertFalse(partitionReader.next());
+        partitionReader.close();
+    }
+
+    @Test
+    public void testLateMaterializationSkipsBaskets() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        optmap.put("lateMaterialization", "true");
+        optmap.put("batchSize", "12");
+        Reader reader = (Reader) new Root().createReader(new DataSourceOptions(optmap), null, true);
+        reader.pushFilters(new Filter[] {new Or(new LessThan("data", 2), new GreaterThanOrEqual("data", 44))});
+
+        InputPartitionReader<ColumnarBatch> partitionReader = reader.planBatchInputPartitions().get(0).createPartitionReader();
+        int []expectedCounts = {2, 0, 0, 2};
+        int []firstEntries = {0, -1, -1, 44};
+        for (int b = 0; b < expectedCounts.length; b += 1) {
+            assertTrue(partitionReader.next());
+            ColumnarBatch batch = partitionReader.get();
+            assertEquals(expectedCounts[b], batch.numRows());
+            for (int i = 0; i < batch.numRows(); i += 1) {
+                assertEquals(firstEntries[b] + i, batch.column(0).getInt(i));
+            }
+        }
+        assertFalse(partitionReader.next());
+        partitionReader.close();
+    }
+
+    @Test
+    public void testBasketPruning() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-foriter.root");
+        optmap.put("tree",  "foriter");
+        optmap.put("threadCount", "0");
+        optmap.put("bloomFilterBranches", "data");
+        Reader reader = (Reader) new Root().createReader(new DataSourceOptions(optmap), null, true);
+        Filter[] filters = {new In("data", new Object[] {3, 40})};
+        assertEquals(1, reader.pushFilters(filters).length);
+        assertEquals(1, reader.pushedFilters().length);
+
+        // only the baskets holding 3 and 40 are planned
+        List<InputPartition<ColumnarBatch>> partitions = reader.planBatchInputPartitions();
+        assertEquals(2, partitions.size());
+        int []firstEntries = {0, 36};
+        for (int i = 0; i < partitions.size(); i += 1) {
+            InputPartitionReader<ColumnarBatch> partitionReader = partitions.get(i).createPartitionReader();
+            assertTrue(partitionReader.next());
+            ColumnarBatch batch = partitionReader.get();
+            assertEquals(6, batch.numRows());
+            for (int j = 0; j < batch.numRows(); j += 1) {
+                assertEquals(firstEntries[i] + j, batch.column(0).getInt(j));
+            }
+            assertFalse(partitionReader.next());
+            partitionReader.close();
+        }
+
+        // nothing is planned if no basket can match
+        reader.pushFilters(new Filter[] {new GreaterThanOrEqual("data", 100)});
+        assertEquals(0, reader.planBatchInputPartitions().size());
+    }
+
     @Test
     public void testMultipleBasketsForBigNano() throws IOException {
         String testPath = getBigTestDataIfExists("testdata/A2C66680-E3AA-E811-A854-1CC1DE192766.root");
@@ -315,6 +710,88 @@ public class TTreeDataSourceUnitTest {
         arr.getFloat(0);
     }
 
+    @Test
+    public void testKryoRegistrator() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        optmap.put("threadCount", "0");
+        DataSourceOptions opts = new DataSourceOptions(optmap);
+        Reader reader = (Reader) new Root().createReader(opts, null, true);
+        InputPartition<ColumnarBatch> partition = reader.planBatchInputPartitions().get(0);
+        ClassTag<InputPartition> ct = scala.reflect.ClassTag$.MODULE$.apply(InputPartition.class);
+
+        SerializerInstance plain = new KryoSerializer(new SparkConf()).newInstance();
+        int plainSize = plain.serialize(partition, ct).remaining();
+
+        SparkConf conf = new SparkConf().set("spark.kryo.registrator", LaurelinKryoRegistrator.class.getName());
+        SerializerInstance registered = new KryoSerializer(conf).newInstance();
+        ByteBuffer serializedPartition = registered.serialize(partition, ct);
+        assertTrue(serializedPartition.remaining() < plainSize);
+        partition = registered.deserialize(serializedPartition, ct);
+
+        InputPartitionReader<ColumnarBatch> partitionReader = partition.createPartitionReader();
+        assertTrue(partitionReader.next());
+        ColumnarBatch batch = partitionReader.get();
+        assertEquals(100, batch.numRows());
+        // Int32 holds the entry number
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            assertEquals(i, batch.column(0).getInt(i));
+        }
+    }
+
+    /**
+     * Round trip what Spark serializes with spark.serializer (task results,
+     * such as the partitions collected during planning, and broadcast
+     * blocks) through the serializer Spark instantiates from the
+     * configuration. Tasks themselves always use Java serialization
+     */
+    @Test
+    public void testSparkSerializerRoundTrip() throws Exception {
+        String path = "testdata/uproot-small-flat-tree.root";
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", path);
+        optmap.put("tree",  "tree");
+        optmap.put("threadCount", "0");
+        Reader reader = (Reader) new Root().createReader(new DataSourceOptions(optmap), null, true);
+
+        SparkConf conf = new SparkConf()
+                .set("spark.serializer", KryoSerializer.class.getName())
+                .set("spark.kryo.registrator", LaurelinKryoRegistrator.class.getName());
+        Serializer serializer = (Serializer) Class.forName(conf.get("spark.serializer")).getConstructor(SparkConf.class).newInstance(conf);
+        SerializerInstance instance = serializer.newInstance();
+
+        // collected partitions come back as an array in the task result
+        Object[] partitions = reader.planBatchInputPartitions().toArray();
+        ClassTag<Object[]> arrayTag = scala.reflect.ClassTag$.MODULE$.apply(Object[].class);
+        Object[] collected = instance.deserialize(instance.serialize(partitions, arrayTag), arrayTag);
+        assertEquals(partitions.length, collected.length);
+        @SuppressWarnings("unchecked")
+        InputPartitionReader<ColumnarBatch> partitionReader = ((InputPartition<ColumnarBatch>) collected[0]).createPartitionReader();
+        assertTrue(partitionReader.next());
+        ColumnarBatch batch = partitionReader.get();
+        assertEquals(100, batch.numRows());
+        for (int i = 0; i < batch.numRows(); i += 1) {
+            assertEquals(i, batch.column(0).getInt(i));
+        }
+        partitionReader.close();
+
+        // broadcast blocks are written through a serialization stream
+        Map<String, TTreeIndex> indices = new HashMap<String, TTreeIndex>();
+        indices.put(path, TTreeIndex.getCachedIndex(path, "tree", null).project(reader.readSchema()));
+        ClassTag<Map<String, TTreeIndex>> mapTag = scala.reflect.ClassTag$.MODULE$.apply(Map.class);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SerializationStream out = instance.serializeStream(bos);
+        out.writeObject(indices, mapTag);
+        out.close();
+        DeserializationStream in = instance.deserializeStream(new ByteArrayInputStream(bos.toByteArray()));
+        Map<String, TTreeIndex> broadcastIndices = in.readObject(mapTag);
+        in.close();
+        TTreeIndex index = broadcastIndices.get(path);
+        assertEquals(100, index.getEntries());
+        assertEquals("int", index.getBranch("Int32").getRootType());
+    }
+
     /**
      * Ideally implements the same call order as the full-up spark test
      *  [TRACE] 17:24:35.974 e.v.a.l.Root - planbatchinputpartitions
@@ -397,6 +874,40 @@ public class TTreeDataSourceUnitTest {
         assertFloatArrayEquals(new float[] { 31.0f, 31.0f, 31.0f, 31.0f, 31.0f, 31.0f, 31.0f, 31.0f, 31.0f, 31.0f}, float32col.getArray(31).toFloatArray());
     }
 
+    @Test
+    public void testJaggedArrayContent() throws IOException {
+        Map<String, String> optmap = new HashMap<String, String>();
+        optmap.put("path", "testdata/uproot-small-flat-tree.root");
+        optmap.put("tree",  "tree");
+        optmap.put("threadCount", "0");
+        Reader reader = (Reader) new Root().createReader(new DataSourceOptions(optmap), null, true);
+        StructType schema = reader.readSchema();
+        ColumnarBatch batch = readFirstBatch(optmap);
+        ColumnVector ints = batch.column(schema.fieldIndex("SliceInt32"));
+        ColumnVector floats = batch.column(schema.fieldIndex("SliceFloat32"));
+
+        // entry i holds i % 10 copies of i. Every row is a view into the
+        // same flat content, so the bulk getters have to honour its offset
+        for (int row = 0; row < batch.numRows(); row += 1) {
+            int count = row % 10;
+            ColumnarArray intArray = ints.getArray(row);
+            ColumnarArray floatArray = floats.getArray(row);
+            assertEquals(count, intArray.numElements());
+            assertEquals(count, floatArray.numElements());
+
+            int[] expectedInts = new int[count];
+            float[] expectedFloats = new float[count];
+            Arrays.fill(expectedInts, row);
+            Arrays.fill(expectedFloats, row);
+            assertArrayEquals(expectedInts, intArray.toIntArray());
+            assertFloatArrayEquals(expectedFloats, floatArray.toFloatArray());
+            for (int i = 0; i < count; i += 1) {
+                assertEquals(row, intArray.getInt(i));
+                assertEquals(row, floatArray.getFloat(i), 0.0);
+            }
+        }
+    }
+
     @Test
     public void testScalarI1() throws IOException {
         TFile file = TFile.getFromFile("testdata/all-types.root");
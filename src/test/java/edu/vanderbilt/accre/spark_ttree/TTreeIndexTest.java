@@ -0,0 +1,133 @@
+package edu.vanderbilt.accre.spark_ttree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import edu.vanderbilt.accre.laurelin.root_proxy.TFile;
+import edu.vanderbilt.accre.laurelin.root_proxy.TTree;
+import edu.vanderbilt.accre.laurelin.spark_ttree.SlimTBranch;
+import edu.vanderbilt.accre.laurelin.spark_ttree.TTreeIndex;
+import edu.vanderbilt.accre.laurelin.spark_ttree.TTreeIndex.BranchIndex;
+
+public class TTreeIndexTest {
+    private static String flatPath = "testdata/uproot-small-flat-tree.root";
+    private static String vectorPath = "testdata/stdvector.root";
+
+    private static TTreeIndex fromFile(String path, String treeName) throws IOException {
+        TFile file = TFile.getFromFile(path);
+        return TTreeIndex.fromTTree(new TTree(file.getProxy(treeName), file));
+    }
+
+    private static TTreeIndex roundTrip(TTreeIndex index) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bos));
+        return TTreeIndex.read(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    }
+
+    private static void assertIndexEquals(TTreeIndex expected, TTreeIndex actual) {
+        assertEquals(expected.getEntries(), actual.getEntries());
+        assertArrayEquals(expected.getPartitionEntryOffsets(), actual.getPartitionEntryOffsets());
+        assertEquals(expected.getBranches().keySet(), actual.getBranches().keySet());
+        for (Entry<String, BranchIndex> e: expected.getBranches().entrySet()) {
+            BranchIndex exp = e.getValue();
+            BranchIndex act = actual.getBranch(e.getKey());
+            assertEquals(exp.getName(), act.getName());
+            assertEquals(exp.getRootType(), act.getRootType());
+            assertArrayEquals(exp.getBasketEntryOffsets(), act.getBasketEntryOffsets());
+            assertArrayEquals(exp.getBasketSeek(), act.getBasketSeek());
+            assertArrayEquals(exp.getBasketBytes(), act.getBasketBytes());
+            if (exp.getArrayDesc() == null) {
+                assertNull(act.getArrayDesc());
+            } else {
+                assertEquals(exp.getArrayDesc().isFixed(), act.getArrayDesc().isFixed());
+                assertEquals(exp.getArrayDesc().getFixedLength(), act.getArrayDesc().getFixedLength());
+                assertEquals(exp.getArrayDesc().getSkipBytes(), act.getArrayDesc().getSkipBytes());
+                assertEquals(exp.getArrayDesc().getBranchName(), act.getArrayDesc().getBranchName());
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTripFlat() throws IOException {
+        TTreeIndex index = fromFile(flatPath, "tree");
+        assertEquals(100, index.getEntries());
+        assertEquals(19, index.getBranches().size());
+        assertEquals("int", index.getBranch("Int32").getRootType());
+        assertTrue(index.getBranch("ArrayInt32").getArrayDesc().isFixed());
+        assertIndexEquals(index, roundTrip(index));
+    }
+
+    @Test
+    public void testRoundTripVector() throws IOException {
+        TTreeIndex index = fromFile(vectorPath, "tvec");
+        assertIndexEquals(index, roundTrip(index));
+    }
+
+    @Test
+    public void testSlimTBranchFromIndex() throws IOException {
+        TTreeIndex index = fromFile(flatPath, "tree");
+        BranchIndex branch = index.getBranch("Int32");
+        SlimTBranch slim = branch.toSlimTBranch(flatPath);
+        assertArrayEquals(branch.getBasketEntryOffsets(), slim.getBasketEntryOffsets());
+        assertEquals(branch.getBasketSeek().length, slim.getStoredBasketCount());
+        assertEquals(branch.getBasketSeek()[0], slim.getBasket(0).getOffset());
+    }
+
+    @Test
+    public void testCachedIndexNoticesRewrite() throws IOException {
+        File copy = File.createTempFile("laurelin-index", ".root");
+        try {
+            Files.copy(new File(flatPath).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            TTreeIndex first = TTreeIndex.getCachedIndex(copy.getPath(), "tree", null);
+            assertSame(first, TTreeIndex.getCachedIndex(copy.getPath(), "tree", null));
+
+            // a file rewritten in place isn't served from the cache
+            assertTrue(copy.setLastModified(copy.lastModified() + 10000));
+            TTreeIndex second = TTreeIndex.getCachedIndex(copy.getPath(), "tree", null);
+            assertNotSame(first, second);
+            assertIndexEquals(first, second);
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testSidecarCache() throws IOException {
+        File cacheDir = Files.createTempDirectory("laurelin-index").toFile();
+        try {
+            TTreeIndex first = TTreeIndex.getIndex(flatPath, "tree", cacheDir.getPath());
+            File[] sidecars = cacheDir.listFiles((dir, name) -> name.endsWith(".idx"));
+            assertEquals(1, sidecars.length);
+            long modified = sidecars[0].lastModified();
+
+            TTreeIndex second = TTreeIndex.getIndex(flatPath, "tree", cacheDir.getPath());
+            assertIndexEquals(first, second);
+            assertEquals(modified, sidecars[0].lastModified());
+
+            // A different tree in a different file gets its own sidecar
+            TTreeIndex.getIndex(vectorPath, "tvec", cacheDir.getPath());
+            assertEquals(2, cacheDir.listFiles((dir, name) -> name.endsWith(".idx")).length);
+        } finally {
+            for (File f: cacheDir.listFiles()) {
+                f.delete();
+            }
+            cacheDir.delete();
+        }
+    }
+}